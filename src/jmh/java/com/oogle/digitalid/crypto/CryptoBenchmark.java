@@ -0,0 +1,79 @@
+package com.oogle.digitalid.crypto;
+
+import com.oogle.digitalid.model.DigitalId;
+import org.openjdk.jmh.annotations.*;
+
+import java.nio.charset.StandardCharsets;
+import java.security.KeyPair;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Per-stage cost of the issuance crypto: canonicalize (legacy Gson and JCS), hash, sign, JWS pack and verify.
+ * {@link CryptoContendedBenchmark} runs the same methods on every core.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+@Threads(1)
+public class CryptoBenchmark {
+    KeyPair keys;
+    DigitalId id;
+    String canonical;
+    byte[] canonicalBytes;
+    byte[] signature;
+    String jws;
+
+    @Setup
+    public void setup() {
+        keys = Crypto.generateRsa2048();
+        id = DigitalId.basic("6f1c2a52-8f0e-4c1b-9d8e-2b7f3c4d5e6f", "Zoë Ångström-Núñez", "1990-02-28",
+                "zoe@example.com", "+44 20 7946 0958", "Oogle ID Authority", 1_700_000_000L, 1_800_000_000L);
+        canonicalBytes = CanonicalJson.encode(id);
+        canonical = new String(canonicalBytes, StandardCharsets.UTF_8);
+        signature = Crypto.signSha256Rsa(canonicalBytes, keys.getPrivate());
+        jws = Crypto.packAsCompactJws(canonical, keys.getPrivate(), "bench");
+    }
+
+    @Benchmark
+    public String canonicalize() {
+        return Crypto.canonicalize(id);
+    }
+
+    @Benchmark
+    public byte[] canonicalJson() {
+        return CanonicalJson.encode(id);
+    }
+
+    @Benchmark
+    public byte[] sha256() {
+        return Crypto.sha256(canonicalBytes);
+    }
+
+    @Benchmark
+    public byte[] signSha256Rsa() {
+        return Crypto.signSha256Rsa(canonicalBytes, keys.getPrivate());
+    }
+
+    @Benchmark
+    public String packAsCompactJws() {
+        return Crypto.packAsCompactJws(canonical, keys.getPrivate(), "bench");
+    }
+
+    @Benchmark
+    public boolean verifySha256Rsa() {
+        return Crypto.verifySha256Rsa(canonicalBytes, signature, keys.getPublic());
+    }
+
+    @Benchmark
+    public boolean verifyCompactJws() {
+        return Crypto.verifyCompactJws(jws, keys.getPublic());
+    }
+
+    @Benchmark
+    public Object publicFromPem() {
+        return Crypto.publicFromPem(Crypto.toPemPublic(keys.getPublic()));
+    }
+}
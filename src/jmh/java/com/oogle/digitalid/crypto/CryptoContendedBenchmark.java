@@ -0,0 +1,8 @@
+package com.oogle.digitalid.crypto;
+
+import org.openjdk.jmh.annotations.Threads;
+
+/** {@link CryptoBenchmark} with one thread per core sharing the same keys. */
+@Threads(Threads.MAX)
+public class CryptoContendedBenchmark extends CryptoBenchmark {
+}
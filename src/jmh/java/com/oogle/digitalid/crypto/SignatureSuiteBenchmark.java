@@ -0,0 +1,58 @@
+package com.oogle.digitalid.crypto;
+
+import org.openjdk.jmh.annotations.*;
+
+import java.nio.charset.StandardCharsets;
+import java.security.KeyPair;
+import java.util.concurrent.TimeUnit;
+
+/** Sign, verify and JWS pack cost for each {@link SignatureSuite}. */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+@Threads(1)
+public class SignatureSuiteBenchmark {
+    @Param({"RS256", "ES256", "EdDSA"})
+    String alg;
+
+    SignatureSuite suite;
+    KeyPair keys;
+    String canonical;
+    byte[] data;
+    byte[] signature;
+    String jws;
+
+    @Setup
+    public void setup() {
+        suite = SignatureSuite.parse(alg);
+        keys = suite.generateKeyPair();
+        canonical = "{\"id\":\"6f1c2a52-8f0e-4c1b-9d8e-2b7f3c4d5e6f\",\"fullName\":\"Zoë Ångström-Núñez\","
+                + "\"issuer\":\"Oogle ID Authority\",\"issuedAt\":1700000000,\"expiresAt\":1800000000}";
+        data = canonical.getBytes(StandardCharsets.UTF_8);
+        signature = suite.sign(data, keys.getPrivate());
+        jws = Crypto.packAsCompactJws(canonical, keys.getPrivate(), "bench");
+    }
+
+    @Benchmark
+    public byte[] sign() {
+        return suite.sign(data, keys.getPrivate());
+    }
+
+    @Benchmark
+    public boolean verify() {
+        return suite.verify(data, signature, keys.getPublic());
+    }
+
+    @Benchmark
+    public String packAsCompactJws() {
+        return Crypto.packAsCompactJws(canonical, keys.getPrivate(), "bench");
+    }
+
+    @Benchmark
+    public boolean verifyCompactJws() {
+        return Crypto.verifyCompactJws(jws, keys.getPublic());
+    }
+}
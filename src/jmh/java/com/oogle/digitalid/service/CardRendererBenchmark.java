@@ -0,0 +1,59 @@
+package com.oogle.digitalid.service;
+
+import com.google.zxing.common.BitMatrix;
+import com.oogle.digitalid.model.DigitalId;
+import org.openjdk.jmh.annotations.*;
+
+import java.io.IOException;
+import java.nio.file.Path;
+import java.util.concurrent.TimeUnit;
+
+/** QR encoding and the two PNG writers of {@code saveIdFiles}, at each PNG compression setting. */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+@Threads(1)
+public class CardRendererBenchmark {
+
+    @State(Scope.Benchmark)
+    public static class Renderer {
+        @Param({"DEFAULT", "FAST"})
+        String compression;
+
+        CardRenderer renderer;
+        DigitalId sample;
+        String qrPayload;
+        BitMatrix qr;
+
+        @Setup
+        public void setup() throws IOException {
+            renderer = new CardRenderer("Scan to import", CardRenderer.PngCompression.valueOf(compression));
+            sample = DigitalId.basic("6f1c2a52-8f0e-4c1b-9d8e-2b7f3c4d5e6f", "Zoë Ångström-Núñez", "1990-02-28",
+                    "zoe@example.com", "+44 20 7946 0958", "Oogle ID Authority", 1_700_000_000L, 1_800_000_000L);
+            // Size of an RS256 token with a kid
+            qrPayload = "eyJhbGciOiJSUzI1NiJ9." + "x".repeat(520);
+            qr = CardRenderer.encodeQr(qrPayload);
+        }
+    }
+
+    @Benchmark
+    public BitMatrix encodeQr(Renderer s) throws IOException {
+        return CardRenderer.encodeQr(s.qrPayload);
+    }
+
+    @Benchmark
+    public Path writeQrPng(Renderer s, IssuerBenchmark.Output o) throws IOException {
+        Path p = o.dir.resolve("bench.qr.png");
+        s.renderer.writeQrPng(s.qr, 512, p);
+        return p;
+    }
+
+    @Benchmark
+    public Path writeCardPng(Renderer s, IssuerBenchmark.Output o) throws IOException {
+        Path p = o.dir.resolve("bench.card.png");
+        s.renderer.writeCardPng(s.sample, s.qr, p);
+        return p;
+    }
+}
@@ -0,0 +1,8 @@
+package com.oogle.digitalid.service;
+
+import org.openjdk.jmh.annotations.Threads;
+
+/** {@link CardRendererBenchmark} with one thread per core sharing one renderer and its templates. */
+@Threads(Threads.MAX)
+public class CardRendererContendedBenchmark extends CardRendererBenchmark {
+}
@@ -0,0 +1,89 @@
+package com.oogle.digitalid.service;
+
+import com.oogle.digitalid.model.DigitalId;
+import org.openjdk.jmh.annotations.*;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Comparator;
+import java.util.concurrent.TimeUnit;
+import java.util.stream.Stream;
+
+/**
+ * End-to-end issuance and verification. The PNG stages are in {@link CardRendererBenchmark}.
+ * {@link IssuerContendedBenchmark} runs the same methods on every core.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+@Threads(1)
+public class IssuerBenchmark {
+
+    @State(Scope.Benchmark)
+    public static class Issuer {
+        // 1 signs twice (detached signature + JWS), 2 signs once
+        @Param({"1", "2"})
+        public int format;
+
+        Path keyDir;
+        IdIssuer issuer;
+        DigitalId sample;
+        Path sampleJson;
+
+        @Setup
+        public void setup() throws IOException {
+            keyDir = Files.createTempDirectory("bench-keys");
+            issuer = new IdIssuer(keyDir, "Oogle ID Authority");
+            issuer.setFormatVersion(format);
+            sample = issuer.issue("Zoë Ångström-Núñez", "1990-02-28", "zoe@example.com", "+44 20 7946 0958", 1_900_000_000L);
+            sampleJson = issuer.saveIdJson(sample, keyDir.resolve("sample"));
+        }
+
+        @TearDown
+        public void tearDown() throws IOException {
+            deleteTree(keyDir);
+        }
+    }
+
+    // Each thread writes into its own directory, emptied between iterations
+    @State(Scope.Thread)
+    public static class Output {
+        Path dir;
+
+        @Setup(Level.Iteration)
+        public void setup() throws IOException {
+            dir = Files.createTempDirectory("bench-out");
+        }
+
+        @TearDown(Level.Iteration)
+        public void tearDown() throws IOException {
+            deleteTree(dir);
+        }
+    }
+
+    @Benchmark
+    public DigitalId issue(Issuer s) throws IOException {
+        return s.issuer.issue("Zoë Ångström-Núñez", "1990-02-28", "zoe@example.com", "+44 20 7946 0958", 1_900_000_000L);
+    }
+
+    @Benchmark
+    public Path issueAndSave(Issuer s, Output o) throws IOException {
+        DigitalId d = s.issuer.issue("Zoë Ångström-Núñez", "1990-02-28", "zoe@example.com", "+44 20 7946 0958", 1_900_000_000L);
+        return s.issuer.saveIdFiles(d, o.dir);
+    }
+
+    @Benchmark
+    public boolean verify(Issuer s) throws IOException {
+        return s.issuer.verify(s.sampleJson);
+    }
+
+    static void deleteTree(Path root) throws IOException {
+        if (root == null || !Files.exists(root)) return;
+        try (Stream<Path> s = Files.walk(root)) {
+            for (Path p : (Iterable<Path>) s.sorted(Comparator.reverseOrder())::iterator) Files.delete(p);
+        }
+    }
+}
@@ -0,0 +1,8 @@
+package com.oogle.digitalid.service;
+
+import org.openjdk.jmh.annotations.Threads;
+
+/** {@link IssuerBenchmark} with one thread per core sharing one issuer and key directory. */
+@Threads(Threads.MAX)
+public class IssuerContendedBenchmark extends IssuerBenchmark {
+}
@@ -0,0 +1,98 @@
+package com.oogle.digitalid;
+
+import com.oogle.digitalid.crypto.SignatureSuite;
+import com.oogle.digitalid.metrics.Metrics;
+import com.oogle.digitalid.service.ArtifactWriter;
+import com.oogle.digitalid.service.BulkIssuer;
+import com.oogle.digitalid.service.CardRenderer;
+import com.oogle.digitalid.service.CredentialBundle;
+import com.oogle.digitalid.service.IdIssuer;
+import com.oogle.digitalid.service.IdLedger;
+import com.oogle.digitalid.service.IdentityIndex;
+import com.oogle.digitalid.service.RevocationList;
+import java.nio.file.Path;
+import java.util.EnumSet;
+import java.util.Locale;
+import java.util.Set;
+
+public class BulkIssue {
+    public static void main(String[] args) throws Exception {
+        BulkIssuer.Options opts = new BulkIssuer.Options();
+        Path input = null;
+        Path out = Path.of("output");
+        SignatureSuite alg = SignatureSuite.RS256;
+        boolean fastPng = false;
+        boolean compactQr = false;
+        Path statusList = null;
+        Path ledger = null;
+        Path bundle = null;
+        Path metrics = null;
+        Path identityIndex = null;
+        Set<IdentityIndex.Field> unique = EnumSet.of(IdentityIndex.Field.EMAIL);
+        try {
+            for (int i = 0; i < args.length; i++) {
+                switch (args[i]) {
+                    case "--out" -> out = Path.of(args[++i]);
+                    case "--threads" -> opts.threads = Integer.parseInt(args[++i]);
+                    case "--queue" -> opts.queueCapacity = Integer.parseInt(args[++i]);
+                    case "--batch" -> opts.batchSize = Integer.parseInt(args[++i]);
+                    case "--years" -> opts.validityYears = Integer.parseInt(args[++i]);
+                    case "--json-only" -> opts.writeImages = false;
+                    case "--alg" -> alg = SignatureSuite.parse(args[++i]);
+                    case "--fast-png" -> fastPng = true;
+                    case "--compact-qr" -> compactQr = true;
+                    case "--status-list" -> statusList = Path.of(args[++i]);
+                    case "--ledger" -> ledger = Path.of(args[++i]);
+                    case "--bundle" -> bundle = Path.of(args[++i]);
+                    case "--metrics" -> metrics = Path.of(args[++i]);
+                    case "--identity-index" -> identityIndex = Path.of(args[++i]);
+                    case "--unique" -> unique = IdentityIndex.Field.parseAll(args[++i]);
+                    case "--fsync" -> opts.sync = ArtifactWriter.SyncPolicy.valueOf(args[++i].toUpperCase(Locale.ROOT));
+                    default -> input = Path.of(args[i]);
+                }
+            }
+        } catch (RuntimeException e) {
+            input = null;
+        }
+        if (input == null) {
+            System.err.println("Usage: java -cp build/libs/digital-id-gui-*.jar com.oogle.digitalid.BulkIssue"
+                    + " [--out dir] [--threads n] [--queue n] [--batch n] [--years n] [--json-only] [--fast-png] [--compact-qr] [--status-list file] [--ledger dir] [--bundle file.didb] [--identity-index file] [--unique email,phone,name-dob|none] [--fsync none|batched|each] [--metrics out.json] [--alg RS256|ES256|EdDSA] <records.csv|records.jsonl>");
+            System.exit(1);
+        }
+
+        Metrics.registerMBeans();
+        var issuer = new IdIssuer(Path.of("keys"), "Oogle ID Authority", null, alg);
+        if (fastPng) issuer.setPngCompression(CardRenderer.PngCompression.FAST);
+        if (compactQr) issuer.setQrFormat(IdIssuer.QrFormat.COMPACT);
+        // closed (in reverse) however the run ends: the index is only marked clean, the bundle
+        // only moved into place, and the locks only released on close
+        BulkIssuer.Report report;
+        try (RevocationList list = statusList == null ? null : RevocationList.open(statusList);
+             IdLedger led = ledger == null ? null : IdLedger.open(ledger);
+             CredentialBundle.Writer bundleWriter = bundle == null ? null : CredentialBundle.create(bundle);
+             IdentityIndex index = identityIndex == null ? null : IdentityIndex.open(identityIndex)) {
+            if (list != null) issuer.setRevocationList(list);
+            if (led != null) {
+                // cards are rendered later from the ledger with RenderCards
+                opts.ledger = led;
+                opts.writeImages = false;
+            }
+            opts.bundle = bundleWriter;
+            if (index != null) {
+                // the ledger is the record of what was issued; catch the index up with it
+                if (led != null && (!index.clean() || index.size() == 0)) index.addFrom(led);
+                issuer.setIdentityIndex(index, unique);
+            }
+            report = new BulkIssuer(issuer, out, opts).run(input);
+        }
+        for (BulkIssuer.Failure f : report.failures) {
+            System.err.println("FAILED " + f);
+        }
+        if (report.failed > report.failures.size()) {
+            System.err.println("... and " + (report.failed - report.failures.size()) + " more failures");
+        }
+        System.out.println(report);
+        if (metrics != null) Metrics.dump(metrics);
+        System.exit(report.failed == 0 ? 0 : 2);
+    }
+}
@@ -0,0 +1,72 @@
+package com.oogle.digitalid;
+
+import com.oogle.digitalid.service.IdLedger;
+import com.oogle.digitalid.service.IdentityIndex;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+
+/** Builds an identity index from issued IDs and looks IDs up in it by email, phone or name and date of birth. */
+public class FindIds {
+    public static void main(String[] args) throws Exception {
+        Path index = null;
+        List<Path> ledgers = new ArrayList<>();
+        List<String> inputs = new ArrayList<>();
+        String email = null, phone = null, name = null, dob = null;
+        try {
+            for (int i = 0; i < args.length; i++) {
+                switch (args[i]) {
+                    case "--index" -> index = Path.of(args[++i]);
+                    case "--ledger" -> ledgers.add(Path.of(args[++i]));
+                    case "--add" -> inputs.add(args[++i]);
+                    case "--email" -> email = args[++i];
+                    case "--phone" -> phone = args[++i];
+                    case "--name" -> name = args[++i];
+                    case "--dob" -> dob = args[++i];
+                    default -> throw new IllegalArgumentException(args[i]);
+                }
+            }
+        } catch (RuntimeException e) {
+            index = null;
+        }
+        boolean query = email != null || phone != null || name != null;
+        if (index == null || (name == null) != (dob == null) || (!query && inputs.isEmpty() && ledgers.isEmpty())) {
+            System.err.println("Usage: java -cp build/libs/digital-id-gui-*.jar com.oogle.digitalid.FindIds --index ids.idx"
+                    + " [--ledger dir]... [--add ID.did.json | dir | 'glob' | bundle.jsonl | ids.didb]..."
+                    + " [--email address] [--phone number] [--name 'Full Name' --dob YYYY-MM-DD]");
+            System.exit(1);
+        }
+
+        try (IdentityIndex idx = IdentityIndex.open(index)) {
+            if (!idx.clean() && ledgers.isEmpty()) {
+                System.err.println("Warning: " + index + " was not closed cleanly and may be missing IDs; rebuild it with --ledger");
+            }
+            long start = System.nanoTime();
+            long read = 0;
+            for (Path dir : ledgers) {
+                if (!Files.isDirectory(dir)) throw new IOException("No ledger at " + dir);
+                try (IdLedger ledger = IdLedger.open(dir)) {
+                    idx.addFrom(ledger);
+                    read += ledger.size();
+                }
+            }
+            for (String in : inputs) read += idx.addAll(in);
+            if (read > 0) {
+                System.err.println("Indexed " + read + " IDs (" + idx.size() + " keys) in "
+                        + (System.nanoTime() - start) / 1_000_000 + " ms");
+            }
+            if (email != null) print("email", idx.findByEmail(email));
+            if (phone != null) print("phone", idx.findByPhone(phone));
+            if (name != null) print("name-dob", idx.findByNameAndDob(name, dob));
+        } catch (IOException | IllegalArgumentException | IllegalStateException e) {
+            System.err.println("Failed: " + e.getMessage());
+            System.exit(2);
+        }
+    }
+
+    private static void print(String field, List<String> ids) {
+        for (String id : ids) System.out.println(field + "\t" + id);
+    }
+}
@@ -0,0 +1,63 @@
+package com.oogle.digitalid;
+
+import com.oogle.digitalid.service.CredentialBundle;
+import com.oogle.digitalid.service.IdLedger;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+
+/** Packs IDs from files, directories, globs, JSONL and ledgers into one credential bundle. */
+public class PackBundle {
+    public static void main(String[] args) throws Exception {
+        Path out = null;
+        List<Path> ledgers = new ArrayList<>();
+        List<String> inputs = new ArrayList<>();
+        try {
+            for (int i = 0; i < args.length; i++) {
+                switch (args[i]) {
+                    case "--out" -> out = Path.of(args[++i]);
+                    case "--ledger" -> ledgers.add(Path.of(args[++i]));
+                    default -> inputs.add(args[i]);
+                }
+            }
+        } catch (RuntimeException e) {
+            out = null;
+        }
+        if (out == null || (inputs.isEmpty() && ledgers.isEmpty())) {
+            System.err.println("Usage: java -cp build/libs/digital-id-gui-*.jar com.oogle.digitalid.PackBundle"
+                    + " --out ids.didb [--ledger dir]... [ID.did.json | dir | 'glob' | bundle.jsonl]...");
+            System.exit(1);
+        }
+
+        long start = System.nanoTime();
+        int packed = 0;
+        // a bad input fails the whole pack rather than leaving a bundle that silently lacks it
+        CredentialBundle.Writer bundle = CredentialBundle.create(out);
+        try {
+            for (Path dir : ledgers) {
+                if (!Files.isDirectory(dir)) throw new IOException("No ledger at " + dir);
+                try (IdLedger ledger = IdLedger.open(dir)) {
+                    ledger.replay(d -> {
+                        try {
+                            bundle.add(d);
+                        } catch (IOException e) {
+                            throw new UncheckedIOException(e);
+                        }
+                    });
+                }
+            }
+            for (String in : inputs) bundle.addAll(in);
+            packed = bundle.count();
+            bundle.close();
+        } catch (IOException | UncheckedIOException | IllegalArgumentException e) {
+            bundle.abort();
+            System.err.println("Failed: " + e.getMessage());
+            System.exit(2);
+        }
+        System.out.println("Packed " + packed + " IDs into " + out + " (" + Files.size(out) / 1024 + " KB, "
+                + (System.nanoTime() - start) / 1_000_000 + " ms)");
+    }
+}
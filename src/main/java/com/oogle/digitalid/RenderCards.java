@@ -0,0 +1,98 @@
+package com.oogle.digitalid;
+
+import com.oogle.digitalid.metrics.Metrics;
+import com.oogle.digitalid.model.DigitalId;
+import com.oogle.digitalid.service.CardRenderer;
+import com.oogle.digitalid.service.IdIssuer;
+import com.oogle.digitalid.service.IdLedger;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Locale;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Consumer;
+
+/** Renders QR and card PNGs for IDs in a ledger: all of them, or just the ids given. */
+public class RenderCards {
+    public static void main(String[] args) throws Exception {
+        Path ledgerDir = null;
+        Path out = Path.of("output");
+        int threads = Runtime.getRuntime().availableProcessors();
+        boolean fastPng = false;
+        boolean compactQr = false;
+        Path metrics = null;
+        List<String> ids = new ArrayList<>();
+        try {
+            for (int i = 0; i < args.length; i++) {
+                switch (args[i]) {
+                    case "--ledger" -> ledgerDir = Path.of(args[++i]);
+                    case "--out" -> out = Path.of(args[++i]);
+                    case "--threads" -> threads = Integer.parseInt(args[++i]);
+                    case "--fast-png" -> fastPng = true;
+                    case "--compact-qr" -> compactQr = true;
+                    case "--metrics" -> metrics = Path.of(args[++i]);
+                    default -> ids.add(args[i]);
+                }
+            }
+        } catch (RuntimeException e) {
+            ledgerDir = null;
+        }
+        if (ledgerDir == null) {
+            System.err.println("Usage: java -cp build/libs/digital-id-gui-*.jar com.oogle.digitalid.RenderCards"
+                    + " --ledger dir [--out dir] [--threads n] [--fast-png] [--compact-qr] [--metrics out.json] [id...]");
+            System.exit(1);
+        }
+
+        Metrics.registerMBeans();
+        var issuer = new IdIssuer(Path.of("keys"), "Oogle ID Authority");
+        if (fastPng) issuer.setPngCompression(CardRenderer.PngCompression.FAST);
+        if (compactQr) issuer.setQrFormat(IdIssuer.QrFormat.COMPACT);
+
+        Path outDir = out;
+        AtomicLong rendered = new AtomicLong();
+        AtomicLong failed = new AtomicLong();
+        Semaphore inFlight = new Semaphore(threads * 4);
+        ExecutorService pool = Executors.newFixedThreadPool(threads);
+        long start = System.nanoTime();
+        try (IdLedger ledger = IdLedger.open(ledgerDir)) {
+            Consumer<DigitalId> render = d -> {
+                inFlight.acquireUninterruptibly();
+                pool.execute(() -> {
+                    try {
+                        issuer.saveIdImages(d, outDir);
+                        rendered.incrementAndGet();
+                    } catch (Exception e) {
+                        failed.incrementAndGet();
+                        System.err.println("FAILED " + d.id + ": " + e.getMessage());
+                    } finally {
+                        inFlight.release();
+                    }
+                });
+            };
+            if (ids.isEmpty()) {
+                ledger.replay(render);
+            } else {
+                for (String id : ids) {
+                    DigitalId d = ledger.get(id);
+                    if (d != null) {
+                        render.accept(d);
+                    } else {
+                        failed.incrementAndGet();
+                        System.err.println("FAILED " + id + ": not in ledger");
+                    }
+                }
+            }
+            pool.shutdown();
+            pool.awaitTermination(Long.MAX_VALUE, TimeUnit.NANOSECONDS);
+        }
+        long ms = TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start);
+        System.out.println(String.format(Locale.ROOT, "rendered=%d failed=%d elapsed=%dms throughput=%.1f/s",
+                rendered.get(), failed.get(), ms, ms == 0 ? rendered.get() : rendered.get() * 1000.0 / ms));
+        if (metrics != null) Metrics.dump(metrics);
+        System.exit(failed.get() == 0 ? 0 : 2);
+    }
+}
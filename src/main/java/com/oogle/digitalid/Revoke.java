@@ -0,0 +1,42 @@
+package com.oogle.digitalid;
+
+import com.oogle.digitalid.model.DigitalId;
+import com.oogle.digitalid.service.IdIssuer;
+import com.oogle.digitalid.service.RevocationList;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+
+public class Revoke {
+    public static void main(String[] args) throws Exception {
+        Path statusList = Path.of("status", "revocations.bin");
+        List<Path> ids = new ArrayList<>();
+        for (int i = 0; i < args.length; i++) {
+            if (args[i].equals("--status-list") && i + 1 < args.length) statusList = Path.of(args[++i]);
+            else ids.add(Path.of(args[i]));
+        }
+        if (ids.isEmpty()) {
+            System.err.println("Usage: java -cp build/libs/digital-id-gui-*.jar com.oogle.digitalid.Revoke"
+                    + " [--status-list file] <ID.did.json>...");
+            System.exit(1);
+        }
+
+        var issuer = new IdIssuer(Path.of("keys"), "Oogle ID Authority");
+        int failed = 0;
+        try (RevocationList list = RevocationList.open(statusList)) {
+            issuer.setRevocationList(list);
+            for (Path p : ids) {
+                try {
+                    DigitalId d = IdIssuer.readId(Files.readString(p));
+                    boolean changed = issuer.revoke(d);
+                    System.out.println((changed ? "REVOKED " : "ALREADY REVOKED ") + d.id);
+                } catch (Exception e) {
+                    failed++;
+                    System.err.println("FAILED " + p + ": " + e.getMessage());
+                }
+            }
+        }
+        System.exit(failed == 0 ? 0 : 2);
+    }
+}
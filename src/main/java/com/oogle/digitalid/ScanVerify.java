@@ -0,0 +1,61 @@
+package com.oogle.digitalid;
+
+import com.oogle.digitalid.crypto.TrustStore;
+import com.oogle.digitalid.metrics.Metrics;
+import com.oogle.digitalid.service.IdVerifier;
+import com.oogle.digitalid.service.ImageVerifier;
+import com.oogle.digitalid.service.RevocationList;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+
+/** Verifies IDs from QR/card images and photos; prints a JSON summary with per-stage throughput. */
+public class ScanVerify {
+    public static void main(String[] args) throws Exception {
+        int threads = Runtime.getRuntime().availableProcessors();
+        int maxDim = 1024;
+        long maxPixels = 50_000_000;
+        boolean quiet = false;
+        Path statusList = null;
+        Path trust = null;
+        Path metrics = null;
+        List<String> inputs = new ArrayList<>();
+        try {
+            for (int i = 0; i < args.length; i++) {
+                switch (args[i]) {
+                    case "--threads" -> threads = Integer.parseInt(args[++i]);
+                    case "--max-dim" -> maxDim = Integer.parseInt(args[++i]);
+                    case "--max-pixels" -> maxPixels = Long.parseLong(args[++i]);
+                    case "--quiet" -> quiet = true;
+                    case "--status-list" -> statusList = Path.of(args[++i]);
+                    case "--trust" -> trust = Path.of(args[++i]);
+                    case "--metrics" -> metrics = Path.of(args[++i]);
+                    default -> inputs.add(args[i]);
+                }
+            }
+        } catch (RuntimeException e) {
+            inputs.clear();
+        }
+        if (inputs.isEmpty()) {
+            System.err.println("Usage: java -cp build/libs/digital-id-gui-*.jar com.oogle.digitalid.ScanVerify"
+                    + " [--threads n] [--max-dim px] [--max-pixels n] [--quiet] [--status-list file] [--trust dir|jwks.json] [--metrics out.json]"
+                    + " <image | dir | 'glob' | - (paths on stdin)>...");
+            System.exit(1);
+        }
+
+        Metrics.registerMBeans();
+        var verifier = new IdVerifier(Path.of("keys"), "Oogle ID Authority");
+        if (statusList != null) verifier.setRevocationList(RevocationList.openReadOnly(statusList));
+        if (trust != null) verifier.setTrustStore(TrustStore.open(trust));
+        ImageVerifier scanner = new ImageVerifier(verifier, threads);
+        scanner.setMaxDimension(maxDim);
+        scanner.setMaxPixels(maxPixels);
+        ImageVerifier.Summary summary = scanner.run(inputs);
+        if (metrics != null) Metrics.dump(metrics);
+        if (!quiet) {
+            for (ImageVerifier.Failure f : summary.failures) System.err.println(f);
+        }
+        System.out.println(summary.toJson());
+        System.exit(summary.images > 0 && summary.invalid() == 0 ? 0 : 2);
+    }
+}
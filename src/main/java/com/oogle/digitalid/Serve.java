@@ -0,0 +1,56 @@
+package com.oogle.digitalid;
+
+import com.oogle.digitalid.crypto.TrustStore;
+import com.oogle.digitalid.metrics.Metrics;
+import com.oogle.digitalid.service.IdVerifier;
+import com.oogle.digitalid.service.RevocationList;
+import com.oogle.digitalid.service.VerificationCache;
+import com.oogle.digitalid.service.VerificationServer;
+import java.net.InetSocketAddress;
+import java.nio.file.Path;
+
+public class Serve {
+    public static void main(String[] args) throws Exception {
+        String host = "0.0.0.0";
+        int port = 8080;
+        int cacheSize = 100_000;
+        Path statusList = null;
+        Path trust = null;
+        boolean publicStats = false;
+        try {
+            for (int i = 0; i < args.length; i++) {
+                switch (args[i]) {
+                    case "--host" -> host = args[++i];
+                    case "--port" -> port = Integer.parseInt(args[++i]);
+                    case "--cache" -> cacheSize = Integer.parseInt(args[++i]);
+                    case "--status-list" -> statusList = Path.of(args[++i]);
+                    case "--trust" -> trust = Path.of(args[++i]);
+                    case "--public-stats" -> publicStats = true;
+                    default -> throw new IllegalArgumentException(args[i]);
+                }
+            }
+        } catch (RuntimeException e) {
+            System.err.println("Usage: java -cp build/libs/digital-id-gui-*.jar com.oogle.digitalid.Serve"
+                    + " [--host addr] [--port n] [--cache entries (0 = off)] [--status-list file] [--trust dir|jwks.json] [--public-stats]");
+            System.exit(1);
+        }
+
+        Metrics.registerMBeans();
+        var verifier = new IdVerifier(Path.of("keys"), "Oogle ID Authority");
+        if (cacheSize > 0) verifier.setVerificationCache(new VerificationCache(cacheSize));
+        if (statusList != null) verifier.setRevocationList(RevocationList.openReadOnly(statusList));
+        // fail fast on a missing key rather than on the first request
+        if (trust != null) {
+            verifier.setTrustStore(TrustStore.open(trust));
+            System.out.println("Trusting " + verifier.trustStore().size() + " issuer keys from " + trust);
+        } else {
+            verifier.keys().publicKey(null);
+        }
+
+        var server = new VerificationServer(verifier, new InetSocketAddress(host, port));
+        server.setPublicStats(publicStats);
+        server.start();
+        Runtime.getRuntime().addShutdownHook(new Thread(server::close));
+        System.out.println("Verification server listening on http://" + host + ":" + server.port() + "/verify");
+    }
+}
@@ -0,0 +1,495 @@
+package com.oogle.digitalid;
+
+import com.google.gson.GsonBuilder;
+import com.google.gson.JsonArray;
+import com.google.gson.JsonElement;
+import com.google.gson.JsonObject;
+import com.google.gson.JsonParser;
+import com.oogle.digitalid.crypto.SignatureSuite;
+import com.oogle.digitalid.metrics.LatencyHistogram;
+import com.oogle.digitalid.model.DigitalId;
+import com.oogle.digitalid.model.IssueRequest;
+import com.oogle.digitalid.service.IdIssuer;
+import com.oogle.digitalid.util.SyntheticIdentities;
+import com.sun.management.GarbageCollectionNotificationInfo;
+import java.io.IOException;
+import java.lang.management.GarbageCollectorMXBean;
+import java.lang.management.ManagementFactory;
+import java.lang.management.MemoryPoolMXBean;
+import java.lang.management.MemoryType;
+import java.lang.management.MemoryUsage;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.LockSupport;
+import javax.management.NotificationEmitter;
+import javax.management.openmbean.CompositeData;
+
+/**
+ * Load and soak test for issuance: each operation issues a synthetic identity, writes it with
+ * {@code saveIdFiles} (or only its JSON), verifies the file it wrote and deletes it.
+ * <p>
+ * Closed loop ({@code --rate 0}) runs each of {@code --threads} workers flat out. With a target
+ * rate, operations are scheduled at fixed intervals and their total latency is measured from
+ * when they were due, so a stall shows up as the queueing delay it causes rather than as fewer
+ * samples. Every {@code --interval} a line of throughput, latency, GC and post-GC heap goes to
+ * stderr; the final report is JSON on stdout, optionally checked against a previous report.
+ */
+public class SoakTest {
+    private static final String[] STAGES = {"issue", "save", "verify", "total"};
+
+    public static void main(String[] args) throws Exception {
+        int threads = Runtime.getRuntime().availableProcessors();
+        boolean virtual = false;
+        double rate = 0;
+        long durationSec = 60;
+        long warmupSec = 10;
+        long intervalSec = 60;
+        boolean jsonOnly = false;
+        boolean keep = false;
+        long seed = 42;
+        SignatureSuite alg = SignatureSuite.EdDSA;
+        Path out = null;
+        Path report = null;
+        Path baseline = null;
+        double tolerance = 0.10;
+        try {
+            for (int i = 0; i < args.length; i++) {
+                switch (args[i]) {
+                    case "--threads" -> threads = Integer.parseInt(args[++i]);
+                    case "--virtual" -> virtual = true;
+                    case "--rate" -> rate = Double.parseDouble(args[++i]);
+                    case "--duration" -> durationSec = seconds(args[++i]);
+                    case "--warmup" -> warmupSec = seconds(args[++i]);
+                    case "--interval" -> intervalSec = Math.max(1, seconds(args[++i]));
+                    case "--json-only" -> jsonOnly = true;
+                    case "--keep" -> keep = true;
+                    case "--seed" -> seed = Long.parseLong(args[++i]);
+                    case "--alg" -> alg = SignatureSuite.parse(args[++i]);
+                    case "--out" -> out = Path.of(args[++i]);
+                    case "--report" -> report = Path.of(args[++i]);
+                    case "--baseline" -> baseline = Path.of(args[++i]);
+                    case "--tolerance" -> tolerance = Double.parseDouble(args[++i]);
+                    default -> throw new IllegalArgumentException(args[i]);
+                }
+            }
+            if (threads < 1 || rate < 0) throw new IllegalArgumentException();
+        } catch (RuntimeException e) {
+            System.err.println("Usage: java -cp build/libs/digital-id-gui-*.jar com.oogle.digitalid.SoakTest"
+                    + " [--threads n] [--virtual] [--rate ops/s (0 = closed loop)] [--duration 30s|90m|8h] [--warmup t] [--interval t]"
+                    + " [--json-only] [--out dir] [--keep] [--seed n] [--alg RS256|ES256|EdDSA]"
+                    + " [--report out.json] [--baseline old.json] [--tolerance 0.10]");
+            System.exit(1);
+        }
+
+        var issuer = new IdIssuer(Path.of("keys"), "Oogle ID Authority", null, alg);
+        Path outDir = out != null ? Files.createDirectories(out) : Files.createTempDirectory("soak");
+        SoakTest test = new SoakTest(issuer, outDir, threads, virtual, rate, jsonOnly, keep, new SyntheticIdentities(seed));
+        GcMonitor gc = new GcMonitor();
+
+        if (warmupSec > 0) {
+            System.err.println("Warming up for " + warmupSec + " s");
+            test.run(warmupSec, 0, null, gc);
+        }
+        test.reset();
+        gc.reset();
+        JsonObject result = test.run(durationSec, intervalSec, System.err, gc);
+
+        JsonObject config = new JsonObject();
+        config.addProperty("threads", threads);
+        config.addProperty("virtualThreads", virtual);
+        config.addProperty("mode", rate > 0 ? "rate" : "closed");
+        if (rate > 0) config.addProperty("targetRate", rate);
+        config.addProperty("durationSec", durationSec);
+        config.addProperty("warmupSec", warmupSec);
+        config.addProperty("files", jsonOnly ? "json" : "json+png");
+        config.addProperty("alg", issuer.keys().current(alg).suite.jwsAlg);
+        config.addProperty("seed", seed);
+        config.addProperty("java", Runtime.version().toString());
+        config.addProperty("cpus", Runtime.getRuntime().availableProcessors());
+        config.addProperty("maxHeapMb", Runtime.getRuntime().maxMemory() >> 20);
+        config.addProperty("gc", gc.collectorNames());
+        JsonObject o = new JsonObject();
+        o.add("config", config);
+        result.entrySet().forEach(e -> o.add(e.getKey(), e.getValue()));
+
+        boolean regressed = false;
+        if (baseline != null) {
+            JsonObject base = JsonParser.parseString(Files.readString(baseline)).getAsJsonObject();
+            JsonObject cmp = compare(base, o, tolerance);
+            o.add("comparison", cmp);
+            regressed = cmp.getAsJsonArray("regressions").size() > 0;
+        }
+        if (!keep && out == null) {
+            try {
+                Files.deleteIfExists(outDir);
+            } catch (IOException e) {
+                // files of failed operations are left for inspection
+            }
+        }
+        System.out.println(o);
+        if (report != null) Files.writeString(report, new GsonBuilder().setPrettyPrinting().create().toJson(o));
+        System.exit(o.get("errors").getAsLong() == 0 && !regressed ? 0 : 2);
+    }
+
+    private final IdIssuer issuer;
+    private final Path outDir;
+    private final int threads;
+    private final boolean virtual;
+    private final double rate;
+    private final boolean jsonOnly;
+    private final boolean keep;
+    private final SyntheticIdentities identities;
+    private final LatencyHistogram[] stages = new LatencyHistogram[STAGES.length];
+    private final AtomicReference<LatencyHistogram> interval = new AtomicReference<>(new LatencyHistogram());
+    private final LongAdder errors = new LongAdder();
+    private final AtomicReference<String> firstError = new AtomicReference<>();
+
+    SoakTest(IdIssuer issuer, Path outDir, int threads, boolean virtual, double rate, boolean jsonOnly, boolean keep,
+             SyntheticIdentities identities) {
+        this.issuer = issuer;
+        this.outDir = outDir;
+        this.threads = threads;
+        this.virtual = virtual;
+        this.rate = rate;
+        this.jsonOnly = jsonOnly;
+        this.keep = keep;
+        this.identities = identities;
+        reset();
+    }
+
+    void reset() {
+        for (int i = 0; i < stages.length; i++) stages[i] = new LatencyHistogram();
+        interval.set(new LatencyHistogram());
+        errors.reset();
+        firstError.set(null);
+    }
+
+    /** Runs for {@code seconds}, reporting every {@code intervalSec} to {@code log} (if not null). */
+    JsonObject run(long seconds, long intervalSec, Appendable log, GcMonitor gc) throws Exception {
+        long start = System.nanoTime();
+        long end = start + TimeUnit.SECONDS.toNanos(seconds);
+        long period = rate > 0 ? (long) (1e9 / rate) : 0;
+        AtomicLong tickets = new AtomicLong();
+        List<SyntheticIdentities> gens = new ArrayList<>();
+        for (int w = 0; w < threads; w++) gens.add(identities.split());
+
+        JsonArray intervals = new JsonArray();
+        List<double[]> heapSeries = new ArrayList<>(); // {hours since start, MB after GC}
+        ExecutorService pool = virtual ? Executors.newVirtualThreadPerTaskExecutor() : Executors.newFixedThreadPool(threads);
+        try {
+            for (int w = 0; w < threads; w++) {
+                SyntheticIdentities gen = gens.get(w);
+                pool.execute(() -> {
+                    while (true) {
+                        long due;
+                        if (period > 0) {
+                            due = start + tickets.getAndIncrement() * period;
+                            if (due >= end) return;
+                            long wait;
+                            while ((wait = due - System.nanoTime()) > 0) LockSupport.parkNanos(wait);
+                        } else {
+                            due = System.nanoTime();
+                        }
+                        // a backlog left at the end is reported as missed, not worked off
+                        if (System.nanoTime() >= end) return;
+                        operation(gen.next(), due);
+                    }
+                });
+            }
+            pool.shutdown();
+
+            long next = start + TimeUnit.SECONDS.toNanos(intervalSec);
+            long last = start;
+            gc.interval();
+            while (!pool.awaitTermination(intervalSec > 0 ? Math.max(1, next - System.nanoTime()) : 1_000_000_000L, TimeUnit.NANOSECONDS)) {
+                if (intervalSec <= 0 || System.nanoTime() < next) continue;
+                long now = System.nanoTime();
+                JsonObject line = intervalReport((now - start) / 1e9, (now - last) / 1e9, gc);
+                intervals.add(line);
+                if (line.has("heapAfterGcMb")) heapSeries.add(new double[]{(now - start) / 3.6e12, line.get("heapAfterGcMb").getAsDouble()});
+                if (log != null) log.append(line.toString()).append('\n');
+                last = now;
+                next += TimeUnit.SECONDS.toNanos(intervalSec);
+            }
+        } finally {
+            pool.shutdownNow();
+        }
+        double elapsed = (System.nanoTime() - start) / 1e9;
+
+        JsonObject o = new JsonObject();
+        long ops = stages[3].snapshot().count;
+        o.addProperty("ops", ops);
+        o.addProperty("errors", errors.sum());
+        if (period > 0) o.addProperty("missedOps", Math.max(0, (long) (seconds * rate) - ops - errors.sum()));
+        if (firstError.get() != null) o.addProperty("firstError", firstError.get());
+        o.addProperty("elapsedSec", round(elapsed, 1));
+        o.addProperty("opsPerSec", round(ops / elapsed, 1));
+        JsonObject latency = new JsonObject();
+        for (int i = 0; i < STAGES.length; i++) latency.add(STAGES[i], latencyJson(stages[i].snapshot()));
+        o.add("latency", latency);
+        o.add("gc", gc.toJson(elapsed));
+        o.add("heap", heapJson(heapSeries, gc));
+        o.add("intervals", intervals);
+        return o;
+    }
+
+    private void operation(IssueRequest r, long due) {
+        Path json = null;
+        DigitalId d = null;
+        try {
+            long t0 = System.nanoTime();
+            d = issuer.issue(r.fullName, r.dateOfBirth, r.email, r.phone, r.expiresAt);
+            long t1 = System.nanoTime();
+            json = jsonOnly ? issuer.saveIdJson(d, outDir) : issuer.saveIdFiles(d, outDir);
+            long t2 = System.nanoTime();
+            boolean valid = issuer.verify(json);
+            long t3 = System.nanoTime();
+            if (!valid) throw new IllegalStateException("did not verify: " + r.fullName);
+            stages[0].record(t1 - t0);
+            stages[1].record(t2 - t1);
+            stages[2].record(t3 - t2);
+            stages[3].record(t3 - due);
+            interval.get().record(t3 - due);
+        } catch (Exception e) {
+            errors.increment();
+            firstError.compareAndSet(null, e + " (" + r.fullName + ")");
+        } finally {
+            if (!keep && d != null) delete(d);
+        }
+    }
+
+    private void delete(DigitalId d) {
+        try {
+            Files.deleteIfExists(outDir.resolve(d.id + ".did.json"));
+            Files.deleteIfExists(outDir.resolve(d.id + ".qr.png"));
+            Files.deleteIfExists(outDir.resolve(d.id + ".card.png"));
+        } catch (IOException e) {
+            errors.increment();
+            firstError.compareAndSet(null, e.toString());
+        }
+    }
+
+    private JsonObject intervalReport(double atSec, double lengthSec, GcMonitor gc) {
+        LatencyHistogram.Snapshot s = interval.getAndSet(new LatencyHistogram()).snapshot();
+        JsonObject o = new JsonObject();
+        o.addProperty("atSec", Math.round(atSec));
+        o.addProperty("ops", s.count);
+        o.addProperty("opsPerSec", round(s.count / lengthSec, 1));
+        o.addProperty("p50Ms", ms(s.valueAt(0.50)));
+        o.addProperty("p99Ms", ms(s.valueAt(0.99)));
+        o.addProperty("p999Ms", ms(s.valueAt(0.999)));
+        o.addProperty("maxMs", ms(s.max));
+        o.addProperty("errors", errors.sum());
+        gc.interval().entrySet().forEach(e -> o.add(e.getKey(), e.getValue()));
+        return o;
+    }
+
+    // Growth is the least-squares slope of post-GC heap over the run, so one late full GC doesn't decide it
+    private static JsonObject heapJson(List<double[]> series, GcMonitor gc) {
+        JsonObject o = new JsonObject();
+        long after = gc.heapAfterGc();
+        if (after >= 0) o.addProperty("endAfterGcMb", round(after / 1048576.0, 1));
+        if (!series.isEmpty()) o.addProperty("startAfterGcMb", series.get(0)[1]);
+        if (series.size() >= 3) {
+            double n = series.size(), sx = 0, sy = 0, sxx = 0, sxy = 0;
+            for (double[] p : series) {
+                sx += p[0];
+                sy += p[1];
+                sxx += p[0] * p[0];
+                sxy += p[0] * p[1];
+            }
+            double slope = (n * sxy - sx * sy) / (n * sxx - sx * sx);
+            o.addProperty("growthMbPerHour", round(slope, 2));
+        }
+        o.addProperty("usedMb", round((Runtime.getRuntime().totalMemory() - Runtime.getRuntime().freeMemory()) / 1048576.0, 1));
+        return o;
+    }
+
+    private static JsonObject latencyJson(LatencyHistogram.Snapshot s) {
+        JsonObject o = new JsonObject();
+        o.addProperty("count", s.count);
+        o.addProperty("meanMs", ms(s.mean()));
+        o.addProperty("p50Ms", ms(s.valueAt(0.50)));
+        o.addProperty("p90Ms", ms(s.valueAt(0.90)));
+        o.addProperty("p99Ms", ms(s.valueAt(0.99)));
+        o.addProperty("p999Ms", ms(s.valueAt(0.999)));
+        o.addProperty("maxMs", ms(s.max));
+        return o;
+    }
+
+    /**
+     * Lists what got worse than {@code base} by more than {@code tolerance}: throughput, and the
+     * p99/p999 of each stage, GC pause p99 and heap growth. Other fields are copied for reference.
+     */
+    static JsonObject compare(JsonObject base, JsonObject now, double tolerance) {
+        JsonObject o = new JsonObject();
+        JsonArray regressions = new JsonArray();
+        JsonObject ratios = new JsonObject();
+        check(ratios, regressions, "opsPerSec", base.get("opsPerSec"), now.get("opsPerSec"), tolerance, false);
+        JsonObject bl = base.getAsJsonObject("latency"), nl = now.getAsJsonObject("latency");
+        if (bl != null && nl != null) {
+            for (String stage : STAGES) {
+                if (!bl.has(stage) || !nl.has(stage)) continue;
+                for (String p : new String[]{"p99Ms", "p999Ms"}) {
+                    check(ratios, regressions, stage + "." + p, bl.getAsJsonObject(stage).get(p), nl.getAsJsonObject(stage).get(p), tolerance, true);
+                }
+            }
+        }
+        JsonObject bg = base.getAsJsonObject("gc"), ng = now.getAsJsonObject("gc");
+        if (bg != null && ng != null) {
+            check(ratios, regressions, "gc.pauseP99Ms", bg.get("pauseP99Ms"), ng.get("pauseP99Ms"), tolerance, true);
+            check(ratios, regressions, "gc.timePercent", bg.get("timePercent"), ng.get("timePercent"), tolerance, true);
+        }
+        JsonObject bh = base.getAsJsonObject("heap"), nh = now.getAsJsonObject("heap");
+        if (bh != null && nh != null && nh.has("growthMbPerHour")) {
+            // a flat heap wobbles around zero, so growth is judged in absolute terms: 1 MB/h of slack
+            double b = bh.has("growthMbPerHour") ? bh.get("growthMbPerHour").getAsDouble() : 0;
+            double n = nh.get("growthMbPerHour").getAsDouble();
+            if (n > Math.max(b, 0) * (1 + tolerance) + 1) regressions.add("heap.growthMbPerHour " + b + " -> " + n);
+        }
+        o.addProperty("tolerance", tolerance);
+        // ratios across different setups (say closed loop against a target rate) need a human to read them
+        JsonArray differs = new JsonArray();
+        JsonObject bc = base.getAsJsonObject("config"), nc = now.getAsJsonObject("config");
+        if (bc != null && nc != null) {
+            for (String k : nc.keySet()) {
+                if (!k.equals("seed") && !k.equals("durationSec") && !k.equals("warmupSec") && !nc.get(k).equals(bc.get(k))) differs.add(k);
+            }
+            o.add("baselineConfig", bc);
+        }
+        o.add("configDiffers", differs);
+        o.add("ratios", ratios);
+        o.add("regressions", regressions);
+        return o;
+    }
+
+    private static void check(JsonObject ratios, JsonArray regressions, String name, JsonElement base, JsonElement now,
+                              double tolerance, boolean lowerIsBetter) {
+        if (base == null || now == null) return;
+        double b = base.getAsDouble(), n = now.getAsDouble();
+        if (b <= 0) return;
+        double ratio = n / b;
+        ratios.addProperty(name, round(ratio, 3));
+        boolean worse = lowerIsBetter ? ratio > 1 + tolerance : ratio < 1 - tolerance;
+        if (worse) regressions.add(name + " " + b + " -> " + n);
+    }
+
+    /**
+     * GC pauses and post-GC heap from the collectors' notifications. Concurrent cycles (the
+     * {@code ... Cycles} collectors of ZGC and Shenandoah) are not pauses and only counted.
+     * The JVM reports durations in whole milliseconds.
+     */
+    static final class GcMonitor {
+        private final LatencyHistogram pauses = new LatencyHistogram();
+        private final LongAdder pauseMillis = new LongAdder();
+        private final LongAdder cycles = new LongAdder();
+        private final Set<String> heapPools = new HashSet<>();
+        private final List<String> names = new ArrayList<>();
+        private volatile long heapAfterGc = -1;
+        private long lastPauses;
+        private long lastPauseMillis;
+        private long lastCycles;
+
+        GcMonitor() {
+            for (MemoryPoolMXBean p : ManagementFactory.getMemoryPoolMXBeans()) {
+                if (p.getType() == MemoryType.HEAP) heapPools.add(p.getName());
+            }
+            for (GarbageCollectorMXBean gc : ManagementFactory.getGarbageCollectorMXBeans()) {
+                names.add(gc.getName());
+                if (!(gc instanceof NotificationEmitter emitter)) continue;
+                emitter.addNotificationListener((n, handback) -> {
+                    if (!GarbageCollectionNotificationInfo.GARBAGE_COLLECTION_NOTIFICATION.equals(n.getType())) return;
+                    GarbageCollectionNotificationInfo info = GarbageCollectionNotificationInfo.from((CompositeData) n.getUserData());
+                    if (info.getGcName().endsWith("Cycles")) {
+                        cycles.increment();
+                    } else {
+                        long ms = info.getGcInfo().getDuration();
+                        pauses.record(TimeUnit.MILLISECONDS.toNanos(ms));
+                        pauseMillis.add(ms);
+                    }
+                    long used = 0;
+                    for (Map.Entry<String, MemoryUsage> e : info.getGcInfo().getMemoryUsageAfterGc().entrySet()) {
+                        if (heapPools.contains(e.getKey())) used += e.getValue().getUsed();
+                    }
+                    heapAfterGc = used;
+                }, null, null);
+            }
+        }
+
+        String collectorNames() {
+            return String.join(", ", names);
+        }
+
+        long heapAfterGc() {
+            return heapAfterGc;
+        }
+
+        synchronized void reset() {
+            pauses.reset();
+            pauseMillis.reset();
+            cycles.reset();
+            lastPauses = lastPauseMillis = lastCycles = 0;
+        }
+
+        /** Pauses, pause time and post-GC heap since the last call. */
+        synchronized JsonObject interval() {
+            long p = pauses.snapshot().count, ms = pauseMillis.sum(), c = cycles.sum();
+            JsonObject o = new JsonObject();
+            o.addProperty("gcPauses", p - lastPauses);
+            o.addProperty("gcPauseMs", ms - lastPauseMillis);
+            if (c > 0) o.addProperty("gcCycles", c - lastCycles);
+            long heap = heapAfterGc;
+            if (heap >= 0) o.addProperty("heapAfterGcMb", round(heap / 1048576.0, 1));
+            lastPauses = p;
+            lastPauseMillis = ms;
+            lastCycles = c;
+            return o;
+        }
+
+        JsonObject toJson(double elapsedSec) {
+            LatencyHistogram.Snapshot s = pauses.snapshot();
+            JsonObject o = new JsonObject();
+            o.addProperty("pauses", s.count);
+            o.addProperty("pauseTotalMs", pauseMillis.sum());
+            o.addProperty("pauseP50Ms", ms(s.valueAt(0.50)));
+            o.addProperty("pauseP99Ms", ms(s.valueAt(0.99)));
+            o.addProperty("pauseMaxMs", ms(s.max));
+            o.addProperty("timePercent", round(pauseMillis.sum() / (elapsedSec * 10), 2));
+            if (cycles.sum() > 0) o.addProperty("concurrentCycles", cycles.sum());
+            return o;
+        }
+    }
+
+    // "90" and "90s" are seconds; "m" and "h" suffixes for minutes and hours
+    private static long seconds(String s) {
+        String t = s.trim().toLowerCase(Locale.ROOT);
+        char unit = t.charAt(t.length() - 1);
+        long mult = switch (unit) {
+            case 'h' -> 3600;
+            case 'm' -> 60;
+            default -> 1;
+        };
+        return Long.parseLong(Character.isDigit(unit) ? t : t.substring(0, t.length() - 1)) * mult;
+    }
+
+    private static double ms(double nanos) {
+        return Math.round(nanos / 1e4) / 100.0;
+    }
+
+    private static double round(double v, int places) {
+        double f = Math.pow(10, places);
+        return Math.round(v * f) / f;
+    }
+}
@@ -1,17 +1,70 @@
 package com.oogle.digitalid;
 
-import com.oogle.digitalid.service.IdIssuer;
+import com.oogle.digitalid.crypto.TrustStore;
+import com.oogle.digitalid.metrics.Metrics;
+import com.oogle.digitalid.service.BatchVerifier;
+import com.oogle.digitalid.service.IdVerifier;
+import com.oogle.digitalid.service.RevocationList;
+import java.nio.file.Files;
 import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
 
 public class Verify {
     public static void main(String[] args) throws Exception {
-        if (args.length == 0) {
-            System.err.println("Usage: java -cp build/libs/digital-id-gui-*.jar com.oogle.digitalid.Verify <path/to/ID.did.json>");
+        int threads = Runtime.getRuntime().availableProcessors();
+        boolean quiet = false;
+        Path statusList = null;
+        Path trust = null;
+        Path metrics = null;
+        List<String> inputs = new ArrayList<>();
+        try {
+            for (int i = 0; i < args.length; i++) {
+                switch (args[i]) {
+                    case "--threads" -> threads = Integer.parseInt(args[++i]);
+                    case "--quiet" -> quiet = true;
+                    case "--status-list" -> statusList = i + 1 < args.length ? Path.of(args[++i]) : null;
+                    case "--trust" -> trust = i + 1 < args.length ? Path.of(args[++i]) : null;
+                    case "--metrics" -> metrics = i + 1 < args.length ? Path.of(args[++i]) : null;
+                    default -> inputs.add(args[i]);
+                }
+            }
+            if (threads < 1) throw new IllegalArgumentException("--threads " + threads);
+        } catch (RuntimeException e) {
+            inputs.clear();
+        }
+        if (inputs.isEmpty()) {
+            System.err.println("Usage: java -cp build/libs/digital-id-gui-*.jar com.oogle.digitalid.Verify"
+                    + " [--threads n] [--quiet] [--status-list file] [--trust dir|jwks.json] [--metrics out.json] <ID.did.json | dir | 'glob' | bundle.jsonl>...");
             System.exit(1);
         }
-        var issuer = new IdIssuer(Path.of("keys"), "Oogle ID Authority");
-        boolean ok = issuer.verify(Path.of(args[0]));
-        System.out.println(ok ? "VALID ✅" : "INVALID ❌");
-        System.exit(ok ? 0 : 2);
+        var verifier = new IdVerifier(Path.of("keys"), "Oogle ID Authority");
+        if (statusList != null) verifier.setRevocationList(RevocationList.openReadOnly(statusList));
+        if (trust != null) verifier.setTrustStore(TrustStore.open(trust));
+
+        // One plain file keeps the original human-readable output
+        if (inputs.size() == 1 && isPlainIdFile(inputs.get(0))) {
+            boolean ok = verifier.verify(Path.of(inputs.get(0)));
+            System.out.println(ok ? "VALID ✅" : "INVALID ❌");
+            if (metrics != null) Metrics.dump(metrics);
+            System.exit(ok ? 0 : 2);
+        }
+
+        // only runs long enough to watch in jconsole pay for the MBean server
+        Metrics.registerMBeansAfter(1000);
+        BatchVerifier.Summary summary = new BatchVerifier(verifier, threads).run(inputs);
+        if (metrics != null) Metrics.dump(metrics);
+        if (!quiet) {
+            for (BatchVerifier.Failure f : summary.failures) System.err.println(f);
+            if (summary.invalid() > summary.failures.size()) {
+                System.err.println("... and " + (summary.invalid() - summary.failures.size()) + " more failures");
+            }
+        }
+        System.out.println(summary.toJson());
+        System.exit(summary.records > 0 && summary.invalid() == 0 ? 0 : 2);
+    }
+
+    private static boolean isPlainIdFile(String arg) {
+        return arg.endsWith(".did.json") && arg.indexOf('*') < 0 && arg.indexOf('?') < 0 && !Files.isDirectory(Path.of(arg));
     }
 }
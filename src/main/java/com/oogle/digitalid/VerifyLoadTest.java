@@ -0,0 +1,234 @@
+package com.oogle.digitalid;
+
+import com.google.gson.Gson;
+import com.google.gson.JsonArray;
+import com.google.gson.JsonElement;
+import com.google.gson.JsonObject;
+import com.google.gson.JsonParser;
+import com.google.gson.JsonPrimitive;
+import com.oogle.digitalid.crypto.SignatureSuite;
+import com.oogle.digitalid.model.DigitalId;
+import com.oogle.digitalid.service.IdIssuer;
+import com.oogle.digitalid.service.VerificationCache;
+import com.oogle.digitalid.service.VerificationServer;
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.URI;
+import java.net.URLEncoder;
+import java.net.http.HttpClient;
+import java.net.http.HttpRequest;
+import java.net.http.HttpResponse;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.time.Duration;
+import java.time.ZoneOffset;
+import java.time.ZonedDateTime;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Locale;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Closed-loop load test for {@link VerificationServer}: {@code --concurrency} virtual threads
+ * each send a request, wait for the answer and send the next, over kept-alive connections.
+ * Tokens are issued locally with the keys in {@code keys/}, so the server must trust them;
+ * {@code --embedded} starts a server in this JVM to test against, without a verification cache
+ * unless {@code --cache} is given (the token set is small enough to fit in one). Only answers
+ * that say every credential is valid count as successes. Prints a JSON report.
+ */
+public class VerifyLoadTest {
+    private static final Gson GSON = new Gson();
+
+    private enum Mode { GET, POST, BATCH }
+
+    public static void main(String[] args) throws Exception {
+        String url = null;
+        int concurrency = 64;
+        int durationSec = 30;
+        int warmupSec = 5;
+        int tokens = 1000;
+        int batch = 50;
+        Mode mode = Mode.GET;
+        SignatureSuite alg = SignatureSuite.EdDSA;
+        boolean cache = false;
+        try {
+            for (int i = 0; i < args.length; i++) {
+                switch (args[i]) {
+                    case "--url" -> url = args[++i];
+                    case "--embedded" -> url = null;
+                    case "--concurrency" -> concurrency = Integer.parseInt(args[++i]);
+                    case "--duration" -> durationSec = Integer.parseInt(args[++i]);
+                    case "--warmup" -> warmupSec = Integer.parseInt(args[++i]);
+                    case "--tokens" -> tokens = Integer.parseInt(args[++i]);
+                    case "--batch" -> batch = Integer.parseInt(args[++i]);
+                    case "--mode" -> mode = Mode.valueOf(args[++i].toUpperCase(Locale.ROOT));
+                    case "--alg" -> alg = SignatureSuite.parse(args[++i]);
+                    case "--cache" -> cache = true;
+                    default -> throw new IllegalArgumentException(args[i]);
+                }
+            }
+        } catch (RuntimeException e) {
+            System.err.println("Usage: java -cp build/libs/digital-id-gui-*.jar com.oogle.digitalid.VerifyLoadTest"
+                    + " [--url http://host:port | --embedded] [--mode get|post|batch] [--concurrency n]"
+                    + " [--duration s] [--warmup s] [--tokens n] [--batch n] [--alg RS256|ES256|EdDSA] [--cache]");
+            System.exit(1);
+        }
+
+        var issuer = new IdIssuer(Path.of("keys"), "Oogle ID Authority", null, alg);
+        long expiresAt = ZonedDateTime.now(ZoneOffset.UTC).plusYears(1).toInstant().getEpochSecond();
+        List<DigitalId> ids = new ArrayList<>(tokens);
+        for (int i = 0; i < tokens; i++) {
+            ids.add(issuer.issue("Load Test " + i, "1990-01-01", "load" + i + "@example.com", null, expiresAt));
+        }
+
+        VerificationServer embedded = null;
+        if (url == null) {
+            if (cache) issuer.setVerificationCache(new VerificationCache(100_000));
+            embedded = new VerificationServer(issuer.verifier(), new InetSocketAddress("127.0.0.1", 0)).start();
+            url = "http://127.0.0.1:" + embedded.port();
+        }
+
+        HttpClient client = HttpClient.newBuilder()
+                .version(HttpClient.Version.HTTP_1_1)
+                .executor(Executors.newVirtualThreadPerTaskExecutor())
+                .connectTimeout(Duration.ofSeconds(5))
+                .build();
+        List<HttpRequest> requests = buildRequests(url, mode, ids, batch);
+
+        run(client, requests, concurrency, warmupSec);
+        Result r = run(client, requests, concurrency, durationSec);
+
+        JsonObject o = new JsonObject();
+        o.addProperty("url", url);
+        o.addProperty("mode", mode.name().toLowerCase(Locale.ROOT));
+        o.addProperty("concurrency", concurrency);
+        o.addProperty("durationSec", durationSec);
+        if (embedded != null) o.addProperty("cache", cache); // a remote server's cache isn't ours to know
+        if (mode == Mode.BATCH) o.addProperty("batch", batch);
+        o.addProperty("requests", r.latencies.length);
+        o.addProperty("errors", r.errors);
+        o.addProperty("invalid", r.invalid);
+        o.addProperty("requestsPerSec", Math.round(r.latencies.length / r.seconds));
+        if (mode == Mode.BATCH) o.addProperty("credentialsPerSec", Math.round(r.latencies.length * (double) batch / r.seconds));
+        o.addProperty("p50Ms", percentileMs(r.latencies, 0.50));
+        o.addProperty("p90Ms", percentileMs(r.latencies, 0.90));
+        o.addProperty("p99Ms", percentileMs(r.latencies, 0.99));
+        o.addProperty("p999Ms", percentileMs(r.latencies, 0.999));
+        o.addProperty("maxMs", r.latencies.length == 0 ? 0 : r.latencies[r.latencies.length - 1] / 1e6);
+        System.out.println(o);
+
+        if (embedded != null) embedded.close();
+        System.exit(r.errors == 0 && r.invalid == 0 ? 0 : 2);
+    }
+
+    private static List<HttpRequest> buildRequests(String url, Mode mode, List<DigitalId> ids, int batch) {
+        List<HttpRequest> out = new ArrayList<>();
+        switch (mode) {
+            case GET -> {
+                for (DigitalId d : ids) {
+                    String enc = URLEncoder.encode(d.jwsCompact, StandardCharsets.UTF_8);
+                    out.add(HttpRequest.newBuilder(URI.create(url + "/verify?jws=" + enc)).GET().build());
+                }
+            }
+            case POST -> {
+                for (DigitalId d : ids) {
+                    out.add(post(url + "/verify", GSON.toJson(d)));
+                }
+            }
+            case BATCH -> {
+                for (int i = 0; i < ids.size(); i += batch) {
+                    JsonArray a = new JsonArray();
+                    for (int j = i; j < Math.min(ids.size(), i + batch); j++) a.add(new JsonPrimitive(ids.get(j).jwsCompact));
+                    out.add(post(url + "/verify/batch", a.toString()));
+                }
+            }
+        }
+        return out;
+    }
+
+    private static HttpRequest post(String url, String json) {
+        return HttpRequest.newBuilder(URI.create(url))
+                .header("Content-Type", "application/json")
+                .POST(HttpRequest.BodyPublishers.ofString(json))
+                .build();
+    }
+
+    private record Result(long[] latencies, long errors, long invalid, double seconds) { }
+
+    private static Result run(HttpClient client, List<HttpRequest> requests, int concurrency, int seconds) throws Exception {
+        long start = System.nanoTime();
+        long end = start + TimeUnit.SECONDS.toNanos(seconds);
+        List<Future<long[]>> workers = new ArrayList<>();
+        long[] errors = new long[concurrency];
+        long[] invalid = new long[concurrency];
+        try (ExecutorService pool = Executors.newVirtualThreadPerTaskExecutor()) {
+            for (int w = 0; w < concurrency; w++) {
+                int worker = w;
+                workers.add(pool.submit(() -> {
+                    long[] lat = new long[1024];
+                    int n = 0;
+                    ThreadLocalRandom rnd = ThreadLocalRandom.current();
+                    while (System.nanoTime() < end) {
+                        HttpRequest req = requests.get(rnd.nextInt(requests.size()));
+                        long t0 = System.nanoTime();
+                        try {
+                            HttpResponse<String> resp = client.send(req, HttpResponse.BodyHandlers.ofString());
+                            if (resp.statusCode() != 200) {
+                                errors[worker]++;
+                            } else if (!allValid(resp.body())) {
+                                // a wrong key or a broken verifier must not pass as throughput
+                                invalid[worker]++;
+                            }
+                        } catch (IOException e) {
+                            errors[worker]++;
+                            continue;
+                        }
+                        if (n == lat.length) lat = Arrays.copyOf(lat, n * 2);
+                        lat[n++] = System.nanoTime() - t0;
+                    }
+                    return Arrays.copyOf(lat, n);
+                }));
+            }
+        }
+        double elapsed = (System.nanoTime() - start) / 1e9;
+
+        int total = 0;
+        List<long[]> parts = new ArrayList<>();
+        for (Future<long[]> f : workers) {
+            long[] p = f.get();
+            parts.add(p);
+            total += p.length;
+        }
+        long[] all = new long[total];
+        int pos = 0;
+        for (long[] p : parts) {
+            System.arraycopy(p, 0, all, pos, p.length);
+            pos += p.length;
+        }
+        Arrays.sort(all);
+        return new Result(all, Arrays.stream(errors).sum(), Arrays.stream(invalid).sum(), elapsed);
+    }
+
+    // {"valid": true, ...} for one credential, {"valid": n, "invalid": 0, "results": [...]} for a batch
+    private static boolean allValid(String body) {
+        try {
+            JsonObject o = JsonParser.parseString(body).getAsJsonObject();
+            if (o.has("results")) return o.get("invalid").getAsLong() == 0 && o.get("valid").getAsLong() > 0;
+            JsonElement v = o.get("valid");
+            return v != null && v.isJsonPrimitive() && v.getAsJsonPrimitive().isBoolean() && v.getAsBoolean();
+        } catch (RuntimeException e) {
+            return false;
+        }
+    }
+
+    private static double percentileMs(long[] sorted, double p) {
+        if (sorted.length == 0) return 0;
+        int i = (int) Math.min(sorted.length - 1, Math.ceil(p * sorted.length) - 1);
+        return Math.round(sorted[Math.max(0, i)] / 1e4) / 100.0;
+    }
+}
@@ -0,0 +1,80 @@
+package com.oogle.digitalid;
+
+import com.oogle.digitalid.crypto.TrustStore;
+import com.oogle.digitalid.metrics.Metrics;
+import com.oogle.digitalid.service.IdVerifier;
+import com.oogle.digitalid.service.IndexWatcher;
+import com.oogle.digitalid.service.RevocationList;
+import com.oogle.digitalid.service.VerificationIndex;
+import com.google.gson.JsonObject;
+import java.nio.file.Path;
+import java.time.Instant;
+
+/**
+ * Keeps a verification index of a directory of IDs current, re-verifying only files that change
+ * and reporting each verdict change and expiry on stdout; {@code --audit} answers from the index.
+ */
+public class WatchVerify {
+    public static void main(String[] args) throws Exception {
+        int threads = Runtime.getRuntime().availableProcessors();
+        Path indexFile = Path.of("verify-index.bin");
+        boolean audit = false;
+        boolean once = false;
+        Path statusList = null;
+        Path trust = null;
+        Path dir = null;
+        for (int i = 0; i < args.length; i++) {
+            switch (args[i]) {
+                case "--index" -> indexFile = i + 1 < args.length ? Path.of(args[++i]) : indexFile;
+                case "--threads" -> threads = i + 1 < args.length ? Integer.parseInt(args[++i]) : threads;
+                case "--audit" -> audit = true;
+                case "--once" -> once = true;
+                case "--status-list" -> statusList = i + 1 < args.length ? Path.of(args[++i]) : null;
+                case "--trust" -> trust = i + 1 < args.length ? Path.of(args[++i]) : null;
+                default -> dir = Path.of(args[i]);
+            }
+        }
+        if (dir == null && !audit) {
+            System.err.println("Usage: java -cp build/libs/digital-id-gui-*.jar com.oogle.digitalid.WatchVerify"
+                    + " [--index file] [--threads n] [--status-list file] [--trust dir|jwks.json] [--once] <dir>\n"
+                    + "       java -cp build/libs/digital-id-gui-*.jar com.oogle.digitalid.WatchVerify --audit [--index file] [--status-list file]");
+            System.exit(1);
+        }
+
+        VerificationIndex index = VerificationIndex.open(indexFile);
+        if (audit) {
+            // the watcher sweeps revocations every few seconds; with the list, the audit needn't wait for it
+            RevocationList revocations = statusList == null ? null : RevocationList.openReadOnly(statusList);
+            JsonObject report = index.audit(Instant.now().getEpochSecond(), revocations);
+            System.out.println(report);
+            System.exit(index.size() > 0 && report.get("invalid").getAsLong() == 0 ? 0 : 2);
+        }
+
+        var verifier = new IdVerifier(Path.of("keys"), "Oogle ID Authority");
+        if (statusList != null) verifier.setRevocationList(RevocationList.openReadOnly(statusList));
+        if (trust != null) verifier.setTrustStore(TrustStore.open(trust));
+
+        IndexWatcher watcher = new IndexWatcher(verifier, dir, index, threads);
+        watcher.setOnChange(c -> System.out.println(c));
+        long start = System.nanoTime();
+        int verified = watcher.reconcile();
+        System.err.println("Indexed " + index.size() + " files in " + dir + " (" + verified + " verified, "
+                + (System.nanoTime() - start) / 1_000_000 + " ms)");
+        if (once) {
+            watcher.close();
+            System.exit(0);
+        }
+
+        Metrics.registerMBeans();
+        Thread main = Thread.currentThread();
+        Runtime.getRuntime().addShutdownHook(new Thread(() -> {
+            try {
+                watcher.close();
+                main.join(10_000);
+            } catch (Exception e) {
+                System.err.println("Shutdown: " + e);
+            }
+        }));
+        watcher.run();
+    }
+}
@@ -0,0 +1,144 @@
+package com.oogle.digitalid.crypto;
+
+import com.oogle.digitalid.model.DigitalId;
+
+import java.util.Arrays;
+
+/**
+ * RFC 8785 (JSON Canonicalization Scheme) encoder for the signed fields of a {@link DigitalId}.
+ * <p>
+ * Members are written in JCS order (sorted by UTF-16 code units), strings use the minimal JCS
+ * escapes and raw UTF-8 for everything else, and numbers are integers within the IEEE-754
+ * safe range. Null fields are omitted. Output is built in a buffer sized from the fields, with
+ * no reflection, so it only changes if this class does.
+ */
+public final class CanonicalJson {
+    /** Value of {@code DigitalId.canonicalization} for payloads produced by this class. */
+    public static final String JCS = "JCS";
+
+    private static final long MAX_SAFE_INTEGER = (1L << 53) - 1;
+    private static final byte[] HEX = "0123456789abcdef".getBytes(java.nio.charset.StandardCharsets.US_ASCII);
+
+    private CanonicalJson() { }
+
+    /** Canonical UTF-8 bytes of {@code d}'s signed fields, in an array of exactly the right length. */
+    public static byte[] encode(DigitalId d) {
+        // not a per-thread buffer: virtual threads would never reuse it, and pool threads
+        // would each keep the largest document they ever saw
+        Utf8Buffer buf = new Utf8Buffer(160 + 2 * (length(d.id) + length(d.fullName) + length(d.dateOfBirth)
+                + length(d.email) + length(d.phone) + length(d.issuer)));
+        write(d, buf);
+        return buf.toByteArray();
+    }
+
+    private static int length(String s) {
+        return s == null ? 0 : s.length();
+    }
+
+    /** Appends the canonical form of {@code d}'s signed fields to {@code out}. */
+    public static void write(DigitalId d, Utf8Buffer out) {
+        // Keys are pre-sorted: dateOfBirth < email < expiresAt < fullName < id < issuedAt < issuer < phone < statusIndex < version
+        out.put((byte) '{');
+        boolean first = true;
+        first = member(out, first, "dateOfBirth", d.dateOfBirth);
+        first = member(out, first, "email", d.email);
+        if (d.expiresAt != null) first = member(out, first, "expiresAt", d.expiresAt.longValue());
+        first = member(out, first, "fullName", d.fullName);
+        first = member(out, first, "id", d.id);
+        first = member(out, first, "issuedAt", d.issuedAt);
+        first = member(out, first, "issuer", d.issuer);
+        first = member(out, first, "phone", d.phone);
+        if (d.statusIndex != null) first = member(out, first, "statusIndex", d.statusIndex.longValue());
+        if (d.version != null) member(out, first, "version", d.version.longValue());
+        out.put((byte) '}');
+    }
+
+    private static boolean member(Utf8Buffer out, boolean first, String name, String value) {
+        if (value == null) return first;
+        if (!first) out.put((byte) ',');
+        string(out, name);
+        out.put((byte) ':');
+        string(out, value);
+        return false;
+    }
+
+    private static boolean member(Utf8Buffer out, boolean first, String name, long value) {
+        if (value > MAX_SAFE_INTEGER || value < -MAX_SAFE_INTEGER) {
+            throw new IllegalArgumentException(name + " is outside the JSON safe integer range: " + value);
+        }
+        if (!first) out.put((byte) ',');
+        string(out, name);
+        out.put((byte) ':');
+        out.putAscii(Long.toString(value));
+        return false;
+    }
+
+    private static void string(Utf8Buffer out, String s) {
+        out.put((byte) '"');
+        for (int i = 0, n = s.length(); i < n; i++) {
+            char c = s.charAt(i);
+            if (c < 0x80) {
+                switch (c) {
+                    case '"' -> { out.put((byte) '\\'); out.put((byte) '"'); }
+                    case '\\' -> { out.put((byte) '\\'); out.put((byte) '\\'); }
+                    case '\b' -> { out.put((byte) '\\'); out.put((byte) 'b'); }
+                    case '\f' -> { out.put((byte) '\\'); out.put((byte) 'f'); }
+                    case '\n' -> { out.put((byte) '\\'); out.put((byte) 'n'); }
+                    case '\r' -> { out.put((byte) '\\'); out.put((byte) 'r'); }
+                    case '\t' -> { out.put((byte) '\\'); out.put((byte) 't'); }
+                    default -> {
+                        if (c < 0x20) {
+                            out.put((byte) '\\'); out.put((byte) 'u'); out.put((byte) '0'); out.put((byte) '0');
+                            out.put(HEX[c >> 4]); out.put(HEX[c & 0xF]);
+                        } else {
+                            out.put((byte) c);
+                        }
+                    }
+                }
+            } else if (c < 0x800) {
+                out.put((byte) (0xC0 | (c >> 6)));
+                out.put((byte) (0x80 | (c & 0x3F)));
+            } else if (Character.isHighSurrogate(c) && i + 1 < n && Character.isLowSurrogate(s.charAt(i + 1))) {
+                int cp = Character.toCodePoint(c, s.charAt(++i));
+                out.put((byte) (0xF0 | (cp >> 18)));
+                out.put((byte) (0x80 | ((cp >> 12) & 0x3F)));
+                out.put((byte) (0x80 | ((cp >> 6) & 0x3F)));
+                out.put((byte) (0x80 | (cp & 0x3F)));
+            } else if (Character.isSurrogate(c)) {
+                throw new IllegalArgumentException("Lone surrogate at index " + i + " cannot be canonicalized");
+            } else {
+                out.put((byte) (0xE0 | (c >> 12)));
+                out.put((byte) (0x80 | ((c >> 6) & 0x3F)));
+                out.put((byte) (0x80 | (c & 0x3F)));
+            }
+        }
+        out.put((byte) '"');
+    }
+
+    /** Growable byte buffer, reset and reused between payloads. */
+    public static final class Utf8Buffer {
+        private byte[] buf;
+        private int len;
+
+        public Utf8Buffer(int initialCapacity) {
+            buf = new byte[initialCapacity];
+        }
+
+        public void reset() { len = 0; }
+        public int length() { return len; }
+        public byte[] array() { return buf; }
+
+        public byte[] toByteArray() {
+            return Arrays.copyOf(buf, len);
+        }
+
+        void put(byte b) {
+            if (len == buf.length) buf = Arrays.copyOf(buf, buf.length * 2);
+            buf[len++] = b;
+        }
+
+        void putAscii(String s) {
+            for (int i = 0; i < s.length(); i++) put((byte) s.charAt(i));
+        }
+    }
+}
@@ -2,13 +2,18 @@ package com.oogle.digitalid.crypto;
 
 import com.google.gson.Gson;
 import com.google.gson.GsonBuilder;
+import com.google.gson.JsonObject;
+import com.google.gson.JsonParser;
 import java.nio.charset.StandardCharsets;
 import java.security.*;
-import java.security.spec.*;
 import java.util.Base64;
+import java.util.regex.Pattern;
 
 public final class Crypto {
     private static final Gson GSON = new GsonBuilder().disableHtmlEscaping().create();
+    private static final Pattern PRIVATE_ARMOR = Pattern.compile("-----\\w+ PRIVATE KEY-----");
+    private static final Pattern PUBLIC_ARMOR = Pattern.compile("-----\\w+ PUBLIC KEY-----");
+    private static final Pattern WHITESPACE = Pattern.compile("\\s");
 
     public static String b64Url(byte[] data) {
         return Base64.getUrlEncoder().withoutPadding().encodeToString(data);
@@ -38,74 +43,96 @@ public final class Crypto {
 
     public static PrivateKey privateFromPem(String pem) {
         try {
-            String b64 = pem.replaceAll("-----\\w+ PRIVATE KEY-----", "").replaceAll("\\s", "");
+            String b64 = WHITESPACE.matcher(PRIVATE_ARMOR.matcher(pem).replaceAll("")).replaceAll("");
             byte[] der = Base64.getDecoder().decode(b64);
-            PKCS8EncodedKeySpec spec = new PKCS8EncodedKeySpec(der);
-            return KeyFactory.getInstance("RSA").generatePrivate(spec);
+            return CryptoContext.shared().privateKey(SignatureSuite.keyAlgorithmOf(der), der);
         } catch (Exception e) {
             throw new RuntimeException("Invalid private key PEM", e);
         }
     }
     public static PublicKey publicFromPem(String pem) {
         try {
-            String b64 = pem.replaceAll("-----\\w+ PUBLIC KEY-----", "").replaceAll("\\s", "");
+            String b64 = WHITESPACE.matcher(PUBLIC_ARMOR.matcher(pem).replaceAll("")).replaceAll("");
             byte[] der = Base64.getDecoder().decode(b64);
-            X509EncodedKeySpec spec = new X509EncodedKeySpec(der);
-            return KeyFactory.getInstance("RSA").generatePublic(spec);
+            return CryptoContext.shared().publicKey(SignatureSuite.keyAlgorithmOf(der), der);
         } catch (Exception e) {
             throw new RuntimeException("Invalid public key PEM", e);
         }
     }
 
     public static byte[] sha256(byte[] data) {
-        try {
-            MessageDigest md = MessageDigest.getInstance("SHA-256");
-            return md.digest(data);
-        } catch (GeneralSecurityException e) {
-            throw new RuntimeException(e);
-        }
+        return CryptoContext.shared().digest("SHA-256", data);
     }
 
     public static byte[] signSha256Rsa(byte[] data, PrivateKey privateKey) {
-        try {
-            Signature s = Signature.getInstance("SHA256withRSA");
-            s.initSign(privateKey);
-            s.update(data);
-            return s.sign();
-        } catch (GeneralSecurityException e) {
-            throw new RuntimeException(e);
-        }
+        return CryptoContext.shared().sign("SHA256withRSA", data, privateKey);
     }
 
     public static boolean verifySha256Rsa(byte[] data, byte[] sig, PublicKey publicKey) {
-        try {
-            Signature s = Signature.getInstance("SHA256withRSA");
-            s.initVerify(publicKey);
-            s.update(data);
-            return s.verify(sig);
-        } catch (GeneralSecurityException e) {
-            throw new RuntimeException(e);
-        }
+        return CryptoContext.shared().verify("SHA256withRSA", data, sig, publicKey);
     }
 
     public static String packAsCompactJws(String canonicalPayloadJson, PrivateKey privateKey) {
-        String header = "{\"alg\":\"RS256\",\"typ\":\"JWT\"}";
-        String h = b64Url(header.getBytes(StandardCharsets.UTF_8));
-        String p = b64Url(canonicalPayloadJson.getBytes(StandardCharsets.UTF_8));
+        return packAsCompactJws(canonicalPayloadJson, privateKey, null);
+    }
+
+    public static String packAsCompactJws(String canonicalPayloadJson, PrivateKey privateKey, String kid) {
+        return packAsCompactJws(canonicalPayloadJson.getBytes(StandardCharsets.UTF_8), privateKey, kid);
+    }
+
+    public static String packAsCompactJws(byte[] canonicalPayload, PrivateKey privateKey, String kid) {
+        return packAsCompactJws(canonicalPayload, privateKey, kid, "JWT");
+    }
+
+    public static String packAsCompactJws(byte[] canonicalPayload, PrivateKey privateKey, String kid, String typ) {
+        SignatureSuite suite = SignatureSuite.forKey(privateKey);
+        String h = jwsProtectedHeader(suite, kid, typ);
+        String p = b64Url(canonicalPayload);
         String signingInput = h + "." + p;
-        byte[] sig = signSha256Rsa(signingInput.getBytes(StandardCharsets.UTF_8), privateKey);
+        byte[] sig = suite.sign(signingInput.getBytes(StandardCharsets.UTF_8), privateKey);
         String s = b64Url(sig);
         return signingInput + "." + s;
     }
 
+    /** Encoded protected header as written by {@link #packAsCompactJws}, so a JWS can be rebuilt from its parts. */
+    public static String jwsProtectedHeader(SignatureSuite suite, String kid) {
+        return jwsProtectedHeader(suite, kid, "JWT");
+    }
+
+    public static String jwsProtectedHeader(SignatureSuite suite, String kid, String typ) {
+        String header = kid == null
+                ? "{\"alg\":\"" + suite.jwsAlg + "\",\"typ\":\"" + typ + "\"}"
+                : "{\"alg\":\"" + suite.jwsAlg + "\",\"typ\":\"" + typ + "\",\"kid\":\"" + kid + "\"}";
+        return b64Url(header.getBytes(StandardCharsets.UTF_8));
+    }
+
+    // The header's alg must name the suite of the key we verify with; a token can't pick its own algorithm
     public static boolean verifyCompactJws(String jws, PublicKey publicKey) {
         String[] parts = jws.split("\\.");
         if (parts.length != 3) return false;
+        JsonObject header = jwsHeader(jws);
+        if (header == null || !header.has("alg")) return false;
+        SignatureSuite suite = SignatureSuite.fromJwsAlg(header.get("alg").getAsString());
+        if (suite == null) return false;
         String signingInput = parts[0] + "." + parts[1];
         byte[] sig = b64UrlDecode(parts[2]);
-        return verifySha256Rsa(signingInput.getBytes(StandardCharsets.UTF_8), sig, publicKey);
+        return suite.verify(signingInput.getBytes(StandardCharsets.UTF_8), sig, publicKey);
+    }
+
+    /** Decoded protected header of a compact JWS, or null if it is not valid JSON. */
+    public static JsonObject jwsHeader(String jws) {
+        if (jws == null) return null;
+        int dot = jws.indexOf('.');
+        if (dot <= 0) return null;
+        try {
+            String header = new String(b64UrlDecode(jws.substring(0, dot)), StandardCharsets.UTF_8);
+            return JsonParser.parseString(header).getAsJsonObject();
+        } catch (RuntimeException e) {
+            return null;
+        }
     }
 
+    // Pre-JCS canonical form: Gson field order. Only used to verify IDs issued before CanonicalJson.
     public static String canonicalize(Object obj) {
         return GSON.toJson(obj);
     }
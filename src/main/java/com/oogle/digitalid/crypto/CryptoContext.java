@@ -0,0 +1,127 @@
+package com.oogle.digitalid.crypto;
+
+import java.security.GeneralSecurityException;
+import java.security.Key;
+import java.security.KeyFactory;
+import java.security.MessageDigest;
+import java.security.PrivateKey;
+import java.security.PublicKey;
+import java.security.Signature;
+import java.security.spec.PKCS8EncodedKeySpec;
+import java.security.spec.X509EncodedKeySpec;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Reusable JCA engines for hashing, signing and key parsing. The provider lookup in
+ * {@code getInstance} happens once per pooled engine instead of once per call, and a
+ * {@link Signature} stays initialised for the key it last used, so repeated signing or
+ * verifying with the issuer key skips {@code initSign}/{@code initVerify} as well.
+ * <p>
+ * Safe for concurrent use from platform and virtual threads. {@link Crypto}'s static
+ * methods run on {@link #shared()}.
+ */
+public final class CryptoContext {
+    private static final CryptoContext SHARED = new CryptoContext(256);
+
+    // A Signature plus the key and mode it is currently initialised with
+    private static final class SignatureSlot {
+        final Signature engine;
+        Key key;
+        boolean signing;
+
+        SignatureSlot(Signature engine) {
+            this.engine = engine;
+        }
+    }
+
+    private final int maxSharedPerEngine;
+    private final Map<String, EnginePool<MessageDigest>> digests = new ConcurrentHashMap<>();
+    private final Map<String, EnginePool<SignatureSlot>> signatures = new ConcurrentHashMap<>();
+    private final Map<String, EnginePool<KeyFactory>> keyFactories = new ConcurrentHashMap<>();
+
+    public CryptoContext(int maxSharedPerEngine) {
+        this.maxSharedPerEngine = maxSharedPerEngine;
+    }
+
+    public static CryptoContext shared() {
+        return SHARED;
+    }
+
+    public byte[] digest(String algorithm, byte[] data) {
+        EnginePool<MessageDigest> pool = digests.computeIfAbsent(algorithm,
+                a -> new EnginePool<>(() -> MessageDigest.getInstance(a), maxSharedPerEngine));
+        MessageDigest md = pool.acquire();
+        byte[] out = md.digest(data); // digest() resets the engine
+        pool.release(md);
+        return out;
+    }
+
+    public byte[] sign(String algorithm, byte[] data, PrivateKey key) {
+        EnginePool<SignatureSlot> pool = signaturePool(algorithm);
+        SignatureSlot slot = pool.acquire();
+        try {
+            if (!slot.signing || slot.key != key) {
+                slot.key = null;
+                slot.engine.initSign(key);
+                slot.key = key;
+                slot.signing = true;
+            }
+            slot.engine.update(data);
+            byte[] sig = slot.engine.sign(); // resets to the initSign state
+            pool.release(slot);
+            return sig;
+        } catch (GeneralSecurityException e) {
+            throw new RuntimeException(e);
+        }
+    }
+
+    public boolean verify(String algorithm, byte[] data, byte[] sig, PublicKey key) {
+        EnginePool<SignatureSlot> pool = signaturePool(algorithm);
+        SignatureSlot slot = pool.acquire();
+        try {
+            if (slot.signing || slot.key != key) {
+                slot.key = null;
+                slot.engine.initVerify(key);
+                slot.key = key;
+                slot.signing = false;
+            }
+            slot.engine.update(data);
+            boolean ok = slot.engine.verify(sig); // resets to the initVerify state
+            pool.release(slot);
+            return ok;
+        } catch (GeneralSecurityException e) {
+            throw new RuntimeException(e);
+        }
+    }
+
+    public PrivateKey privateKey(String algorithm, byte[] pkcs8Der) throws GeneralSecurityException {
+        EnginePool<KeyFactory> pool = keyFactoryPool(algorithm);
+        KeyFactory kf = pool.acquire();
+        try {
+            return kf.generatePrivate(new PKCS8EncodedKeySpec(pkcs8Der));
+        } finally {
+            pool.release(kf); // KeyFactory holds no per-call state
+        }
+    }
+
+    public PublicKey publicKey(String algorithm, byte[] x509Der) throws GeneralSecurityException {
+        EnginePool<KeyFactory> pool = keyFactoryPool(algorithm);
+        KeyFactory kf = pool.acquire();
+        try {
+            return kf.generatePublic(new X509EncodedKeySpec(x509Der));
+        } finally {
+            pool.release(kf); // KeyFactory holds no per-call state
+        }
+    }
+
+    private EnginePool<SignatureSlot> signaturePool(String algorithm) {
+        return signatures.computeIfAbsent(algorithm,
+                a -> new EnginePool<>(() -> new SignatureSlot(Signature.getInstance(a)), maxSharedPerEngine));
+    }
+
+    private EnginePool<KeyFactory> keyFactoryPool(String algorithm) {
+        return keyFactories.computeIfAbsent(algorithm,
+                a -> new EnginePool<>(() -> KeyFactory.getInstance(a), maxSharedPerEngine));
+    }
+}
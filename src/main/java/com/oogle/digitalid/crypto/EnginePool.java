@@ -0,0 +1,56 @@
+package com.oogle.digitalid.crypto;
+
+import java.security.GeneralSecurityException;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Recycles JCA engine objects. Platform threads keep one idle instance in a ThreadLocal;
+ * virtual threads are short-lived and numerous, so they borrow from a bounded shared queue
+ * instead of pinning an engine per thread. An instance is handed out to one caller at a
+ * time, so nested or re-entrant use simply gets a second instance.
+ */
+final class EnginePool<T> {
+    interface Factory<T> {
+        T create() throws GeneralSecurityException;
+    }
+
+    private final Factory<T> factory;
+    private final ThreadLocal<T> local = new ThreadLocal<>();
+    private final ConcurrentLinkedQueue<T> shared = new ConcurrentLinkedQueue<>();
+    private final AtomicInteger sharedSize = new AtomicInteger();
+    private final int maxShared;
+
+    EnginePool(Factory<T> factory, int maxShared) {
+        this.factory = factory;
+        this.maxShared = maxShared;
+    }
+
+    T acquire() {
+        T t;
+        if (Thread.currentThread().isVirtual()) {
+            t = shared.poll();
+            if (t != null) sharedSize.decrementAndGet();
+        } else {
+            t = local.get();
+            if (t != null) local.set(null);
+        }
+        if (t != null) return t;
+        try {
+            return factory.create();
+        } catch (GeneralSecurityException e) {
+            throw new RuntimeException(e);
+        }
+    }
+
+    /** Returns an engine in a clean state. Engines that threw mid-operation must not be released. */
+    void release(T t) {
+        if (!Thread.currentThread().isVirtual()) {
+            local.set(t);
+        } else if (sharedSize.incrementAndGet() <= maxShared) {
+            shared.offer(t);
+        } else {
+            sharedSize.decrementAndGet();
+        }
+    }
+}
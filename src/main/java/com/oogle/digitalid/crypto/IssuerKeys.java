@@ -0,0 +1,247 @@
+package com.oogle.digitalid.crypto;
+
+import com.google.gson.JsonObject;
+import com.oogle.digitalid.metrics.Metrics;
+import com.oogle.digitalid.util.Pem;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.attribute.FileTime;
+import java.security.KeyPair;
+import java.security.PrivateKey;
+import java.security.PublicKey;
+import java.util.Map;
+import java.util.Objects;
+import java.util.SortedSet;
+import java.util.TreeSet;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Parsed issuer key material for one key directory, shared by every issuer and verifier
+ * pointing at it. PEM files are read once and re-read only when their mtime/size changes; the files are
+ * stat'ed at most once per {@link #CHECK_INTERVAL_MS}.
+ * <p>
+ * Public keys that have been rotated out stay available for verification, both from memory and from
+ * {@code <keyDir>/retired/*.pem}, so tokens signed before a rotation keep verifying by {@code kid}.
+ * An unknown {@code kid} rescans {@code retired/} at most once per {@link #CHECK_INTERVAL_MS}, so
+ * made-up ones from untrusted tokens can't turn every verification into a directory scan.
+ */
+public final class IssuerKeys {
+    public static final String PRIVATE_FILE = "issuer_private.pem";
+    public static final String PUBLIC_FILE = "issuer_public.pem";
+    public static final String RETIRED_DIR = "retired";
+    static final long CHECK_INTERVAL_MS = 2000;
+
+    private static final Map<Path, IssuerKeys> BY_DIR = new ConcurrentHashMap<>();
+    private static final Metrics.Stage KEY_LOAD = Metrics.stage("keys.load");
+    private static final Metrics.Stage KEY_GENERATE = Metrics.stage("keys.generate");
+
+    /** The signing key in use right now; sign and pack with the same snapshot. {@code privateKey} is null on verify-only nodes. */
+    public static final class Active {
+        public final String kid;
+        public final PrivateKey privateKey;
+        public final PublicKey publicKey;
+        public final SignatureSuite suite;
+        final FileTime privMtime, pubMtime;
+        final long privSize, pubSize;
+
+        Active(String kid, PrivateKey privateKey, PublicKey publicKey,
+               FileTime privMtime, long privSize, FileTime pubMtime, long pubSize) {
+            this.kid = kid;
+            this.privateKey = privateKey;
+            this.publicKey = publicKey;
+            this.suite = SignatureSuite.forKey(publicKey);
+            this.privMtime = privMtime;
+            this.privSize = privSize;
+            this.pubMtime = pubMtime;
+            this.pubSize = pubSize;
+        }
+    }
+
+    private final Path keyDir;
+    private final Map<String, PublicKey> verificationKeys = new ConcurrentHashMap<>();
+    private final AtomicLong generation = new AtomicLong();
+    private volatile Active active;
+    private volatile long nextCheckNanos;
+    private volatile long nextRetiredScanNanos;
+
+    private IssuerKeys(Path keyDir) {
+        this.keyDir = keyDir;
+    }
+
+    public static IssuerKeys forDir(Path keyDir) {
+        return BY_DIR.computeIfAbsent(keyDir.toAbsolutePath().normalize(), IssuerKeys::new);
+    }
+
+    public Path keyDir() { return keyDir; }
+
+    /** Returns the current signing key, generating an RSA keypair on first use if none exists on disk. */
+    public Active current() throws IOException {
+        return current(SignatureSuite.RS256);
+    }
+
+    /** Returns the current signing key, generating a {@code generateAs} keypair if none exists on disk. */
+    public Active current(SignatureSuite generateAs) throws IOException {
+        Active a = active;
+        if (a != null && a.privateKey != null && System.nanoTime() < nextCheckNanos) return a;
+        return refresh(a == null || a.privateKey != null, generateAs, true);
+    }
+
+    /** Public key for {@code kid}, or the current key when {@code kid} is null (pre-rotation tokens). */
+    public PublicKey publicKey(String kid) throws IOException {
+        Active a = active;
+        if (a == null || System.nanoTime() >= nextCheckNanos) a = refresh(true, null, false);
+        if (kid == null || kid.equals(a.kid)) return a.publicKey;
+        PublicKey k = verificationKeys.get(kid);
+        if (k == null && System.nanoTime() >= nextRetiredScanNanos) {
+            // a key may have been retired by another process since our last scan
+            rescanRetired();
+            k = verificationKeys.get(kid);
+        }
+        return k;
+    }
+
+    /** Generates a new keypair of the current key's type, moves the old public key into {@code retired/} and switches to it. */
+    public Active rotate() throws IOException {
+        return rotate(null);
+    }
+
+    /** Like {@link #rotate()} but switching to {@code suite}, e.g. from RS256 to EdDSA; null keeps the current type. */
+    public synchronized Active rotate(SignatureSuite suite) throws IOException {
+        Active old = refresh(true, SignatureSuite.RS256, true);
+        Pem.write(keyDir.resolve(RETIRED_DIR).resolve(old.kid + ".pem"), Crypto.toPemPublic(old.publicKey));
+        KeyPair kp = (suite != null ? suite : old.suite).generateKeyPair();
+        Pem.write(keyDir.resolve(PRIVATE_FILE), Crypto.toPemPrivate(kp.getPrivate()));
+        Pem.write(keyDir.resolve(PUBLIC_FILE), Crypto.toPemPublic(kp.getPublic()));
+        verificationKeys.put(old.kid, old.publicKey);
+        active = null;
+        return refresh(false, old.suite, true);
+    }
+
+    /**
+     * Counter bumped whenever the signing key changes or another verification key is loaded.
+     * Anything derived from the key set, like cached verdicts, is stale once this moves on.
+     */
+    public long generation() throws IOException {
+        if (active == null || System.nanoTime() >= nextCheckNanos) refresh(true, null, false);
+        return generation.get();
+    }
+
+    /** Key ids of every key verification can pick right now, sorted; unlike {@link #generation} it is the same after a restart. */
+    public SortedSet<String> kids() throws IOException {
+        if (active == null || System.nanoTime() >= nextCheckNanos) refresh(true, null, false);
+        if (System.nanoTime() >= nextRetiredScanNanos) rescanRetired();
+        return new TreeSet<>(verificationKeys.keySet());
+    }
+
+    /** Forces the next {@link #current()} to re-check the files. */
+    public void invalidate() {
+        nextCheckNanos = 0;
+    }
+
+    /**
+     * Re-reads the PEM files if they changed. Verification alone passes {@code withPrivate} false,
+     * so a verifier never parses, or probes, the private key; once one is loaded it is kept current.
+     */
+    private synchronized Active refresh(boolean allowCached, SignatureSuite generateAs, boolean withPrivate) throws IOException {
+        Active a = active;
+        if (allowCached && a != null && System.nanoTime() < nextCheckNanos) return a;
+
+        Path priv = keyDir.resolve(PRIVATE_FILE);
+        Path pub = keyDir.resolve(PUBLIC_FILE);
+        if (generateAs != null && (!Files.exists(priv) || !Files.exists(pub))) {
+            long t = Metrics.start();
+            KeyPair kp = generateAs.generateKeyPair();
+            Pem.write(priv, Crypto.toPemPrivate(kp.getPrivate()));
+            Pem.write(pub, Crypto.toPemPublic(kp.getPublic()));
+            KEY_GENERATE.stop(t);
+            System.out.println("Generated issuer keypair at: " + keyDir.toAbsolutePath());
+        }
+
+        try {
+            // verify-only nodes may hold just the public key
+            boolean hasPriv = (withPrivate || (a != null && a.privateKey != null)) && Files.exists(priv);
+            FileTime privMtime = hasPriv ? Files.getLastModifiedTime(priv) : null;
+            long privSize = hasPriv ? Files.size(priv) : -1;
+            FileTime pubMtime = Files.getLastModifiedTime(pub);
+            long pubSize = Files.size(pub);
+            if (a == null || !Objects.equals(privMtime, a.privMtime) || !pubMtime.equals(a.pubMtime)
+                    || privSize != a.privSize || pubSize != a.pubSize) {
+                long t = Metrics.start();
+                PrivateKey privateKey = hasPriv ? Crypto.privateFromPem(Pem.read(priv)) : null;
+                PublicKey publicKey = Crypto.publicFromPem(Pem.read(pub));
+                if (privateKey != null && !matches(privateKey, publicKey)) {
+                    // caught between the two file writes of a rotation; try again at the next check
+                    if (a == null) throw new IOException("Issuer private and public key do not match in " + keyDir);
+                } else {
+                    String kid = kidOf(publicKey);
+                    if (a != null && !a.kid.equals(kid)) verificationKeys.put(a.kid, a.publicKey);
+                    verificationKeys.put(kid, publicKey);
+                    if (a == null) loadRetired();
+                    a = new Active(kid, privateKey, publicKey, privMtime, privSize, pubMtime, pubSize);
+                    active = a;
+                    generation.incrementAndGet();
+                    KEY_LOAD.stop(t);
+                }
+            }
+        } catch (NoSuchFileException e) {
+            // mid-rotation by another process; keep serving the last good key if we have one
+            if (a == null) throw e;
+        } catch (RuntimeException e) {
+            // a PEM written in place by some other tool and read half-done; likewise
+            if (a == null) throw new IOException("Unreadable issuer key in " + keyDir + ": " + e.getMessage(), e);
+        }
+        nextCheckNanos = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(CHECK_INTERVAL_MS);
+        return a;
+    }
+
+    private static boolean matches(PrivateKey privateKey, PublicKey publicKey) {
+        SignatureSuite suite = SignatureSuite.forKey(privateKey);
+        byte[] probe = "issuer-key-probe".getBytes(StandardCharsets.UTF_8);
+        return suite.verify(probe, suite.sign(probe, privateKey), publicKey);
+    }
+
+    private synchronized void rescanRetired() throws IOException {
+        // whoever got the lock first has just scanned
+        if (System.nanoTime() >= nextRetiredScanNanos) loadRetired();
+    }
+
+    private void loadRetired() throws IOException {
+        nextRetiredScanNanos = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(CHECK_INTERVAL_MS);
+        Path dir = keyDir.resolve(RETIRED_DIR);
+        if (!Files.isDirectory(dir)) return;
+        try (DirectoryStream<Path> ds = Files.newDirectoryStream(dir, "*.pem")) {
+            for (Path p : ds) {
+                PublicKey k;
+                try {
+                    k = Crypto.publicFromPem(Pem.read(p));
+                } catch (RuntimeException e) {
+                    continue; // not a key, or one still being written; the next scan will see it
+                }
+                if (verificationKeys.putIfAbsent(kidOf(k), k) == null) generation.incrementAndGet();
+            }
+        }
+    }
+
+    /** Key id: first 16 chars of the base64url SHA-256 of the SubjectPublicKeyInfo. */
+    public static String kidOf(PublicKey publicKey) {
+        return Crypto.b64Url(Crypto.sha256(publicKey.getEncoded())).substring(0, 16);
+    }
+
+    /** Reads the {@code kid} from a compact JWS header, or null if absent or malformed. */
+    public static String kidOfJws(String jws) {
+        JsonObject header = Crypto.jwsHeader(jws);
+        if (header == null || !header.has("kid")) return null;
+        try {
+            return header.get("kid").getAsString();
+        } catch (RuntimeException e) {
+            return null;
+        }
+    }
+}
@@ -0,0 +1,131 @@
+package com.oogle.digitalid.crypto;
+
+import java.security.GeneralSecurityException;
+import java.security.Key;
+import java.security.KeyPair;
+import java.security.KeyPairGenerator;
+import java.security.PrivateKey;
+import java.security.PublicKey;
+import java.security.spec.ECGenParameterSpec;
+
+/**
+ * The signature algorithms an issuer can sign with. Each suite knows its JWS {@code alg},
+ * the value stored in {@code DigitalId.signatureAlg}, and the JCA names behind them.
+ * The suite for a key is implied by the key type, so issuers switch algorithm by switching key.
+ */
+public enum SignatureSuite {
+    RS256("RS256", -257, "SHA256withRSA", "SHA256withRSA", "RSA"),
+    // P1363 (raw r||s) encoding, as JWS and COSE require, rather than the JCA default DER
+    ES256("ES256", -7, "SHA256withECDSA", "SHA256withECDSAinP1363Format", "EC"),
+    EdDSA("EdDSA", -8, "Ed25519", "Ed25519", "Ed25519");
+
+    // AlgorithmIdentifier OIDs as they appear DER-encoded in SPKI / PKCS#8 key blobs
+    private static final byte[] OID_RSA = {0x06, 0x09, 0x2A, (byte) 0x86, 0x48, (byte) 0x86, (byte) 0xF7, 0x0D, 0x01, 0x01, 0x01};
+    private static final byte[] OID_EC = {0x06, 0x07, 0x2A, (byte) 0x86, 0x48, (byte) 0xCE, 0x3D, 0x02, 0x01};
+    private static final byte[] OID_ED25519 = {0x06, 0x03, 0x2B, 0x65, 0x70};
+
+    public final String jwsAlg;
+    public final int coseAlg;
+    public final String signatureAlg;
+    final String jcaSignature;
+    final String keyAlgorithm;
+
+    SignatureSuite(String jwsAlg, int coseAlg, String signatureAlg, String jcaSignature, String keyAlgorithm) {
+        this.jwsAlg = jwsAlg;
+        this.coseAlg = coseAlg;
+        this.signatureAlg = signatureAlg;
+        this.jcaSignature = jcaSignature;
+        this.keyAlgorithm = keyAlgorithm;
+    }
+
+    public byte[] sign(byte[] data, PrivateKey key) {
+        return CryptoContext.shared().sign(jcaSignature, data, key);
+    }
+
+    public boolean verify(byte[] data, byte[] sig, PublicKey key) {
+        if (!accepts(key)) return false;
+        return CryptoContext.shared().verify(jcaSignature, data, sig, key);
+    }
+
+    public KeyPair generateKeyPair() {
+        try {
+            KeyPairGenerator kpg = KeyPairGenerator.getInstance(keyAlgorithm);
+            switch (this) {
+                case RS256 -> kpg.initialize(2048);
+                case ES256 -> kpg.initialize(new ECGenParameterSpec("secp256r1"));
+                case EdDSA -> { }
+            }
+            return kpg.generateKeyPair();
+        } catch (GeneralSecurityException e) {
+            throw new RuntimeException(e);
+        }
+    }
+
+    /** Whether {@code key} is of the type this suite signs with. Guards against alg-substitution. */
+    public boolean accepts(Key key) {
+        return key != null && forKey(key) == this;
+    }
+
+    public static SignatureSuite forKey(Key key) {
+        return switch (key.getAlgorithm()) {
+            case "RSA" -> RS256;
+            case "EC" -> ES256;
+            case "EdDSA", "Ed25519" -> EdDSA;
+            default -> throw new IllegalArgumentException("Unsupported key algorithm: " + key.getAlgorithm());
+        };
+    }
+
+    /** Suite for a JWS {@code alg} header value, or null if unsupported. */
+    public static SignatureSuite fromJwsAlg(String alg) {
+        for (SignatureSuite s : values()) {
+            if (s.jwsAlg.equals(alg)) return s;
+        }
+        return null;
+    }
+
+    /** Suite for a COSE algorithm identifier, or null if unsupported. */
+    public static SignatureSuite fromCoseAlg(long alg) {
+        for (SignatureSuite s : values()) {
+            if (s.coseAlg == alg) return s;
+        }
+        return null;
+    }
+
+    /** Suite for {@code DigitalId.signatureAlg}; files without one predate this and are RSA. */
+    public static SignatureSuite fromSignatureAlg(String alg) {
+        if (alg == null) return RS256;
+        for (SignatureSuite s : values()) {
+            if (s.signatureAlg.equals(alg)) return s;
+        }
+        return null;
+    }
+
+    /** Suite named by {@code name}, accepting either the JWS alg or the signatureAlg spelling. */
+    public static SignatureSuite parse(String name) {
+        SignatureSuite s = fromJwsAlg(name);
+        if (s == null && name != null) s = fromSignatureAlg(name);
+        if (s == null) throw new IllegalArgumentException("Unknown signature algorithm: " + name);
+        return s;
+    }
+
+    /** JCA key algorithm of a DER-encoded SPKI or PKCS#8 key, read from its AlgorithmIdentifier. */
+    static String keyAlgorithmOf(byte[] der) {
+        if (contains(der, OID_RSA)) return RS256.keyAlgorithm;
+        if (contains(der, OID_EC)) return ES256.keyAlgorithm;
+        if (contains(der, OID_ED25519)) return EdDSA.keyAlgorithm;
+        throw new IllegalArgumentException("Unrecognised key algorithm");
+    }
+
+    // The AlgorithmIdentifier sits in the first few dozen bytes of either structure
+    private static boolean contains(byte[] der, byte[] oid) {
+        int end = Math.min(der.length, 40) - oid.length;
+        outer:
+        for (int i = 0; i <= end; i++) {
+            for (int j = 0; j < oid.length; j++) {
+                if (der[i + j] != oid[j]) continue outer;
+            }
+            return true;
+        }
+        return false;
+    }
+}
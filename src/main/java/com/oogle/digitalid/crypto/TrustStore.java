@@ -0,0 +1,284 @@
+package com.oogle.digitalid.crypto;
+
+import com.google.gson.JsonElement;
+import com.google.gson.JsonObject;
+import com.google.gson.JsonParser;
+import com.oogle.digitalid.metrics.Metrics;
+import com.oogle.digitalid.util.Pem;
+
+import java.io.IOException;
+import java.math.BigInteger;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.security.AlgorithmParameters;
+import java.security.GeneralSecurityException;
+import java.security.KeyFactory;
+import java.security.PublicKey;
+import java.security.spec.ECGenParameterSpec;
+import java.security.spec.ECParameterSpec;
+import java.security.spec.ECPoint;
+import java.security.spec.ECPublicKeySpec;
+import java.security.spec.RSAPublicKeySpec;
+import java.security.spec.X509EncodedKeySpec;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Public keys of every issuer a verifier accepts, indexed by {@code kid} and by issuer name.
+ * The source is a directory or a single JWKS file:
+ * <pre>
+ *   trust/Oogle ID Authority/*.pem     one subdirectory per issuer, named as in DigitalId.issuer
+ *   trust/*.pem                        keys accepted for any issuer name
+ *   trust/*.json                       JWKS: {"keys": [{"kty": ..., "kid": ..., "iss": "issuer name"}, ...]}
+ * </pre>
+ * Keys are parsed once into a snapshot of immutable maps, so a lookup is one hash probe. The
+ * source is stat'ed at most once per {@link #CHECK_INTERVAL_MS}; when anything changed, a new
+ * snapshot is built off to the side and swapped in whole, and a source that fails to parse
+ * leaves the previous snapshot in place.
+ */
+public final class TrustStore {
+    static final long CHECK_INTERVAL_MS = 2000;
+    private static final Metrics.Stage TRUST_LOAD = Metrics.stage("trust.load");
+    // SPKI header for a raw 32-byte Ed25519 key
+    private static final byte[] ED25519_SPKI = {0x30, 0x2A, 0x30, 0x05, 0x06, 0x03, 0x2B, 0x65, 0x70, 0x03, 0x21, 0x00};
+
+    /** A trusted key; {@code issuer} is null when the key is accepted for any issuer name. */
+    public static final class Entry {
+        public final String kid;
+        public final String issuer;
+        public final PublicKey publicKey;
+        public final SignatureSuite suite;
+
+        Entry(String kid, String issuer, PublicKey publicKey) {
+            this.kid = kid;
+            this.issuer = issuer;
+            this.publicKey = publicKey;
+            this.suite = SignatureSuite.forKey(publicKey);
+        }
+    }
+
+    private record Snapshot(Map<String, Entry> byKid, Map<String, List<Entry>> byIssuer, String fingerprint, String keySet) { }
+
+    private final Path source;
+    private final AtomicLong generation = new AtomicLong();
+    private volatile Snapshot snapshot;
+    private volatile long nextCheckNanos;
+
+    private TrustStore(Path source) {
+        this.source = source;
+    }
+
+    /** Loads the keys under {@code source}, a directory or a JWKS file. */
+    public static TrustStore open(Path source) throws IOException {
+        TrustStore store = new TrustStore(source);
+        store.reload();
+        return store;
+    }
+
+    public Path source() { return source; }
+
+    /**
+     * Keys that may have signed for {@code issuer} under {@code kid}: the kid's key, provided it is
+     * trusted for {@code issuer}. Without a kid (IDs issued before key ids existed) every key of the
+     * issuer is a candidate, since nothing says which one signed.
+     */
+    public List<PublicKey> publicKeys(String kid, String issuer) {
+        Snapshot s = current();
+        if (kid == null) {
+            List<Entry> keys = issuer == null ? null : s.byIssuer.get(issuer);
+            if (keys == null) return List.of();
+            List<PublicKey> out = new ArrayList<>(keys.size());
+            for (Entry e : keys) out.add(e.publicKey);
+            return out;
+        }
+        Entry e = s.byKid.get(kid);
+        if (e == null || (e.issuer != null && !e.issuer.equals(issuer))) return List.of();
+        return List.of(e.publicKey);
+    }
+
+    /** The entry for {@code kid}, or null. */
+    public Entry entry(String kid) {
+        return current().byKid.get(kid);
+    }
+
+    /** Keys bound to {@code issuer} by name; keys trusted for any issuer are not included. */
+    public List<Entry> entries(String issuer) {
+        return current().byIssuer.getOrDefault(issuer, List.of());
+    }
+
+    public int size() {
+        return current().byKid.size();
+    }
+
+    /** Bumped whenever a reload changes the key set; verdicts cached under an older value are stale. */
+    public long generation() {
+        current();
+        return generation.get();
+    }
+
+    /** Every trusted kid with its key's own kid and issuer, one per line, sorted; the same after a restart. */
+    public String keySet() {
+        return current().keySet;
+    }
+
+    /** Forces the next lookup to re-check the source. */
+    public void invalidate() {
+        nextCheckNanos = 0;
+    }
+
+    /** Re-reads the source now if it changed; returns whether the key set was replaced. */
+    public synchronized boolean reload() throws IOException {
+        Snapshot old = snapshot;
+        List<Path> files = sourceFiles();
+        String fingerprint = fingerprint(files);
+        nextCheckNanos = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(CHECK_INTERVAL_MS);
+        if (old != null && old.fingerprint.equals(fingerprint)) return false;
+
+        long t = Metrics.start();
+        Map<String, Entry> byKid = new HashMap<>();
+        Map<String, List<Entry>> byIssuer = new TreeMap<>();
+        for (Path f : files) {
+            List<Entry> entries;
+            try {
+                entries = f.getFileName().toString().endsWith(".json") ? readJwks(f) : List.of(readPem(f));
+            } catch (RuntimeException e) {
+                throw new IOException("Unreadable trusted key " + f + ": " + e.getMessage(), e);
+            }
+            for (Entry e : entries) {
+                Entry prev = byKid.putIfAbsent(e.kid, e);
+                if (prev != null && !sameIssuer(prev, e)) {
+                    throw new IOException("kid " + e.kid + " is trusted for both " + prev.issuer + " and " + e.issuer);
+                }
+                boolean alias = !e.kid.equals(IssuerKeys.kidOf(e.publicKey));
+                if (prev == null && !alias && e.issuer != null) byIssuer.computeIfAbsent(e.issuer, k -> new ArrayList<>()).add(e);
+            }
+        }
+        Map<String, List<Entry>> frozen = new HashMap<>();
+        byIssuer.forEach((k, v) -> frozen.put(k, List.copyOf(v)));
+        StringBuilder keySet = new StringBuilder();
+        for (Entry e : new TreeMap<>(byKid).values()) {
+            keySet.append(e.kid).append(' ').append(IssuerKeys.kidOf(e.publicKey)).append(' ').append(e.issuer).append('\n');
+        }
+        snapshot = new Snapshot(Map.copyOf(byKid), Map.copyOf(frozen), fingerprint, keySet.toString());
+        generation.incrementAndGet();
+        TRUST_LOAD.stop(t);
+        return true;
+    }
+
+    private Snapshot current() {
+        Snapshot s = snapshot;
+        if (System.nanoTime() < nextCheckNanos) return s;
+        refresh();
+        return snapshot;
+    }
+
+    private synchronized void refresh() {
+        if (System.nanoTime() < nextCheckNanos) return; // another thread just did
+        try {
+            reload();
+        } catch (IOException | RuntimeException e) {
+            // keep verifying with the last good key set; try again after the next interval
+            nextCheckNanos = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(CHECK_INTERVAL_MS);
+            System.err.println("Trust store reload failed, keeping previous keys: " + e.getMessage());
+        }
+    }
+
+    private static boolean sameIssuer(Entry a, Entry b) {
+        return a.issuer == null ? b.issuer == null : a.issuer.equals(b.issuer);
+    }
+
+    // Sorted so the fingerprint, and which file wins a duplicate kid, don't depend on listing order
+    private List<Path> sourceFiles() throws IOException {
+        List<Path> files = new ArrayList<>();
+        if (!Files.isDirectory(source)) {
+            files.add(source);
+            return files;
+        }
+        try (DirectoryStream<Path> ds = Files.newDirectoryStream(source)) {
+            for (Path p : ds) {
+                String name = p.getFileName().toString();
+                if (Files.isDirectory(p)) {
+                    try (DirectoryStream<Path> keys = Files.newDirectoryStream(p, "*.pem")) {
+                        for (Path k : keys) files.add(k);
+                    }
+                } else if (name.endsWith(".pem") || name.endsWith(".json")) {
+                    files.add(p);
+                }
+            }
+        }
+        files.sort(null);
+        return files;
+    }
+
+    private static String fingerprint(List<Path> files) throws IOException {
+        StringBuilder sb = new StringBuilder();
+        for (Path f : files) {
+            sb.append(f).append('|').append(Files.getLastModifiedTime(f).toMillis()).append('|').append(Files.size(f)).append('\n');
+        }
+        return sb.toString();
+    }
+
+    private Entry readPem(Path file) throws IOException {
+        PublicKey key = Crypto.publicFromPem(Pem.read(file));
+        Path dir = file.getParent();
+        String issuer = Files.isDirectory(source) && !dir.equals(source) ? dir.getFileName().toString() : null;
+        return new Entry(IssuerKeys.kidOf(key), issuer, key);
+    }
+
+    private static List<Entry> readJwks(Path file) throws IOException {
+        JsonObject root = JsonParser.parseString(Files.readString(file)).getAsJsonObject();
+        List<Entry> out = new ArrayList<>();
+        for (JsonElement el : root.getAsJsonArray("keys")) {
+            JsonObject jwk = el.getAsJsonObject();
+            if (jwk.has("use") && !"sig".equals(jwk.get("use").getAsString())) continue;
+            PublicKey key = fromJwk(jwk);
+            String issuer = jwk.has("iss") ? jwk.get("iss").getAsString() : null;
+            // our IDs carry IssuerKeys.kidOf; a different JWKS kid is indexed as an alias
+            Entry e = new Entry(IssuerKeys.kidOf(key), issuer, key);
+            out.add(e);
+            if (jwk.has("kid") && !e.kid.equals(jwk.get("kid").getAsString())) out.add(new Entry(jwk.get("kid").getAsString(), issuer, key));
+        }
+        return out;
+    }
+
+    /** Parses an RSA, P-256 or Ed25519 public JWK (RFC 7517 / 8037). */
+    static PublicKey fromJwk(JsonObject jwk) {
+        try {
+            String kty = jwk.get("kty").getAsString();
+            switch (kty) {
+                case "RSA" -> {
+                    return KeyFactory.getInstance("RSA").generatePublic(new RSAPublicKeySpec(uint(jwk, "n"), uint(jwk, "e")));
+                }
+                case "EC" -> {
+                    if (!"P-256".equals(jwk.get("crv").getAsString())) throw new IllegalArgumentException("Unsupported curve");
+                    AlgorithmParameters params = AlgorithmParameters.getInstance("EC");
+                    params.init(new ECGenParameterSpec("secp256r1"));
+                    ECPoint w = new ECPoint(uint(jwk, "x"), uint(jwk, "y"));
+                    return KeyFactory.getInstance("EC").generatePublic(new ECPublicKeySpec(w, params.getParameterSpec(ECParameterSpec.class)));
+                }
+                case "OKP" -> {
+                    if (!"Ed25519".equals(jwk.get("crv").getAsString())) throw new IllegalArgumentException("Unsupported curve");
+                    byte[] x = Crypto.b64UrlDecode(jwk.get("x").getAsString());
+                    if (x.length != 32) throw new IllegalArgumentException("Ed25519 key must be 32 bytes");
+                    byte[] der = new byte[ED25519_SPKI.length + 32];
+                    System.arraycopy(ED25519_SPKI, 0, der, 0, ED25519_SPKI.length);
+                    System.arraycopy(x, 0, der, ED25519_SPKI.length, 32);
+                    return KeyFactory.getInstance("Ed25519").generatePublic(new X509EncodedKeySpec(der));
+                }
+                default -> throw new IllegalArgumentException("Unsupported key type " + kty);
+            }
+        } catch (GeneralSecurityException e) {
+            throw new IllegalArgumentException("Invalid JWK: " + e.getMessage(), e);
+        }
+    }
+
+    private static BigInteger uint(JsonObject jwk, String member) {
+        return new BigInteger(1, Crypto.b64UrlDecode(jwk.get(member).getAsString()));
+    }
+}
@@ -0,0 +1,228 @@
+package com.oogle.digitalid.metrics;
+
+import com.google.gson.GsonBuilder;
+import com.google.gson.JsonObject;
+
+import javax.management.InstanceAlreadyExistsException;
+import javax.management.JMException;
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+import java.io.IOException;
+import java.lang.management.ManagementFactory;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Process-wide stage timers and counters. A stage is timed with
+ * <pre>
+ *   long t = Metrics.start();
+ *   ...
+ *   t = SIGN.stop(t);   // the returned time can start the next stage
+ * </pre>
+ * which costs a {@code nanoTime} call and an atomic increment, or nothing once disabled.
+ * {@link #registerMBeans()} exports each stage and counter as
+ * {@code com.oogle.digitalid:type=Stage|Counter,name=...} next to a {@code type=Metrics} bean
+ * that can dump everything as JSON, the same as {@link #toJson()}.
+ */
+public final class Metrics {
+    public static final String DOMAIN = "com.oogle.digitalid";
+
+    public interface StageMXBean {
+        long getCount();
+        double getMeanMicros();
+        double getP50Micros();
+        double getP90Micros();
+        double getP99Micros();
+        double getP999Micros();
+        double getMaxMicros();
+        double getTotalMillis();
+        void reset();
+    }
+
+    public interface CounterMXBean {
+        long getCount();
+        void reset();
+    }
+
+    public interface MetricsMXBean {
+        boolean isEnabled();
+        void setEnabled(boolean enabled);
+        String getJson();
+        void dump(String path) throws IOException;
+        void reset();
+    }
+
+    public static final class Stage implements StageMXBean {
+        private final String name;
+        private final LatencyHistogram histogram = new LatencyHistogram();
+
+        private Stage(String name) {
+            this.name = name;
+        }
+
+        public String name() { return name; }
+
+        /** Records the time since {@code start} (from {@link Metrics#start()}) and returns now, or 0 when disabled. */
+        public long stop(long start) {
+            if (start == 0) return 0;
+            long now = System.nanoTime();
+            histogram.record(now - start);
+            return now;
+        }
+
+        public void record(long nanos) {
+            if (enabled) histogram.record(nanos);
+        }
+
+        public LatencyHistogram.Snapshot snapshot() { return histogram.snapshot(); }
+
+        @Override public long getCount() { return snapshot().count; }
+        @Override public double getMeanMicros() { return micros(snapshot().mean()); }
+        @Override public double getP50Micros() { return micros(snapshot().valueAt(0.50)); }
+        @Override public double getP90Micros() { return micros(snapshot().valueAt(0.90)); }
+        @Override public double getP99Micros() { return micros(snapshot().valueAt(0.99)); }
+        @Override public double getP999Micros() { return micros(snapshot().valueAt(0.999)); }
+        @Override public double getMaxMicros() { return micros(snapshot().max); }
+        @Override public double getTotalMillis() { return Math.round(snapshot().sum / 1e4) / 100.0; }
+        @Override public void reset() { histogram.reset(); }
+
+        JsonObject toJson() {
+            LatencyHistogram.Snapshot s = snapshot();
+            JsonObject o = new JsonObject();
+            o.addProperty("count", s.count);
+            o.addProperty("meanUs", micros(s.mean()));
+            o.addProperty("p50Us", micros(s.valueAt(0.50)));
+            o.addProperty("p90Us", micros(s.valueAt(0.90)));
+            o.addProperty("p99Us", micros(s.valueAt(0.99)));
+            o.addProperty("p999Us", micros(s.valueAt(0.999)));
+            o.addProperty("maxUs", micros(s.max));
+            o.addProperty("totalMs", Math.round(s.sum / 1e4) / 100.0);
+            return o;
+        }
+    }
+
+    public static final class Counter implements CounterMXBean {
+        private final LongAdder count = new LongAdder();
+
+        private Counter() { }
+
+        public void increment() {
+            if (enabled) count.increment();
+        }
+
+        @Override public long getCount() { return count.sum(); }
+        @Override public void reset() { count.reset(); }
+    }
+
+    private static final Map<String, Stage> STAGES = new ConcurrentHashMap<>();
+    private static final Map<String, Counter> COUNTERS = new ConcurrentHashMap<>();
+    private static volatile boolean enabled = !Boolean.getBoolean("digitalid.metrics.disabled");
+    private static volatile boolean registered;
+
+    private Metrics() { }
+
+    /** Start time for {@link Stage#stop}, or 0 when metrics are off. */
+    public static long start() {
+        return enabled ? System.nanoTime() : 0;
+    }
+
+    public static Stage stage(String name) {
+        Stage s = STAGES.get(name);
+        if (s != null) return s;
+        Stage created = new Stage(name);
+        s = STAGES.putIfAbsent(name, created);
+        if (s != null) return s;
+        if (registered) register("Stage", name, created);
+        return created;
+    }
+
+    public static Counter counter(String name) {
+        Counter c = COUNTERS.get(name);
+        if (c != null) return c;
+        Counter created = new Counter();
+        c = COUNTERS.putIfAbsent(name, created);
+        if (c != null) return c;
+        if (registered) register("Counter", name, created);
+        return created;
+    }
+
+    public static boolean isEnabled() { return enabled; }
+
+    public static void setEnabled(boolean on) { enabled = on; }
+
+    public static void reset() {
+        STAGES.values().forEach(Stage::reset);
+        COUNTERS.values().forEach(Counter::reset);
+    }
+
+    public static JsonObject toJson() {
+        JsonObject stages = new JsonObject();
+        new TreeMap<>(STAGES).forEach((name, s) -> stages.add(name, s.toJson()));
+        JsonObject counters = new JsonObject();
+        new TreeMap<>(COUNTERS).forEach((name, c) -> counters.addProperty(name, c.getCount()));
+        JsonObject o = new JsonObject();
+        o.addProperty("enabled", enabled);
+        o.add("stages", stages);
+        o.add("counters", counters);
+        return o;
+    }
+
+    public static void dump(Path file) throws IOException {
+        Path parent = file.toAbsolutePath().getParent();
+        if (parent != null) Files.createDirectories(parent);
+        Files.writeString(file, new GsonBuilder().setPrettyPrinting().create().toJson(toJson()));
+    }
+
+    /** Exports every stage and counter, including ones created later, on the platform MBean server. */
+    public static synchronized void registerMBeans() {
+        if (registered) return;
+        registered = true;
+        register("Metrics", null, new MetricsMXBean() {
+            @Override public boolean isEnabled() { return enabled; }
+            @Override public void setEnabled(boolean on) { Metrics.setEnabled(on); }
+            @Override public String getJson() { return toJson().toString(); }
+            @Override public void dump(String path) throws IOException { Metrics.dump(Path.of(path)); }
+            @Override public void reset() { Metrics.reset(); }
+        });
+        STAGES.forEach((name, s) -> register("Stage", name, s));
+        COUNTERS.forEach((name, c) -> register("Counter", name, c));
+    }
+
+    /**
+     * {@link #registerMBeans} from a daemon thread once {@code delayMillis} have passed. Creating
+     * the platform MBean server costs a few hundred ms, which a short CLI run would otherwise
+     * spend just to exit before anyone could attach.
+     */
+    public static void registerMBeansAfter(long delayMillis) {
+        Thread t = new Thread(() -> {
+            try {
+                Thread.sleep(delayMillis);
+            } catch (InterruptedException e) {
+                return;
+            }
+            registerMBeans();
+        }, "metrics-mbeans");
+        t.setDaemon(true);
+        t.start();
+    }
+
+    private static void register(String type, String name, Object bean) {
+        try {
+            MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+            String on = DOMAIN + ":type=" + type + (name == null ? "" : ",name=" + name);
+            server.registerMBean(bean, new ObjectName(on));
+        } catch (InstanceAlreadyExistsException e) {
+            // created while registerMBeans was walking the map
+        } catch (JMException e) {
+            throw new IllegalStateException("Cannot register metrics MBean " + type + " " + name, e);
+        }
+    }
+
+    private static double micros(double nanos) {
+        return Math.round(nanos / 10) / 100.0;
+    }
+}
@@ -4,6 +4,16 @@ import java.time.Instant;
 import java.util.Objects;
 
 public class DigitalId {
+    /**
+     * Format 2: the JWS is the only signature and its body is the canonical payload, so
+     * {@code payloadHash} and {@code signature} are not written. Absent in format 1 files,
+     * which carry a detached signature next to the JWS.
+     */
+    public static final int FORMAT_V2 = 2;
+    /** Format 3: signed as part of a batch; {@code merkleProof} links the payload to the signed root. */
+    public static final int FORMAT_BATCH = 3;
+
+    public Integer version; // null = format 1
     public String id;
     public String fullName;
     public String dateOfBirth;
@@ -13,14 +23,19 @@ public class DigitalId {
     public String issuer;
     public long issuedAt;
     public Long expiresAt;
+    public Long statusIndex; // bit in the issuer's revocation list; null if not revocable
 
+    public String canonicalization; // "JCS", or null for the original Gson field-order form
     public String payloadHash;
     public String signatureAlg;
     public String signature;
+    public String kid;
 
     public String jwsCompact;
+    public MerkleProof merkleProof; // format 3 only
 
-    public transient String canonicalPayload;
+    public transient String canonicalPayload; // format 1 only: the signed payload as text
+    public transient byte[] canonicalBytes;
 
     public static DigitalId basic(String id, String fullName, String dateOfBirth,
                                   String email, String phone,
@@ -0,0 +1,26 @@
+package com.oogle.digitalid.model;
+
+public class IssueRequest {
+    public String fullName;
+    public String dateOfBirth;
+    public String email;
+    public String phone;
+    public Long expiresAt;
+
+    // 1-based line in the source file, for failure reports
+    public transient long line;
+
+    public static IssueRequest of(String fullName, String dateOfBirth, String email, String phone, Long expiresAt) {
+        IssueRequest r = new IssueRequest();
+        r.fullName = fullName;
+        r.dateOfBirth = dateOfBirth;
+        r.email = email;
+        r.phone = phone;
+        r.expiresAt = expiresAt;
+        return r;
+    }
+
+    @Override public String toString() {
+        return "IssueRequest{line " + line + " " + fullName + "}";
+    }
+}
@@ -0,0 +1,8 @@
+package com.oogle.digitalid.model;
+
+/** Where a batch-signed ID (format 3) sits in its batch's Merkle tree, and the path to the signed root. */
+public class MerkleProof {
+    public int index;      // leaf position in the batch
+    public String path;    // base64url of the sibling hashes, leaf level first
+    public String rootJws; // the issuer's signature over {"merkleRoot","size"}, shared by the whole batch
+}
@@ -0,0 +1,24 @@
+package com.oogle.digitalid.model;
+
+public class VerifyResult {
+    public boolean hashOk;
+    public boolean signatureOk;
+    public boolean jwsOk;
+    public boolean expired;
+    public boolean revoked;
+
+    public boolean isValid() {
+        return hashOk && signatureOk && jwsOk && !expired && !revoked;
+    }
+
+    @Override public String toString() {
+        if (isValid()) return "VALID";
+        StringBuilder sb = new StringBuilder("INVALID");
+        if (!hashOk) sb.append(" bad-hash");
+        if (!signatureOk) sb.append(" bad-signature");
+        if (!jwsOk) sb.append(" bad-jws");
+        if (expired) sb.append(" expired");
+        if (revoked) sb.append(" revoked");
+        return sb.toString();
+    }
+}
@@ -0,0 +1,237 @@
+package com.oogle.digitalid.service;
+
+import com.google.zxing.common.BitMatrix;
+import com.oogle.digitalid.metrics.Metrics;
+import com.oogle.digitalid.model.DigitalId;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Asynchronous output stage for issued IDs. {@link #submit} returns at once with a future per
+ * credential while the JSON, the QR PNG and the card PNG are produced as separate jobs on a
+ * worker pool and written through {@link FileChannel}s. At most {@link Options#maxInFlight}
+ * credentials are pending; {@code submit} blocks beyond that.
+ * <p>
+ * With {@link SyncPolicy#BATCHED}, written files are fsync'd together (with their directory)
+ * once {@link Options#syncBatchFiles} have queued up or {@link Options#syncIntervalMillis} has
+ * passed, and a credential's future completes only after its batch is on disk.
+ */
+public class ArtifactWriter implements Closeable {
+    private static final Metrics.Stage FILE_WRITE = Metrics.stage("file.write");
+    private static final Metrics.Stage FILE_SYNC = Metrics.stage("file.sync");
+
+    public enum SyncPolicy {
+        /** Leave flushing to the OS. */
+        NONE,
+        /** fsync in groups; futures complete once their group is durable. */
+        BATCHED,
+        /** fsync every file before its channel is closed. */
+        EACH
+    }
+
+    public static class Options {
+        public int threads = Runtime.getRuntime().availableProcessors();
+        public int maxInFlight = threads * 4;
+        public boolean writeJson = true;
+        public boolean writeImages = true;
+        public SyncPolicy sync = SyncPolicy.NONE;
+        public int syncBatchFiles = 256;
+        public long syncIntervalMillis = 50;
+    }
+
+    private final IdIssuer issuer;
+    private final Options options;
+    private final ExecutorService pool;
+    private final Semaphore inFlight;
+    private final Syncer syncer;
+
+    public ArtifactWriter(IdIssuer issuer, Options options) {
+        this.issuer = issuer;
+        this.options = options;
+        this.inFlight = new Semaphore(Math.max(1, options.maxInFlight));
+        AtomicInteger n = new AtomicInteger();
+        this.pool = Executors.newFixedThreadPool(Math.max(1, options.threads), r -> {
+            Thread t = new Thread(r, "artifact-writer-" + n.incrementAndGet());
+            t.setDaemon(true);
+            return t;
+        });
+        this.syncer = options.sync == SyncPolicy.BATCHED ? new Syncer() : null;
+    }
+
+    /** Queues the ID's files under {@code outDir}; the future yields the JSON path (the QR PNG's when JSON is off). */
+    public CompletableFuture<Path> submit(DigitalId d, Path outDir) {
+        inFlight.acquireUninterruptibly();
+        CompletableFuture<Path> result;
+        try {
+            result = start(d, outDir);
+        } catch (RuntimeException e) {
+            inFlight.release();
+            throw e;
+        }
+        result.whenComplete((p, ex) -> inFlight.release());
+        return result;
+    }
+
+    private CompletableFuture<Path> start(DigitalId d, Path outDir) {
+        List<CompletableFuture<Path>> jobs = new ArrayList<>(3);
+        if (options.writeJson) {
+            jobs.add(job(() -> write(outDir.resolve(d.id + ".did.json"), IdIssuer.toJson(d).getBytes(StandardCharsets.UTF_8))));
+        }
+        if (options.writeImages) {
+            CardRenderer renderer = issuer.cardRenderer();
+            String payload = issuer.qrPayload(d);
+            CompletableFuture<BitMatrix> qr = CompletableFuture.supplyAsync(() -> {
+                try {
+                    return CardRenderer.encodeQr(payload);
+                } catch (IOException e) {
+                    throw new UncheckedIOException(e);
+                }
+            }, pool);
+            jobs.add(qr.thenApplyAsync(m -> io(() -> write(outDir.resolve(d.id + ".qr.png"), renderer.qrPng(m, 512))), pool));
+            jobs.add(qr.thenApplyAsync(m -> io(() -> write(outDir.resolve(d.id + ".card.png"), renderer.cardPng(d, m))), pool));
+        }
+        if (jobs.isEmpty()) return CompletableFuture.completedFuture(null);
+
+        CompletableFuture<Path> written = CompletableFuture.allOf(jobs.toArray(CompletableFuture<?>[]::new))
+                .thenApply(v -> jobs.get(0).join());
+        if (syncer == null) return written;
+        return written.thenCompose(p -> {
+            List<Path> files = new ArrayList<>(jobs.size());
+            for (CompletableFuture<Path> j : jobs) files.add(j.join());
+            return syncer.add(files).thenApply(v -> p);
+        });
+    }
+
+    /** Blocks until every submitted credential is written (and synced, if the policy says so). */
+    public void flush() {
+        int permits = Math.max(1, options.maxInFlight);
+        if (syncer != null) syncer.flushSoon();
+        inFlight.acquireUninterruptibly(permits);
+        inFlight.release(permits);
+    }
+
+    @Override public void close() {
+        flush();
+        pool.shutdown();
+        if (syncer != null) syncer.close();
+    }
+
+    private interface IoJob {
+        Path run() throws IOException;
+    }
+
+    private CompletableFuture<Path> job(IoJob job) {
+        return CompletableFuture.supplyAsync(() -> io(job), pool);
+    }
+
+    private static Path io(IoJob job) {
+        try {
+            return job.run();
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+
+    private Path write(Path file, byte[] data) throws IOException {
+        long t = Metrics.start();
+        Files.createDirectories(file.getParent());
+        try (FileChannel ch = FileChannel.open(file, StandardOpenOption.CREATE, StandardOpenOption.WRITE,
+                StandardOpenOption.TRUNCATE_EXISTING)) {
+            ByteBuffer b = ByteBuffer.wrap(data);
+            while (b.hasRemaining()) ch.write(b);
+            if (options.sync == SyncPolicy.EACH) ch.force(false);
+        }
+        FILE_WRITE.stop(t);
+        return file;
+    }
+
+    /** Collects written files and fsyncs them as a group on its own thread. */
+    private final class Syncer {
+        private final ScheduledExecutorService timer = Executors.newSingleThreadScheduledExecutor(r -> {
+            Thread t = new Thread(r, "artifact-fsync");
+            t.setDaemon(true);
+            return t;
+        });
+        private List<Path> files = new ArrayList<>();
+        private List<CompletableFuture<Void>> waiters = new ArrayList<>();
+
+        Syncer() {
+            long ms = Math.max(1, options.syncIntervalMillis);
+            timer.scheduleWithFixedDelay(this::sync, ms, ms, TimeUnit.MILLISECONDS);
+        }
+
+        synchronized CompletableFuture<Void> add(List<Path> written) {
+            CompletableFuture<Void> f = new CompletableFuture<>();
+            files.addAll(written);
+            waiters.add(f);
+            if (files.size() >= options.syncBatchFiles) flushSoon();
+            return f;
+        }
+
+        void flushSoon() {
+            timer.execute(this::sync);
+        }
+
+        private void sync() {
+            List<Path> batch;
+            List<CompletableFuture<Void>> done;
+            synchronized (this) {
+                if (waiters.isEmpty()) return;
+                batch = files;
+                done = waiters;
+                files = new ArrayList<>();
+                waiters = new ArrayList<>();
+            }
+            long t = Metrics.start();
+            try {
+                Set<Path> dirs = new LinkedHashSet<>();
+                for (Path p : batch) {
+                    force(p);
+                    dirs.add(p.toAbsolutePath().getParent());
+                }
+                // new directory entries need their own fsync to survive a crash
+                for (Path dir : dirs) {
+                    try {
+                        force(dir);
+                    } catch (IOException e) {
+                        // not supported everywhere (e.g. Windows); the file data is still synced
+                    }
+                }
+                FILE_SYNC.stop(t);
+                for (CompletableFuture<Void> f : done) f.complete(null);
+            } catch (IOException | RuntimeException e) {
+                for (CompletableFuture<Void> f : done) f.completeExceptionally(new CompletionException(e));
+            }
+        }
+
+        private void force(Path p) throws IOException {
+            try (FileChannel ch = FileChannel.open(p, StandardOpenOption.READ)) {
+                ch.force(true);
+            }
+        }
+
+        void close() {
+            timer.shutdown();
+        }
+    }
+}
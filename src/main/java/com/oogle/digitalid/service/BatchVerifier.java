@@ -0,0 +1,278 @@
+package com.oogle.digitalid.service;
+
+import com.google.gson.JsonObject;
+import com.oogle.digitalid.model.DigitalId;
+import com.oogle.digitalid.model.VerifyResult;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.FileSystems;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.PathMatcher;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Locale;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.BooleanSupplier;
+import java.util.function.LongConsumer;
+import java.util.stream.Stream;
+
+/**
+ * Verifies many IDs in one JVM. Inputs may be single {@code .did.json} files, directories
+ * (walked recursively), glob patterns such as {@code output/**.did.json}, JSONL bundles
+ * with one ID per line, or {@link CredentialBundle} files, whose records are verified straight
+ * from the mapping. Work runs on a work-stealing pool; like {@link BulkIssuer}, the
+ * number of records in flight is capped so huge trees don't queue up in memory.
+ */
+public class BatchVerifier {
+
+    public static class Failure {
+        public final String source;
+        public final String reason;
+
+        Failure(String source, String reason) {
+            this.source = source;
+            this.reason = reason;
+        }
+
+        @Override public String toString() {
+            return source + ": " + reason;
+        }
+    }
+
+    public static class Summary {
+        public long records;
+        public long valid;
+        public long badHash;
+        public long badSignature;
+        public long badJws;
+        public long expired;
+        public long revoked;
+        public long errors;
+        public long elapsedMillis;
+        public final List<Failure> failures = new ArrayList<>(); // the first maxFailures of invalid()
+
+        public long invalid() { return records - valid; }
+
+        public double perSecond() {
+            return elapsedMillis == 0 ? records : records * 1000.0 / elapsedMillis;
+        }
+
+        public JsonObject toJson() {
+            JsonObject o = new JsonObject();
+            o.addProperty("records", records);
+            o.addProperty("valid", valid);
+            o.addProperty("invalid", invalid());
+            o.addProperty("badHash", badHash);
+            o.addProperty("badSignature", badSignature);
+            o.addProperty("badJws", badJws);
+            o.addProperty("expired", expired);
+            o.addProperty("revoked", revoked);
+            o.addProperty("errors", errors);
+            o.addProperty("elapsedMillis", elapsedMillis);
+            o.addProperty("filesPerSec", Math.round(perSecond() * 10) / 10.0);
+            return o;
+        }
+    }
+
+    private final IdVerifier verifier;
+    private final int threads;
+    private final int maxInFlight;
+
+    private final AtomicLong records = new AtomicLong();
+    private final AtomicLong valid = new AtomicLong();
+    private final AtomicLong badHash = new AtomicLong();
+    private final AtomicLong badSignature = new AtomicLong();
+    private final AtomicLong badJws = new AtomicLong();
+    private final AtomicLong expired = new AtomicLong();
+    private final AtomicLong revoked = new AtomicLong();
+    private final AtomicLong errors = new AtomicLong();
+    private final AtomicLong failed = new AtomicLong();
+    private final ConcurrentLinkedQueue<Failure> failures = new ConcurrentLinkedQueue<>();
+    private int maxFailures = 1000;
+    private LongConsumer onRecord;
+    private BooleanSupplier cancelled;
+
+    public BatchVerifier(IdVerifier verifier, int threads) {
+        this.verifier = verifier;
+        this.threads = Math.max(1, threads);
+        this.maxInFlight = this.threads * 64;
+    }
+
+    /** Called from workers with the number of records checked so far. */
+    public void setOnRecord(LongConsumer onRecord) {
+        this.onRecord = onRecord;
+    }
+
+    /** How many failures the summary lists; the rest are only counted. */
+    public void setMaxFailures(int maxFailures) {
+        this.maxFailures = maxFailures;
+    }
+
+    /** Polled before each record is queued; once it returns true, {@link #run} throws {@link CancellationException}. */
+    public void setCancelled(BooleanSupplier cancelled) {
+        this.cancelled = cancelled;
+    }
+
+    public Summary run(List<String> inputs) throws IOException {
+        ExecutorService pool = Executors.newWorkStealingPool(threads);
+        Semaphore inFlight = new Semaphore(maxInFlight);
+        for (AtomicLong c : new AtomicLong[]{records, valid, badHash, badSignature, badJws, expired, revoked, errors, failed}) c.set(0);
+        failures.clear();
+        long start = System.nanoTime();
+        try {
+            for (String in : inputs) {
+                expand(in, p -> {
+                    if (isJsonl(p)) {
+                        submitJsonl(p, pool, inFlight);
+                    } else if (CredentialBundle.isBundle(p)) {
+                        CredentialBundle bundle = CredentialBundle.open(p);
+                        bundle.forEach(r -> submit(pool, inFlight, r.toString(), () -> verifier.verify(r)));
+                    } else {
+                        submit(pool, inFlight, p.toString(), () -> verifyJson(Files.readString(p)));
+                    }
+                });
+            }
+            inFlight.acquireUninterruptibly(maxInFlight);
+        } finally {
+            pool.shutdownNow();
+        }
+
+        Summary s = new Summary();
+        s.records = records.get();
+        s.valid = valid.get();
+        s.badHash = badHash.get();
+        s.badSignature = badSignature.get();
+        s.badJws = badJws.get();
+        s.expired = expired.get();
+        s.revoked = revoked.get();
+        s.errors = errors.get();
+        s.elapsedMillis = TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start);
+        s.failures.addAll(failures);
+        return s;
+    }
+
+    interface PathSink {
+        void accept(Path p) throws IOException;
+    }
+
+    private interface Check {
+        VerifyResult run() throws IOException;
+    }
+
+    private void submit(ExecutorService pool, Semaphore inFlight, String source, Check check) {
+        if (cancelled != null && cancelled.getAsBoolean()) throw new CancellationException("Stopped at " + source);
+        inFlight.acquireUninterruptibly();
+        pool.execute(() -> {
+            try {
+                tally(source, check.run());
+            } catch (Exception ex) {
+                errors.incrementAndGet();
+                fail(source, "error " + ex.getMessage());
+            } finally {
+                long n = records.incrementAndGet();
+                if (onRecord != null) onRecord.accept(n);
+                inFlight.release();
+            }
+        });
+    }
+
+    private void submitJsonl(Path p, ExecutorService pool, Semaphore inFlight) throws IOException {
+        try (BufferedReader in = Files.newBufferedReader(p, StandardCharsets.UTF_8)) {
+            long lineNo = 0;
+            String line;
+            while ((line = in.readLine()) != null) {
+                lineNo++;
+                if (line.isBlank()) continue;
+                String json = line;
+                submit(pool, inFlight, p + ":" + lineNo, () -> verifyJson(json));
+            }
+        }
+    }
+
+    private VerifyResult verifyJson(String json) throws IOException {
+        DigitalId d = IdVerifier.readId(json);
+        if (d == null) throw new IOException("empty document");
+        return verifier.verify(d);
+    }
+
+    private void tally(String source, VerifyResult r) {
+        if (r.isValid()) {
+            valid.incrementAndGet();
+            return;
+        }
+        if (!r.hashOk) badHash.incrementAndGet();
+        if (!r.signatureOk) badSignature.incrementAndGet();
+        if (!r.jwsOk) badJws.incrementAndGet();
+        if (r.expired) expired.incrementAndGet();
+        if (r.revoked) revoked.incrementAndGet();
+        fail(source, r.toString());
+    }
+
+    // a large corpus of bad IDs must not keep every one of them
+    private void fail(String source, String reason) {
+        if (failed.incrementAndGet() <= maxFailures) failures.add(new Failure(source, reason));
+    }
+
+    private static boolean isJsonl(Path p) {
+        String n = p.getFileName().toString().toLowerCase(Locale.ROOT);
+        return n.endsWith(".jsonl") || n.endsWith(".ndjson");
+    }
+
+    private static boolean isIdFile(Path p) {
+        String n = p.getFileName().toString().toLowerCase(Locale.ROOT);
+        return n.endsWith(".did.json") || n.endsWith(".jsonl") || n.endsWith(".ndjson") || n.endsWith(CredentialBundle.SUFFIX);
+    }
+
+    static void expand(String arg, PathSink sink) throws IOException {
+        expand(arg, BatchVerifier::isIdFile, sink);
+    }
+
+    // Expands a path, directory or glob into concrete files, streaming them to the sink as they
+    // are found. Directories yield the files {@code wanted} matches. Globs are matched against
+    // paths under their longest wildcard-free prefix, e.g. "out/2024-*/*.did.json" walks "out".
+    static void expand(String arg, PathMatcher wanted, PathSink sink) throws IOException {
+        int wild = indexOfWildcard(arg);
+        Path base;
+        PathMatcher m;
+        if (wild < 0) {
+            Path p = Path.of(arg);
+            if (!Files.isDirectory(p)) {
+                sink.accept(p);
+                return;
+            }
+            base = p;
+            m = wanted;
+        } else {
+            int slash = Math.max(arg.lastIndexOf('/', wild), arg.lastIndexOf('\\', wild));
+            base = slash < 0 ? Path.of(".") : Path.of(arg.substring(0, slash + 1));
+            m = FileSystems.getDefault().getPathMatcher("glob:" + (slash < 0 ? arg : arg.substring(slash + 1)));
+            if (!Files.isDirectory(base)) return;
+        }
+
+        try (Stream<Path> s = Files.walk(base)) {
+            Iterator<Path> it = s.iterator();
+            while (it.hasNext()) {
+                Path p = it.next();
+                if (Files.isRegularFile(p) && m.matches(base.relativize(p))) sink.accept(p);
+            }
+        }
+    }
+
+    private static int indexOfWildcard(String s) {
+        for (int i = 0; i < s.length(); i++) {
+            char c = s.charAt(i);
+            if (c == '*' || c == '?' || c == '[' || c == '{') return i;
+        }
+        return -1;
+    }
+}
@@ -0,0 +1,404 @@
+package com.oogle.digitalid.service;
+
+import com.google.gson.Gson;
+import com.google.gson.JsonParseException;
+import com.oogle.digitalid.model.DigitalId;
+import com.oogle.digitalid.model.IssueRequest;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.time.ZoneOffset;
+import java.time.ZonedDateTime;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Locale;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.BooleanSupplier;
+import java.util.function.LongConsumer;
+
+/**
+ * Issues IDs in bulk from a CSV or JSONL file.
+ * Lines are read on the calling thread and handed to a fixed worker pool; at most
+ * {@code queueCapacity} records are in flight at once, so memory stays flat no matter
+ * how large the input is. A bad row is recorded in the report and the run carries on.
+ * Workers only issue and sign; files go through an {@link ArtifactWriter}, so rendering and
+ * writes overlap with signing and a record counts as issued once its files are written.
+ * With {@link Options#ledger} set, IDs are appended to the ledger instead of written as
+ * loose JSON files; workers commit as a group, so one fsync covers many records.
+ * {@link Options#bundle} does the same with a {@link CredentialBundle} for export.
+ * With {@link Options#batchSize} set, records are issued in batches that share one Merkle
+ * root signature (see {@link IdIssuer#issueBatch}) instead of being signed one by one.
+ * A record refused by the issuer's {@link IdentityIndex} as a duplicate fails like any bad row.
+ */
+public class BulkIssuer {
+    private static final Gson GSON = new Gson();
+
+    public static class Options {
+        public int threads = Runtime.getRuntime().availableProcessors();
+        public int queueCapacity = 1024;
+        public boolean writeImages = true;
+        public int validityYears = 3;
+        public IdLedger ledger; // optional, replaces the per-ID .did.json files
+        public CredentialBundle.Writer bundle; // optional, likewise; the caller closes it after the run
+        public ArtifactWriter.SyncPolicy sync = ArtifactWriter.SyncPolicy.NONE;
+        public LongConsumer onRecord; // optional, called from workers with the count of finished records
+        public BooleanSupplier cancelled; // optional, polled before each record; true stops the run
+        public int batchSize; // > 0 signs this many records at a time as one Merkle batch
+        public int maxFailures = 1000; // failures kept with their input line; the rest are only counted
+    }
+
+    public static class Failure {
+        public final long line;
+        public final String input;
+        public final String error;
+
+        Failure(long line, String input, String error) {
+            this.line = line;
+            this.input = input;
+            this.error = error;
+        }
+
+        @Override public String toString() {
+            return "line " + line + ": " + error;
+        }
+    }
+
+    public static class Report {
+        public long total;
+        public long issued;
+        public long failed;
+        public long elapsedMillis;
+        public final List<Failure> failures = new ArrayList<>(); // at most Options.maxFailures of them
+
+        public double perSecond() {
+            return elapsedMillis == 0 ? issued : issued * 1000.0 / elapsedMillis;
+        }
+
+        @Override public String toString() {
+            return String.format(Locale.ROOT, "total=%d issued=%d failed=%d elapsed=%dms throughput=%.1f/s",
+                    total, issued, failed, elapsedMillis, perSecond());
+        }
+    }
+
+    private record Row(long line, String raw) { }
+
+    /** Counters shared by the reader and the workers for one run. */
+    private final class Tally {
+        final AtomicLong issued = new AtomicLong();
+        final AtomicLong finished = new AtomicLong();
+        final AtomicLong failed = new AtomicLong();
+        final ConcurrentLinkedQueue<Failure> failures = new ConcurrentLinkedQueue<>();
+        final int capacity;
+        final Semaphore inFlight;
+
+        Tally(int capacity) {
+            this.capacity = Math.max(1, capacity);
+            this.inFlight = new Semaphore(this.capacity);
+        }
+
+        // writer.close() can return before the callbacks in track() have run
+        void awaitAll() {
+            inFlight.acquireUninterruptibly(capacity);
+            inFlight.release(capacity);
+        }
+
+        void failed(Row row, Throwable ex) {
+            Throwable cause = ex instanceof CompletionException && ex.getCause() != null ? ex.getCause() : ex;
+            // a bad multi-million-line file must not keep every line it was given
+            if (failed.incrementAndGet() <= options.maxFailures) {
+                failures.add(new Failure(row.line, row.raw, String.valueOf(cause.getMessage())));
+            }
+            finished();
+        }
+
+        // the record stays in flight until its files are written
+        void track(Row row, CompletableFuture<?> out) {
+            out.whenComplete((v, ex) -> {
+                if (ex == null) {
+                    issued.incrementAndGet();
+                    finished();
+                } else {
+                    failed(row, ex);
+                }
+            });
+        }
+
+        private void finished() {
+            long n = finished.incrementAndGet();
+            inFlight.release();
+            if (options.onRecord != null) options.onRecord.accept(n);
+        }
+    }
+
+    private final IdIssuer issuer;
+    private final Path outDir;
+    private final Options options;
+
+    public BulkIssuer(IdIssuer issuer, Path outDir, Options options) {
+        this.issuer = issuer;
+        this.outDir = outDir;
+        this.options = options;
+    }
+
+    public Report run(Path input) throws IOException {
+        String name = input.getFileName().toString().toLowerCase(Locale.ROOT);
+        boolean csv = name.endsWith(".csv");
+        if (!csv && !name.endsWith(".jsonl") && !name.endsWith(".ndjson")) {
+            throw new IOException("Unsupported input (expected .csv or .jsonl): " + input);
+        }
+
+        // Generate keys once up front instead of racing on them from every worker
+        issuer.ensureIssuerKeys();
+        Files.createDirectories(outDir);
+
+        long defaultExpiresAt = ZonedDateTime.now(ZoneOffset.UTC)
+                .plusYears(options.validityYears)
+                .toInstant()
+                .getEpochSecond();
+
+        int batchSize = Math.max(0, options.batchSize);
+        // room for one batch being filled while another is issued, or the reader would stall
+        Tally tally = new Tally(Math.max(options.queueCapacity, 2 * batchSize));
+        ExecutorService pool = Executors.newFixedThreadPool(Math.max(1, options.threads));
+        ArtifactWriter writer = newWriter();
+
+        long total = 0;
+        long start = System.nanoTime();
+        try (BufferedReader in = Files.newBufferedReader(input, StandardCharsets.UTF_8)) {
+            String[] header = null;
+            List<Row> batch = new ArrayList<>();
+            long lineNo = 0;
+            String line;
+            while ((line = in.readLine()) != null) {
+                lineNo++;
+                // Excel and other Windows tools start UTF-8 files with a byte order mark
+                if (lineNo == 1 && line.startsWith("\uFEFF")) line = line.substring(1);
+                if (line.isBlank()) continue;
+                if (options.cancelled != null && options.cancelled.getAsBoolean()) {
+                    throw new CancellationException("Stopped before line " + lineNo);
+                }
+                if (csv && header == null) {
+                    header = parseCsvLine(line).toArray(new String[0]);
+                    continue;
+                }
+
+                total++;
+                final Row row = new Row(lineNo, line);
+                final String[] cols = header;
+                tally.inFlight.acquireUninterruptibly();
+                if (batchSize > 0) {
+                    batch.add(row);
+                    if (batch.size() == batchSize) {
+                        List<Row> rows = batch;
+                        pool.execute(() -> issueBatch(rows, cols, defaultExpiresAt, writer, tally));
+                        batch = new ArrayList<>();
+                    }
+                    continue;
+                }
+                pool.execute(() -> {
+                    CompletableFuture<?> out;
+                    try {
+                        out = issueOne(request(cols, row, defaultExpiresAt), writer);
+                    } catch (Exception ex) {
+                        tally.failed(row, ex);
+                        return;
+                    }
+                    tally.track(row, out);
+                });
+            }
+            if (!batch.isEmpty()) {
+                List<Row> rows = batch;
+                String[] cols = header;
+                pool.execute(() -> issueBatch(rows, cols, defaultExpiresAt, writer, tally));
+            }
+        } finally {
+            pool.shutdown();
+            try {
+                pool.awaitTermination(Long.MAX_VALUE, TimeUnit.NANOSECONDS);
+            } catch (InterruptedException e) {
+                pool.shutdownNow();
+                Thread.currentThread().interrupt();
+            }
+            if (writer != null) writer.close();
+        }
+        tally.awaitAll();
+
+        Report report = new Report();
+        report.total = total;
+        report.issued = tally.issued.get();
+        report.failures.addAll(tally.failures);
+        report.failures.sort((a, b) -> Long.compare(a.line, b.line));
+        report.failed = tally.failed.get();
+        report.elapsedMillis = TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start);
+        return report;
+    }
+
+    // CSV header is null for JSONL input
+    private static IssueRequest request(String[] header, Row row, long defaultExpiresAt) {
+        IssueRequest r = header != null ? fromCsv(header, row.raw) : fromJson(row.raw);
+        r.line = row.line;
+        if (r.fullName == null || r.fullName.isBlank()) {
+            throw new IllegalArgumentException("fullName is required");
+        }
+        r.fullName = r.fullName.trim();
+        if (r.expiresAt == null) r.expiresAt = defaultExpiresAt;
+        return r;
+    }
+
+    private CompletableFuture<?> issueOne(IssueRequest r, ArtifactWriter writer) throws IOException {
+        return store(issuer.issue(r.fullName, r.dateOfBirth, r.email, r.phone, r.expiresAt), writer);
+    }
+
+    // A record that fails here is reported failed and may be issued again, so it gives back its identity claim
+    private CompletableFuture<?> store(DigitalId d, ArtifactWriter writer) throws IOException {
+        CompletableFuture<?> out;
+        try {
+            if (options.ledger != null) options.ledger.appendDurably(d);
+            if (options.bundle != null) options.bundle.add(d);
+            out = writer != null ? writer.submit(d, outDir) : CompletableFuture.completedFuture(null);
+        } catch (IOException | RuntimeException e) {
+            release(d);
+            throw e;
+        }
+        return out.whenComplete((v, ex) -> {
+            if (ex != null) release(d);
+        });
+    }
+
+    private void release(DigitalId d) {
+        IdentityIndex index = issuer.identityIndex();
+        if (index != null) index.remove(d);
+    }
+
+    // Bad rows fail on their own; the rest share one root signature
+    private void issueBatch(List<Row> rows, String[] header, long defaultExpiresAt, ArtifactWriter writer, Tally tally) {
+        List<Row> valid = new ArrayList<>(rows.size());
+        List<IssueRequest> requests = new ArrayList<>(rows.size());
+        for (Row row : rows) {
+            try {
+                requests.add(request(header, row, defaultExpiresAt));
+                valid.add(row);
+            } catch (Exception ex) {
+                tally.failed(row, ex);
+            }
+        }
+        List<DigitalId> ids;
+        while (true) {
+            try {
+                ids = issuer.issueBatch(requests);
+                break;
+            } catch (IdentityIndex.DuplicateException ex) {
+                // the batch gave back its claims; drop the duplicate and sign the rest
+                int i = requests.indexOf(ex.request);
+                if (i < 0) {
+                    for (Row row : valid) tally.failed(row, ex);
+                    return;
+                }
+                requests.remove(i);
+                tally.failed(valid.remove(i), ex);
+            } catch (Exception ex) {
+                for (Row row : valid) tally.failed(row, ex);
+                return;
+            }
+        }
+        for (int i = 0; i < ids.size(); i++) {
+            CompletableFuture<?> out;
+            try {
+                out = store(ids.get(i), writer);
+            } catch (Exception ex) {
+                tally.failed(valid.get(i), ex);
+                continue;
+            }
+            tally.track(valid.get(i), out);
+        }
+    }
+
+    // null when the ledger or bundle holds the JSON and no images are wanted: nothing left to write
+    private ArtifactWriter newWriter() {
+        ArtifactWriter.Options o = new ArtifactWriter.Options();
+        o.writeJson = options.ledger == null && options.bundle == null;
+        o.writeImages = options.writeImages;
+        if (!o.writeJson && !o.writeImages) return null;
+        o.threads = Math.max(1, options.threads);
+        o.maxInFlight = Math.max(1, options.queueCapacity);
+        o.sync = options.sync;
+        return new ArtifactWriter(issuer, o);
+    }
+
+    private static IssueRequest fromJson(String line) {
+        try {
+            IssueRequest r = GSON.fromJson(line, IssueRequest.class);
+            if (r == null) throw new IllegalArgumentException("empty record");
+            return r;
+        } catch (JsonParseException e) {
+            throw new IllegalArgumentException("malformed JSON: " + e.getMessage(), e);
+        }
+    }
+
+    private static IssueRequest fromCsv(String[] header, String line) {
+        List<String> cols = parseCsvLine(line);
+        IssueRequest r = new IssueRequest();
+        for (int i = 0; i < header.length && i < cols.size(); i++) {
+            String v = cols.get(i).trim();
+            if (v.isEmpty()) continue;
+            switch (header[i].trim().toLowerCase(Locale.ROOT)) {
+                case "fullname", "name" -> r.fullName = v;
+                case "dateofbirth", "dob" -> r.dateOfBirth = v;
+                case "email" -> r.email = v;
+                case "phone" -> r.phone = v;
+                case "expiresat" -> {
+                    try {
+                        r.expiresAt = Long.parseLong(v);
+                    } catch (NumberFormatException e) {
+                        throw new IllegalArgumentException("expiresAt must be epoch seconds: " + v);
+                    }
+                }
+                default -> { }
+            }
+        }
+        return r;
+    }
+
+    // RFC 4180 fields on a single line: quoted fields and "" escapes, no embedded newlines
+    static List<String> parseCsvLine(String line) {
+        List<String> out = new ArrayList<>();
+        StringBuilder cur = new StringBuilder();
+        boolean quoted = false;
+        for (int i = 0; i < line.length(); i++) {
+            char c = line.charAt(i);
+            if (quoted) {
+                if (c == '"') {
+                    if (i + 1 < line.length() && line.charAt(i + 1) == '"') {
+                        cur.append('"');
+                        i++;
+                    } else {
+                        quoted = false;
+                    }
+                } else {
+                    cur.append(c);
+                }
+            } else if (c == '"') {
+                quoted = true;
+            } else if (c == ',') {
+                out.add(cur.toString());
+                cur.setLength(0);
+            } else {
+                cur.append(c);
+            }
+        }
+        if (quoted) throw new IllegalArgumentException("unterminated quoted field");
+        out.add(cur.toString());
+        return out;
+    }
+}
@@ -0,0 +1,243 @@
+package com.oogle.digitalid.service;
+
+import com.oogle.digitalid.crypto.CanonicalJson;
+import com.oogle.digitalid.crypto.Crypto;
+import com.oogle.digitalid.crypto.SignatureSuite;
+import com.oogle.digitalid.model.DigitalId;
+import com.oogle.digitalid.model.MerkleProof;
+import com.oogle.digitalid.util.Base45;
+import com.oogle.digitalid.util.Cbor;
+
+import com.google.gson.JsonParser;
+
+import java.io.ByteArrayOutputStream;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.UUID;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+
+/**
+ * Compact QR encoding of an ID: {@code DID1:} followed by Base45 of a CBOR structure,
+ * optionally zlib-deflated first.
+ * <pre>
+ *   [ 1|2, coseAlg, kid, { 1: id, 2: fullName, 3: dateOfBirth, 4: email, 5: phone,
+ *                        6: issuer, 7: issuedAt, 8: expiresAt, 9: statusIndex }, signature ]
+ * </pre>
+ * The leading 1 is for format 1 IDs, whose detached signature over the JCS form is carried.
+ * Format 2 IDs have only a JWS, so the layout starts with 2 and carries the JWS signature;
+ * the header is deterministic given alg and kid, so a verifier rebuilds the whole JWS from
+ * the claims. Batch-signed IDs (format 3) use layout 3, which appends the leaf index, the
+ * batch size and the sibling hashes; the root and from it the batch JWS are recomputed:
+ * <pre>
+ *   [ 3, coseAlg, kid, { claims }, rootSignature, index, size, path ]
+ * </pre>
+ * Either way no extra signing is needed to produce a compact credential.
+ * A UUID id is carried as 16 raw bytes. Base45 keeps the QR in alphanumeric mode, so an
+ * EdDSA credential fits in a far lower QR version than its base64url JWS.
+ */
+public final class CompactCredential {
+    public static final String PREFIX = "DID1:";
+
+    private static final int DETACHED = 1, JWS = 2, BATCH = 3;
+    private static final int ID = 1, FULL_NAME = 2, DATE_OF_BIRTH = 3, EMAIL = 4, PHONE = 5,
+            ISSUER = 6, ISSUED_AT = 7, EXPIRES_AT = 8, STATUS_INDEX = 9;
+    private static final int MAX_INFLATED = 64 * 1024;
+
+    private CompactCredential() { }
+
+    public static boolean isCompact(String text) {
+        return text != null && text.startsWith(PREFIX);
+    }
+
+    public static String encode(DigitalId d, boolean deflate) {
+        if (!CanonicalJson.JCS.equals(d.canonicalization)) {
+            throw new IllegalArgumentException("Compact credentials need a JCS-canonicalized ID");
+        }
+        SignatureSuite suite = SignatureSuite.fromSignatureAlg(d.signatureAlg);
+        MerkleProof proof = d.merkleProof;
+        int layout = proof != null ? BATCH : d.version != null ? JWS : DETACHED;
+        String sig = switch (layout) {
+            case BATCH -> proof.rootJws == null || proof.path == null ? null : jwsSignature(proof.rootJws);
+            case JWS -> jwsSignature(d.jwsCompact);
+            default -> d.signature;
+        };
+        if (suite == null || sig == null) throw new IllegalArgumentException("ID is not signed");
+
+        Cbor.Writer w = new Cbor.Writer();
+        w.arrayHeader(layout == BATCH ? 8 : 5).integer(layout).integer(suite.coseAlg).text(d.kid == null ? "" : d.kid);
+
+        int n = 3 + count(d.dateOfBirth, d.email, d.phone, d.issuer) + (d.expiresAt != null ? 1 : 0)
+                + (d.statusIndex != null ? 1 : 0);
+        w.mapHeader(n);
+        w.integer(ID);
+        byte[] uuid = uuidBytes(d.id);
+        if (uuid != null) w.bytes(uuid); else w.text(d.id);
+        w.integer(FULL_NAME).text(d.fullName);
+        if (d.dateOfBirth != null) w.integer(DATE_OF_BIRTH).text(d.dateOfBirth);
+        if (d.email != null) w.integer(EMAIL).text(d.email);
+        if (d.phone != null) w.integer(PHONE).text(d.phone);
+        if (d.issuer != null) w.integer(ISSUER).text(d.issuer);
+        w.integer(ISSUED_AT).integer(d.issuedAt);
+        if (d.expiresAt != null) w.integer(EXPIRES_AT).integer(d.expiresAt);
+        if (d.statusIndex != null) w.integer(STATUS_INDEX).integer(d.statusIndex);
+
+        w.bytes(Crypto.b64UrlDecode(sig));
+        if (layout == BATCH) w.integer(proof.index).integer(batchSize(proof.rootJws)).bytes(Crypto.b64UrlDecode(proof.path));
+
+        byte[] raw = w.toByteArray();
+        if (deflate) {
+            byte[] z = zlib(raw);
+            if (z.length < raw.length) raw = z;
+        }
+        return PREFIX + Base45.encode(raw);
+    }
+
+    /** Rebuilds the signed ID, ready for {@link IdVerifier#verify(DigitalId)}. Throws on malformed input. */
+    public static DigitalId decode(String text) {
+        if (!isCompact(text)) throw new IllegalArgumentException("Not a compact credential");
+        byte[] raw = Base45.decode(text.substring(PREFIX.length()));
+        // A CBOR array header is 0x8n; a zlib stream starts 0x78
+        if (raw.length > 0 && (raw[0] & 0xFF) == 0x78) raw = inflate(raw);
+
+        Cbor.Reader r = new Cbor.Reader(raw);
+        int items = r.arrayHeader();
+        long layout = r.integer();
+        if (layout != DETACHED && layout != JWS && layout != BATCH) throw new IllegalArgumentException("Unsupported compact credential version");
+        if (items != (layout == BATCH ? 8 : 5)) throw new IllegalArgumentException("Unexpected compact credential layout");
+        SignatureSuite suite = SignatureSuite.fromCoseAlg(r.integer());
+        if (suite == null) throw new IllegalArgumentException("Unsupported signature algorithm");
+        String kid = r.text();
+
+        DigitalId d = new DigitalId();
+        int n = r.mapHeader();
+        for (int i = 0; i < n; i++) {
+            long claim = r.integer();
+            if (claim != (int) claim) throw new IllegalArgumentException("Unknown claim " + claim);
+            int key = (int) claim;
+            switch (key) {
+                case ID -> d.id = r.peekType() == Cbor.BYTES ? uuidString(r.bytes()) : r.text();
+                case FULL_NAME -> d.fullName = r.text();
+                case DATE_OF_BIRTH -> d.dateOfBirth = r.text();
+                case EMAIL -> d.email = r.text();
+                case PHONE -> d.phone = r.text();
+                case ISSUER -> d.issuer = r.text();
+                case ISSUED_AT -> d.issuedAt = r.integer();
+                case EXPIRES_AT -> d.expiresAt = r.integer();
+                case STATUS_INDEX -> d.statusIndex = r.integer();
+                default -> throw new IllegalArgumentException("Unknown claim " + key);
+            }
+        }
+        byte[] sig = r.bytes();
+        long index = 0, size = 0;
+        byte[] path = null;
+        if (layout == BATCH) {
+            index = r.integer();
+            size = r.integer();
+            path = r.bytes();
+        }
+        if (r.hasMore()) throw new IllegalArgumentException("Trailing data after compact credential");
+        if (d.id == null || d.fullName == null) throw new IllegalArgumentException("Missing id or fullName");
+
+        d.kid = kid.isEmpty() ? null : kid;
+        d.signatureAlg = suite.signatureAlg;
+        d.canonicalization = CanonicalJson.JCS;
+        if (layout == BATCH) {
+            d.version = DigitalId.FORMAT_BATCH;
+            d.canonicalBytes = CanonicalJson.encode(d);
+            byte[] root = MerkleBatch.root(MerkleBatch.leaf(d.canonicalBytes), index, size, path);
+            if (root == null) throw new IllegalArgumentException("Malformed inclusion proof");
+            MerkleProof p = new MerkleProof();
+            p.index = (int) index;
+            p.path = Crypto.b64Url(path);
+            p.rootJws = Crypto.jwsProtectedHeader(suite, d.kid, MerkleBatch.JWS_TYPE) + "."
+                    + Crypto.b64Url(MerkleBatch.rootPayload(root, size)) + "." + Crypto.b64Url(sig);
+            d.merkleProof = p;
+            return d;
+        }
+        if (layout == JWS) {
+            d.version = DigitalId.FORMAT_V2;
+            d.canonicalBytes = CanonicalJson.encode(d);
+            d.jwsCompact = Crypto.jwsProtectedHeader(suite, d.kid) + "." + Crypto.b64Url(d.canonicalBytes) + "." + Crypto.b64Url(sig);
+            return d;
+        }
+        d.signature = Crypto.b64Url(sig);
+        d.canonicalBytes = CanonicalJson.encode(d);
+        d.canonicalPayload = new String(d.canonicalBytes, StandardCharsets.UTF_8);
+        d.payloadHash = Crypto.b64Url(Crypto.sha256(d.canonicalBytes));
+        return d;
+    }
+
+    private static long batchSize(String rootJws) {
+        String[] parts = rootJws.split("\\.");
+        if (parts.length != 3) throw new IllegalArgumentException("Malformed batch JWS");
+        String claims = new String(Crypto.b64UrlDecode(parts[1]), StandardCharsets.UTF_8);
+        return JsonParser.parseString(claims).getAsJsonObject().get("size").getAsLong();
+    }
+
+    private static String jwsSignature(String jws) {
+        int dot = jws == null ? -1 : jws.lastIndexOf('.');
+        return dot < 0 ? null : jws.substring(dot + 1);
+    }
+
+    private static int count(String... values) {
+        int n = 0;
+        for (String v : values) if (v != null) n++;
+        return n;
+    }
+
+    // Only canonical lower-case UUID text round-trips through 16 bytes; anything else stays text
+    private static byte[] uuidBytes(String id) {
+        if (id == null || id.length() != 36) return null;
+        try {
+            UUID u = UUID.fromString(id);
+            if (!u.toString().equals(id)) return null;
+            return ByteBuffer.allocate(16).putLong(u.getMostSignificantBits()).putLong(u.getLeastSignificantBits()).array();
+        } catch (IllegalArgumentException e) {
+            return null;
+        }
+    }
+
+    private static String uuidString(byte[] b) {
+        if (b.length != 16) throw new IllegalArgumentException("Bad id length");
+        ByteBuffer bb = ByteBuffer.wrap(b);
+        return new UUID(bb.getLong(), bb.getLong()).toString();
+    }
+
+    private static byte[] zlib(byte[] data) {
+        Deflater def = new Deflater(Deflater.BEST_COMPRESSION);
+        try {
+            def.setInput(data);
+            def.finish();
+            byte[] buf = new byte[data.length + 64];
+            int len = def.deflate(buf);
+            return def.finished() ? Arrays.copyOf(buf, len) : data; // didn't shrink; caller keeps raw
+        } finally {
+            def.end();
+        }
+    }
+
+    private static byte[] inflate(byte[] data) {
+        Inflater inf = new Inflater();
+        try {
+            inf.setInput(data);
+            ByteArrayOutputStream out = new ByteArrayOutputStream(data.length * 2);
+            byte[] buf = new byte[512];
+            while (!inf.finished()) {
+                int n = inf.inflate(buf);
+                if (n == 0 && (inf.needsInput() || inf.needsDictionary())) {
+                    throw new IllegalArgumentException("Truncated deflate stream");
+                }
+                out.write(buf, 0, n);
+                if (out.size() > MAX_INFLATED) throw new IllegalArgumentException("Compact credential too large");
+            }
+            return out.toByteArray();
+        } catch (DataFormatException e) {
+            throw new IllegalArgumentException("Corrupt deflate stream", e);
+        } finally {
+            inf.end();
+        }
+    }
+}
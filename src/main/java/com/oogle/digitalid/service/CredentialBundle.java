@@ -0,0 +1,402 @@
+package com.oogle.digitalid.service;
+
+import com.google.gson.Gson;
+import com.google.gson.GsonBuilder;
+import com.google.gson.JsonObject;
+import com.google.gson.JsonParseException;
+import com.oogle.digitalid.crypto.CanonicalJson;
+import com.oogle.digitalid.crypto.Crypto;
+import com.oogle.digitalid.crypto.SignatureSuite;
+import com.oogle.digitalid.model.DigitalId;
+
+import java.io.BufferedReader;
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.time.Instant;
+import java.util.zip.CRC32C;
+
+/**
+ * Many IDs in one read-only file, for handing to offline verifiers instead of a directory of
+ * loose {@code .did.json} files:
+ * <pre>
+ *   header:  int magic "DIDB", int version, long count, long slots, long indexOffset, long createdAt, int crc32c(index), int 0
+ *   records: int length, int crc32c(kind .. payload), short kind, short idLength, id, payload
+ *   index:   slots x { long keyHi, long keyLo, long offset (0 = empty) }
+ * </pre>
+ * A format 2 ID that is exactly what its JWS says is stored as the JWS alone ({@link #JWS});
+ * anything else as its JSON document ({@link #JSON}). The index is an open-addressing table
+ * like {@link LedgerIndex}'s. A {@link Writer} streams records and adds the index and header on
+ * close, then moves the file into place, so a bundle is either complete or absent.
+ * <p>
+ * Readers map the file once: {@link #forEach} walks the records in place, {@link #get} is one
+ * hash probe, and {@link Record#payload} is a view of the mapping, not a copy. A mapping is at
+ * most 2 GB, so a bundle is too (about three million EdDSA IDs).
+ */
+public final class CredentialBundle {
+    public static final int JWS = 1, JSON = 2;
+    public static final String SUFFIX = ".didb";
+
+    private static final int MAGIC = 0x44494442; // "DIDB"
+    private static final int VERSION = 1;
+    private static final int HEADER = 48;
+    private static final int COUNT_OFF = 8, SLOTS_OFF = 16, INDEX_OFF = 24, CREATED_OFF = 32, INDEX_CRC_OFF = 40;
+    private static final int RECORD_HEADER = 12;
+    private static final int SLOT = 24;
+    private static final long MAX_SIZE = Integer.MAX_VALUE;
+    private static final Gson GSON = new GsonBuilder().disableHtmlEscaping().create();
+
+    /** A record, read in place from the mapping. */
+    public final class Record {
+        public final int offset;
+        public final int kind;
+        public final String id;
+        private final int payloadOffset;
+        private final int payloadLength;
+
+        private Record(int offset, int kind, String id, int payloadOffset, int payloadLength) {
+            this.offset = offset;
+            this.kind = kind;
+            this.id = id;
+            this.payloadOffset = payloadOffset;
+            this.payloadLength = payloadLength;
+        }
+
+        /** The JWS or JSON bytes, as a read-only view of the mapped file. */
+        public ByteBuffer payload() {
+            return map.slice(payloadOffset, payloadLength).asReadOnlyBuffer();
+        }
+
+        /** The payload decoded: a compact JWS or a {@code .did.json} document. */
+        public String text() {
+            byte[] b = new byte[payloadLength];
+            map.get(payloadOffset, b);
+            return new String(b, StandardCharsets.UTF_8);
+        }
+
+        /** Whether the record still matches its checksum. */
+        public boolean intact() {
+            CRC32C crc = new CRC32C();
+            crc.update(map.slice(offset + 8, payloadOffset + payloadLength - offset - 8));
+            return (int) crc.getValue() == map.getInt(offset + 4);
+        }
+
+        /** The ID as its {@code .did.json} file would have it. */
+        public DigitalId toId() {
+            String text = text();
+            return kind == JWS ? fromJws(text) : IdVerifier.readId(text);
+        }
+
+        @Override public String toString() {
+            return file + ":" + id;
+        }
+    }
+
+    /** Receives records from {@link #forEach}. */
+    public interface Visitor {
+        void accept(Record r) throws IOException;
+    }
+
+    private final Path file;
+    private final MappedByteBuffer map;
+    private final int count;
+    private final int mask;
+    private final int indexOffset;
+
+    private CredentialBundle(Path file, MappedByteBuffer map, int count, int slots, int indexOffset) {
+        this.file = file;
+        this.map = map;
+        this.count = count;
+        this.mask = slots - 1;
+        this.indexOffset = indexOffset;
+    }
+
+    /** Maps {@code file} read-only, checking its header and index; records are checked as they are read. */
+    public static CredentialBundle open(Path file) throws IOException {
+        try (FileChannel ch = FileChannel.open(file, StandardOpenOption.READ)) {
+            long size = ch.size();
+            if (size < HEADER || size > MAX_SIZE) throw new IOException(file + " is not a credential bundle");
+            MappedByteBuffer m = ch.map(FileChannel.MapMode.READ_ONLY, 0, size);
+            m.order(ByteOrder.LITTLE_ENDIAN);
+            if (m.getInt(0) != MAGIC) throw new IOException(file + " is not a credential bundle");
+            if (m.getInt(4) != VERSION) throw new IOException(file + ": unsupported bundle version " + m.getInt(4));
+            long count = m.getLong(COUNT_OFF), slots = m.getLong(SLOTS_OFF), indexOffset = m.getLong(INDEX_OFF);
+            if (Long.bitCount(slots) != 1 || count * 2 > slots || indexOffset < HEADER || indexOffset + slots * SLOT != size) {
+                throw new IOException(file + ": damaged bundle header");
+            }
+            CRC32C crc = new CRC32C();
+            crc.update(m.slice((int) indexOffset, (int) (slots * SLOT)));
+            if ((int) crc.getValue() != m.getInt(INDEX_CRC_OFF)) throw new IOException(file + ": damaged bundle index");
+            return new CredentialBundle(file, m, (int) count, (int) slots, (int) indexOffset);
+        }
+    }
+
+    public static boolean isBundle(Path p) {
+        return p.getFileName().toString().endsWith(SUFFIX);
+    }
+
+    public Path file() { return file; }
+
+    public int size() {
+        return count;
+    }
+
+    public long createdAt() {
+        return map.getLong(CREATED_OFF);
+    }
+
+    /** The record for {@code id}, or null if the bundle holds none (or only a damaged one). */
+    public Record find(String id) throws IOException {
+        long[] key = IdLedger.keyOf(id);
+        int i = LedgerIndex.slotOf(key[0], key[1], mask);
+        // the file is untrusted: an index with no empty slot must not make a miss spin forever
+        for (long probes = 0; probes <= mask; probes++) {
+            int off = indexOffset + i * SLOT;
+            long loc = map.getLong(off + 16);
+            if (loc == 0) return null;
+            if (map.getLong(off) == key[0] && map.getLong(off + 8) == key[1]) {
+                Record r = record((int) loc);
+                return id.equals(r.id) && r.intact() ? r : null;
+            }
+            i = (i + 1) & mask;
+        }
+        throw new IOException(file + ": corrupt bundle index (no empty slot)");
+    }
+
+    public DigitalId get(String id) throws IOException {
+        Record r = find(id);
+        return r == null ? null : r.toId();
+    }
+
+    /**
+     * Visits every record in file order. Checksums are left to {@link Record#intact}, so callers
+     * that hand records to other threads check them there.
+     */
+    public void forEach(Visitor visitor) throws IOException {
+        int off = HEADER;
+        for (int n = 0; n < count; n++) {
+            Record r = record(off);
+            visitor.accept(r);
+            off = r.payloadOffset + r.payloadLength;
+        }
+    }
+
+    private Record record(int off) throws IOException {
+        if (off < HEADER || off + RECORD_HEADER > indexOffset) throw new IOException(file + ": bad record offset " + off);
+        int len = map.getInt(off);
+        int kind = map.getShort(off + 8);
+        int idLen = map.getShort(off + 10) & 0xFFFF;
+        int payload = off + RECORD_HEADER + idLen;
+        if (len < 0 || (long) payload + len > indexOffset) throw new IOException(file + ": damaged record at offset " + off);
+        byte[] id = new byte[idLen];
+        map.get(off + RECORD_HEADER, id);
+        return new Record(off, kind, new String(id, StandardCharsets.UTF_8), payload, len);
+    }
+
+    /** Rebuilds the document a format 2 ID was stored from: the JWS body plus what its header says. */
+    static DigitalId fromJws(String jws) {
+        int p = jws.indexOf('.');
+        int s = jws.lastIndexOf('.');
+        if (p <= 0 || s <= p) throw new IllegalArgumentException("not a compact JWS");
+        byte[] body = Crypto.b64UrlDecode(jws.substring(p + 1, s));
+        DigitalId d = GSON.fromJson(new String(body, StandardCharsets.UTF_8), DigitalId.class);
+        if (d == null) throw new IllegalArgumentException("empty JWS body");
+        JsonObject header = Crypto.jwsHeader(jws);
+        SignatureSuite suite = header == null || !header.has("alg") ? null : SignatureSuite.fromJwsAlg(header.get("alg").getAsString());
+        d.canonicalization = CanonicalJson.JCS;
+        d.signatureAlg = suite == null ? null : suite.signatureAlg;
+        d.kid = header == null || !header.has("kid") ? null : header.get("kid").getAsString();
+        d.jwsCompact = jws;
+        return d;
+    }
+
+    public static Writer create(Path file) throws IOException {
+        return new Writer(file);
+    }
+
+    /**
+     * Streams records to {@code <file>.tmp} through a direct buffer; {@link #close} writes the
+     * index by walking the records back through a mapping, so no per-record state is kept on
+     * the heap. {@link #add} may be called from several threads.
+     */
+    public static final class Writer implements Closeable {
+        private final Path file;
+        private final Path tmp;
+        private final FileChannel ch;
+        private final ByteBuffer buf = ByteBuffer.allocateDirect(1 << 20).order(ByteOrder.LITTLE_ENDIAN);
+        private long position = HEADER;
+        private int count;
+        private boolean closed;
+
+        private Writer(Path file) throws IOException {
+            this.file = file;
+            this.tmp = file.resolveSibling(file.getFileName() + ".tmp");
+            Path parent = file.toAbsolutePath().getParent();
+            if (parent != null) Files.createDirectories(parent);
+            this.ch = FileChannel.open(tmp, StandardOpenOption.CREATE, StandardOpenOption.TRUNCATE_EXISTING,
+                    StandardOpenOption.READ, StandardOpenOption.WRITE);
+            buf.position(HEADER); // header is written on close
+        }
+
+        /** Appends {@code d}; it can be looked up once the bundle is closed. */
+        public synchronized void add(DigitalId d) throws IOException {
+            if (closed) throw new IllegalStateException("Bundle " + file + " is closed");
+            if (d.id == null) throw new IllegalArgumentException("ID has no id");
+            byte[] id = d.id.getBytes(StandardCharsets.UTF_8);
+            if (id.length > 0xFFFF) throw new IllegalArgumentException("id too long: " + d.id.substring(0, 32) + "...");
+            String json = GSON.toJson(d);
+            boolean jwsOnly = isJwsOnly(d, json);
+            byte[] payload = (jwsOnly ? d.jwsCompact : json).getBytes(StandardCharsets.UTF_8);
+            int size = RECORD_HEADER + id.length + payload.length;
+            // leave room for the index: at worst twice the slots this many records needs
+            long indexBytes = (long) slotsFor(count + 1) * SLOT;
+            if (position + size + indexBytes > MAX_SIZE) throw new IOException("Bundle " + file + " is full at " + count + " IDs");
+
+            ByteBuffer b = buf;
+            if (size > buf.capacity()) {
+                flush();
+                b = ByteBuffer.allocate(size).order(ByteOrder.LITTLE_ENDIAN);
+            } else if (buf.remaining() < size) {
+                flush();
+            }
+            int start = b.position();
+            b.putInt(payload.length).putInt(0).putShort((short) (jwsOnly ? JWS : JSON)).putShort((short) id.length).put(id).put(payload);
+            CRC32C crc = new CRC32C();
+            crc.update(b.slice(start + 8, size - 8));
+            b.putInt(start + 4, (int) crc.getValue());
+            if (b != buf) writeFully(b.flip(), position);
+            position += size;
+            count++;
+        }
+
+        /**
+         * Adds every ID in a {@code .did.json} file, a JSONL file, or the matching files under a
+         * directory or glob, as {@link BatchVerifier} expands them. Returns how many were added.
+         */
+        public int addAll(String input) throws IOException {
+            int before = count();
+            BatchVerifier.expand(input, p -> {
+                String name = p.getFileName().toString();
+                if (isBundle(p)) return;
+                if (name.endsWith(".jsonl") || name.endsWith(".ndjson")) {
+                    try (BufferedReader in = Files.newBufferedReader(p, StandardCharsets.UTF_8)) {
+                        String line;
+                        while ((line = in.readLine()) != null) {
+                            if (!line.isBlank()) add(read(line, p));
+                        }
+                    }
+                } else {
+                    add(read(Files.readString(p), p));
+                }
+            });
+            return count() - before;
+        }
+
+        private static DigitalId read(String json, Path source) throws IOException {
+            try {
+                DigitalId d = IdVerifier.readId(json);
+                if (d == null || d.id == null) throw new IOException(source + " is not an ID document");
+                return d;
+            } catch (JsonParseException e) {
+                throw new IOException(source + ": " + e.getMessage(), e);
+            }
+        }
+
+        public synchronized int count() {
+            return count;
+        }
+
+        /** Writes the index and header, syncs, and moves the bundle into place. */
+        @Override public synchronized void close() throws IOException {
+            if (closed) return;
+            closed = true;
+            try {
+                flush();
+                int slots = slotsFor(count);
+                long size = position + (long) slots * SLOT;
+                MappedByteBuffer m = ch.map(FileChannel.MapMode.READ_WRITE, 0, size);
+                m.order(ByteOrder.LITTLE_ENDIAN);
+                buildIndex(m, (int) position, slots);
+                CRC32C crc = new CRC32C();
+                crc.update(m.slice((int) position, slots * SLOT));
+                m.putInt(0, MAGIC).putInt(4, VERSION).putLong(COUNT_OFF, count).putLong(SLOTS_OFF, slots)
+                        .putLong(INDEX_OFF, position).putLong(CREATED_OFF, Instant.now().getEpochSecond())
+                        .putInt(INDEX_CRC_OFF, (int) crc.getValue()).putInt(INDEX_CRC_OFF + 4, 0);
+                m.force();
+                ch.close();
+                Files.move(tmp, file, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+            } catch (IOException | RuntimeException e) {
+                ch.close();
+                Files.deleteIfExists(tmp);
+                throw e;
+            }
+        }
+
+        /** Drops what was written so far; no bundle is created. */
+        public synchronized void abort() throws IOException {
+            if (closed) return;
+            closed = true;
+            ch.close();
+            Files.deleteIfExists(tmp);
+        }
+
+        private void buildIndex(MappedByteBuffer m, int indexOffset, int slots) throws IOException {
+            int mask = slots - 1;
+            int off = HEADER;
+            for (int n = 0; n < count; n++) {
+                int len = m.getInt(off);
+                int idLen = m.getShort(off + 10) & 0xFFFF;
+                byte[] idBytes = new byte[idLen];
+                m.get(off + RECORD_HEADER, idBytes);
+                String id = new String(idBytes, StandardCharsets.UTF_8);
+                long[] key = IdLedger.keyOf(id);
+                int i = LedgerIndex.slotOf(key[0], key[1], mask);
+                for (long probes = 0; ; probes++) {
+                    if (probes > mask) throw new IOException("Bundle index for " + file + " is full");
+                    int slot = indexOffset + i * SLOT;
+                    if (m.getLong(slot + 16) == 0) {
+                        m.putLong(slot, key[0]).putLong(slot + 8, key[1]).putLong(slot + 16, off);
+                        break;
+                    }
+                    if (m.getLong(slot) == key[0] && m.getLong(slot + 8) == key[1]) {
+                        throw new IOException("ID " + id + " is in bundle " + file + " twice");
+                    }
+                    i = (i + 1) & mask;
+                }
+                off += RECORD_HEADER + idLen + len;
+            }
+        }
+
+        private void flush() throws IOException {
+            buf.flip();
+            if (buf.remaining() > 0) writeFully(buf, position - buf.remaining());
+            buf.clear();
+        }
+
+        private void writeFully(ByteBuffer b, long at) throws IOException {
+            while (b.hasRemaining()) at += ch.write(b, at);
+        }
+
+        // A format 2 ID whose document is exactly what its JWS rebuilds to loses nothing by storing the JWS alone
+        private static boolean isJwsOnly(DigitalId d, String json) {
+            if (d.version == null || d.version != DigitalId.FORMAT_V2 || d.jwsCompact == null) return false;
+            try {
+                return GSON.toJson(fromJws(d.jwsCompact)).equals(json);
+            } catch (RuntimeException e) {
+                return false;
+            }
+        }
+
+        private static int slotsFor(int count) {
+            return Math.max(16, Integer.highestOneBit(Math.max(1, count) * 2 - 1) << 1);
+        }
+    }
+}
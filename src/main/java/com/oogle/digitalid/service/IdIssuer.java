@@ -2,67 +2,168 @@ package com.oogle.digitalid.service;
 
 import com.google.gson.Gson;
 import com.google.gson.GsonBuilder;
+import com.oogle.digitalid.crypto.CanonicalJson;
 import com.oogle.digitalid.crypto.Crypto;
+import com.oogle.digitalid.crypto.IssuerKeys;
+import com.oogle.digitalid.crypto.SignatureSuite;
+import com.oogle.digitalid.crypto.TrustStore;
+import com.oogle.digitalid.metrics.Metrics;
 import com.oogle.digitalid.model.DigitalId;
-import com.oogle.digitalid.util.Pem;
-import com.google.zxing.BarcodeFormat;
-import com.google.zxing.WriterException;
-import com.google.zxing.client.j2se.MatrixToImageWriter;
-import com.google.zxing.qrcode.QRCodeWriter;
-
-import java.awt.*;
-import java.awt.geom.RoundRectangle2D;
-import java.awt.image.BufferedImage;
+import com.oogle.digitalid.model.IssueRequest;
+import com.oogle.digitalid.model.MerkleProof;
+import com.oogle.digitalid.model.VerifyResult;
+import com.google.zxing.common.BitMatrix;
+
 import java.io.IOException;
 import java.net.URLEncoder;
 import java.nio.charset.StandardCharsets;
 import java.nio.file.*;
-import java.security.KeyPair;
 import java.security.PrivateKey;
 import java.security.PublicKey;
 import java.time.Instant;
+import java.util.ArrayList;
+import java.util.EnumSet;
+import java.util.List;
+import java.util.Set;
 import java.util.UUID;
 
 public class IdIssuer {
     private static final Gson GSON = new GsonBuilder().disableHtmlEscaping().setPrettyPrinting().create();
 
-    private final Path keyDir;
+    private static final Metrics.Stage ISSUE = Metrics.stage("issue");
+    private static final Metrics.Stage ISSUE_CANONICALIZE = Metrics.stage("issue.canonicalize");
+    private static final Metrics.Stage ISSUE_HASH = Metrics.stage("issue.hash");
+    private static final Metrics.Stage ISSUE_SIGN = Metrics.stage("issue.sign");
+    private static final Metrics.Stage ISSUE_JWS = Metrics.stage("issue.jws");
+    private static final Metrics.Stage ISSUE_BATCH = Metrics.stage("issue.batch");
+    private static final Metrics.Stage FILE_WRITE = Metrics.stage("file.write");
+
     private final String issuerName;
     private final String verifyBaseUrl; // optional
+    private final IssuerKeys keys;
+    private final SignatureSuite newKeySuite; // only used when keyDir has no keys yet
+    private volatile CardRenderer renderer;
+    private volatile QrFormat qrFormat = QrFormat.JWS;
+    private volatile int formatVersion = DigitalId.FORMAT_V2;
+    private volatile IdentityIndex identityIndex;
+    private volatile Set<IdentityIndex.Field> uniqueFields = EnumSet.of(IdentityIndex.Field.EMAIL);
+    private final IdVerifier verifier;
+
+    public enum QrFormat {
+        /** The base64url compact JWS, readable by any JOSE library. */
+        JWS,
+        /** {@link CompactCredential}: CBOR + deflate + Base45, for much smaller QR codes. */
+        COMPACT
+    }
 
     public IdIssuer(Path keyDir, String issuerName) {
         this(keyDir, issuerName, null);
     }
 
     public IdIssuer(Path keyDir, String issuerName, String verifyBaseUrl) {
-        this.keyDir = keyDir;
+        this(keyDir, issuerName, verifyBaseUrl, SignatureSuite.RS256);
+    }
+
+    public IdIssuer(Path keyDir, String issuerName, String verifyBaseUrl, SignatureSuite newKeySuite) {
         this.issuerName = issuerName;
         this.verifyBaseUrl = verifyBaseUrl;
+        this.keys = IssuerKeys.forDir(keyDir);
+        this.newKeySuite = newKeySuite;
+        this.verifier = new IdVerifier(keyDir, issuerName);
+        this.renderer = new CardRenderer(
+                (verifyBaseUrl != null && !verifyBaseUrl.isBlank()) ? "Scan to verify online" : "Scan to import",
+                CardRenderer.PngCompression.DEFAULT);
     }
 
     public void ensureIssuerKeys() throws IOException {
-        Path priv = keyDir.resolve("issuer_private.pem");
-        Path pub  = keyDir.resolve("issuer_public.pem");
-        if (Files.exists(priv) && Files.exists(pub)) return;
+        keys.current(newKeySuite);
+    }
+
+    public IssuerKeys keys() {
+        return keys;
+    }
+
+    public CardRenderer cardRenderer() {
+        return renderer;
+    }
+
+    public void setQrFormat(QrFormat qrFormat) {
+        this.qrFormat = qrFormat;
+    }
+
+    public void setPngCompression(CardRenderer.PngCompression compression) {
+        renderer = new CardRenderer(renderer.caption(), compression);
+    }
+
+    /**
+     * Format for new IDs: {@link DigitalId#FORMAT_V2} (default) signs once, into the JWS; 1 adds
+     * a detached signature over the same payload, for verifiers that predate format 2.
+     */
+    public void setFormatVersion(int version) {
+        if (version != 1 && version != DigitalId.FORMAT_V2) throw new IllegalArgumentException("Unknown ID format " + version);
+        this.formatVersion = version;
+    }
+
+    /** The verification side of this issuer; headless verifiers construct an {@link IdVerifier} directly. */
+    public IdVerifier verifier() {
+        return verifier;
+    }
+
+    /** Remembers verdicts so re-presented credentials skip the signature checks; null turns caching off. */
+    public void setVerificationCache(VerificationCache cache) {
+        verifier.setVerificationCache(cache);
+    }
+
+    public VerificationCache verificationCache() {
+        return verifier.verificationCache();
+    }
 
-        KeyPair kp = Crypto.generateRsa2048();
-        Pem.write(priv, Crypto.toPemPrivate(kp.getPrivate()));
-        Pem.write(pub,  Crypto.toPemPublic(kp.getPublic()));
-        System.out.println("Generated issuer keypair at: " + keyDir.toAbsolutePath());
+    /** Gives every ID issued from now on a {@code statusIndex} in {@code list}, and checks it on verify. */
+    public void setRevocationList(RevocationList list) {
+        verifier.setRevocationList(list);
+    }
+
+    public RevocationList revocationList() {
+        return verifier.revocationList();
+    }
+
+    /**
+     * Accepts IDs from every issuer in {@code store}, each only under the issuer name its key is
+     * trusted for. This issuer's own keys in {@code keyDir}, if any, stay trusted for its own name.
+     */
+    public void setTrustStore(TrustStore store) {
+        verifier.setTrustStore(store);
+    }
+
+    public TrustStore trustStore() {
+        return verifier.trustStore();
+    }
+
+    /**
+     * Adds every ID issued from now on to {@code index}, and refuses, with an
+     * {@link IdentityIndex.DuplicateException}, to issue one whose value in any of {@code unique}
+     * already belongs to an indexed ID. Null turns both off.
+     */
+    public void setIdentityIndex(IdentityIndex index, Set<IdentityIndex.Field> unique) {
+        this.uniqueFields = unique.isEmpty() ? EnumSet.noneOf(IdentityIndex.Field.class) : EnumSet.copyOf(unique);
+        this.identityIndex = index;
+    }
+
+    public IdentityIndex identityIndex() {
+        return identityIndex;
     }
 
     public PublicKey getIssuerPublicKey() throws IOException {
-        String pem = Pem.read(keyDir.resolve("issuer_public.pem"));
-        return Crypto.publicFromPem(pem);
+        return keys.current(newKeySuite).publicKey;
     }
 
     public PrivateKey getIssuerPrivateKey() throws IOException {
-        String pem = Pem.read(keyDir.resolve("issuer_private.pem"));
-        return Crypto.privateFromPem(pem);
+        return keys.current(newKeySuite).privateKey;
     }
 
     public DigitalId issue(String fullName, String dob, String email, String phone, Long expiresAt) throws IOException {
-        ensureIssuerKeys();
+        long start = Metrics.start();
+        IssuerKeys.Active key = keys.current(newKeySuite);
         long now = Instant.now().getEpochSecond();
 
         DigitalId d = DigitalId.basic(
@@ -75,66 +176,226 @@ public class IdIssuer {
                 now,
                 expiresAt
         );
+        // claimed before anything is spent on it; the claim and status index are given back if signing fails
+        IdentityIndex index = identityIndex;
+        if (index != null) {
+            IdentityIndex.Match dup = index.claim(d, uniqueFields);
+            if (dup != null) throw new IdentityIndex.DuplicateException(dup, null);
+        }
+        RevocationList list = verifier.revocationList();
+        try {
+            return sign(d, key, list, start);
+        } catch (IOException | RuntimeException e) {
+            giveBack(d, index, list);
+            throw e;
+        }
+    }
 
-        DigitalId copy = DigitalId.basic(d.id, d.fullName, d.dateOfBirth, d.email, d.phone, d.issuer, d.issuedAt, d.expiresAt);
-        String canonical = Crypto.canonicalize(copy);
-        d.canonicalPayload = canonical;
+    // Only for an ID that was never signed: once it has been, its status index may be out there
+    private static void giveBack(DigitalId d, IdentityIndex index, RevocationList list) {
+        if (index != null) index.remove(d);
+        if (list != null && d.statusIndex != null) list.release(d.statusIndex);
+    }
+
+    private DigitalId sign(DigitalId d, IssuerKeys.Active key, RevocationList list, long start) throws IOException {
+        if (list != null) d.statusIndex = list.allocate();
+        boolean v2 = formatVersion == DigitalId.FORMAT_V2;
+        if (v2) d.version = DigitalId.FORMAT_V2;
+
+        // One canonical byte array feeds the JWS body and, in format 1, the hash and detached signature
+        long t = Metrics.start();
+        byte[] canonical = CanonicalJson.encode(d);
+        d.canonicalization = CanonicalJson.JCS;
+        d.canonicalBytes = canonical;
+        t = ISSUE_CANONICALIZE.stop(t);
+
+        // The key type picks the algorithm, so rotating to an EdDSA key switches issuance over
+        d.signatureAlg = key.suite.signatureAlg;
+        d.kid = key.kid;
+        if (v2) {
+            // The JWS is the credential; its body is the canonical payload, so nothing else is signed
+            d.jwsCompact = Crypto.packAsCompactJws(canonical, key.privateKey, key.kid);
+            ISSUE_JWS.stop(t);
+            ISSUE.stop(start);
+            return d;
+        }
 
-        byte[] hash = Crypto.sha256(canonical.getBytes(StandardCharsets.UTF_8));
+        d.canonicalPayload = new String(canonical, StandardCharsets.UTF_8);
+        byte[] hash = Crypto.sha256(canonical);
         d.payloadHash = Crypto.b64Url(hash);
+        t = ISSUE_HASH.stop(t);
 
-        d.signatureAlg = "SHA256withRSA";
-        byte[] sig = Crypto.signSha256Rsa(canonical.getBytes(StandardCharsets.UTF_8), getIssuerPrivateKey());
+        byte[] sig = key.suite.sign(canonical, key.privateKey);
         d.signature = Crypto.b64Url(sig);
+        t = ISSUE_SIGN.stop(t);
 
-        d.jwsCompact = Crypto.packAsCompactJws(canonical, getIssuerPrivateKey());
+        d.jwsCompact = Crypto.packAsCompactJws(canonical, key.privateKey, key.kid);
+        ISSUE_JWS.stop(t);
 
+        ISSUE.stop(start);
         return d;
     }
 
-    public Path saveIdFiles(DigitalId d, Path outDir) throws IOException {
-        Files.createDirectories(outDir);
-        Path json = outDir.resolve(d.id + ".did.json");
-        Files.writeString(json, GSON.toJson(d));
+    /**
+     * Issues {@code requests} as one batch (format 3): their payloads become the leaves of a
+     * Merkle tree and only the root is signed, so the batch costs one private-key operation
+     * however large it is. Each ID carries its inclusion proof. IDs come back in request order.
+     * With an identity index set, one duplicate fails the whole batch before anything is signed;
+     * the exception names the request so the caller can drop it and try again.
+     */
+    public List<DigitalId> issueBatch(List<IssueRequest> requests) throws IOException {
+        if (requests.isEmpty()) return List.of();
+        long start = Metrics.start();
+        IssuerKeys.Active key = keys.current(newKeySuite);
+        long now = Instant.now().getEpochSecond();
+        RevocationList list = verifier.revocationList();
+        IdentityIndex index = identityIndex;
+
+        int n = requests.size();
+        List<DigitalId> ids = new ArrayList<>(n);
+        for (IssueRequest r : requests) {
+            DigitalId d = DigitalId.basic(
+                    UUID.randomUUID().toString(),
+                    r.fullName,
+                    emptyToNull(r.dateOfBirth),
+                    emptyToNull(r.email),
+                    emptyToNull(r.phone),
+                    issuerName,
+                    now,
+                    r.expiresAt
+            );
+            if (index != null) {
+                IdentityIndex.Match dup = index.claim(d, uniqueFields);
+                if (dup != null) {
+                    for (DigitalId claimed : ids) {
+                        index.remove(claimed);
+                        // its id is thrown away with the batch, so don't name it
+                        if (claimed.id.equals(dup.id)) dup = new IdentityIndex.Match(dup.field, null);
+                    }
+                    throw new IdentityIndex.DuplicateException(dup, r);
+                }
+            }
+            ids.add(d);
+        }
+        try {
+            signBatch(ids, key, list);
+        } catch (IOException | RuntimeException e) {
+            // newest first, so a batch nobody allocated after gives back all its indices
+            for (int i = ids.size() - 1; i >= 0; i--) giveBack(ids.get(i), index, list);
+            throw e;
+        }
+        ISSUE_BATCH.stop(start);
+        return ids;
+    }
+
+    private static void signBatch(List<DigitalId> ids, IssuerKeys.Active key, RevocationList list) throws IOException {
+        int n = ids.size();
+        byte[][] leaves = new byte[n][];
+        for (int i = 0; i < n; i++) {
+            DigitalId d = ids.get(i);
+            if (list != null) d.statusIndex = list.allocate();
+            d.version = DigitalId.FORMAT_BATCH;
+            d.canonicalBytes = CanonicalJson.encode(d);
+            d.canonicalization = CanonicalJson.JCS;
+            d.signatureAlg = key.suite.signatureAlg;
+            d.kid = key.kid;
+            leaves[i] = MerkleBatch.leaf(d.canonicalBytes);
+        }
 
-        // QR payload
-        String qrPayload = d.jwsCompact;
+        MerkleBatch.Tree tree = MerkleBatch.build(leaves);
+        String rootJws = Crypto.packAsCompactJws(MerkleBatch.rootPayload(tree.root(), n), key.privateKey, key.kid, MerkleBatch.JWS_TYPE);
+        for (int i = 0; i < n; i++) {
+            MerkleProof p = new MerkleProof();
+            p.index = i;
+            p.path = Crypto.b64Url(tree.proof(i));
+            p.rootJws = rootJws;
+            ids.get(i).merkleProof = p;
+        }
+    }
+
+    /** Text encoded into the QR: the JWS or compact credential, wrapped in the verify URL if one is set. */
+    public String qrPayload(DigitalId d) {
+        // a batch-signed ID has no JWS of its own, so it always goes compact
+        boolean compact = (qrFormat == QrFormat.COMPACT || d.merkleProof != null) && CanonicalJson.JCS.equals(d.canonicalization);
+        String token = compact ? CompactCredential.encode(d, true) : d.jwsCompact;
         if (verifyBaseUrl != null && !verifyBaseUrl.isBlank()) {
-            String enc = URLEncoder.encode(d.jwsCompact, StandardCharsets.UTF_8);
-            qrPayload = verifyBaseUrl + (verifyBaseUrl.contains("?") ? "&" : "?") + "jws=" + enc;
+            String enc = URLEncoder.encode(token, StandardCharsets.UTF_8);
+            return verifyBaseUrl + (verifyBaseUrl.contains("?") ? "&" : "?") + (compact ? "c=" : "jws=") + enc;
         }
+        return token;
+    }
+
+    public Path saveIdFiles(DigitalId d, Path outDir) throws IOException {
+        Path json = saveIdJson(d, outDir);
+        saveIdImages(d, outDir);
+        return json;
+    }
+
+    /** Writes just the QR and card PNGs, e.g. for an ID read back from an {@link IdLedger}. */
+    public void saveIdImages(DigitalId d, Path outDir) throws IOException {
+        Files.createDirectories(outDir);
+
+        // Encoded once, drawn into both images
+        BitMatrix qr = CardRenderer.encodeQr(qrPayload(d));
+        CardRenderer r = renderer;
 
         // Plain QR image
         Path qrPng = outDir.resolve(d.id + ".qr.png");
-        writeQrPng(qrPayload, 512, qrPng);
+        r.writeQrPng(qr, 512, qrPng);
 
         // ID Card image
         Path cardPng = outDir.resolve(d.id + ".card.png");
-        writeIdCardPng(d, qrPayload, 1000, 600, cardPng);
+        r.writeCardPng(d, qr, cardPng);
+    }
 
+    public Path saveIdJson(DigitalId d, Path outDir) throws IOException {
+        Files.createDirectories(outDir);
+        Path json = outDir.resolve(d.id + ".did.json");
+        String text = toJson(d);
+        long t = Metrics.start();
+        Files.writeString(json, text);
+        FILE_WRITE.stop(t);
         return json;
     }
 
-    public boolean verify(Path jsonPath) throws IOException {
-        String json = Files.readString(jsonPath);
-        DigitalId d = GSON.fromJson(json, DigitalId.class);
-        if (d == null) return false;
+    /** The {@code .did.json} form of an ID. */
+    public static String toJson(DigitalId d) {
+        return GSON.toJson(d);
+    }
 
-        DigitalId copy = DigitalId.basic(d.id, d.fullName, d.dateOfBirth, d.email, d.phone, d.issuer, d.issuedAt, d.expiresAt);
-        String canonical = Crypto.canonicalize(copy);
+    public boolean verify(Path jsonPath) throws IOException {
+        return verifier.verify(jsonPath);
+    }
 
-        byte[] expectedHash = Crypto.sha256(canonical.getBytes(StandardCharsets.UTF_8));
-        boolean hashOk = Crypto.b64Url(expectedHash).equals(d.payloadHash);
+    /** See {@link IdVerifier#verifyToken}. */
+    public VerifyResult verifyToken(String scanned) throws IOException {
+        return verifier.verifyToken(scanned);
+    }
 
-        boolean sigOk = Crypto.verifySha256Rsa(
-                canonical.getBytes(StandardCharsets.UTF_8),
-                Crypto.b64UrlDecode(d.signature),
-                getIssuerPublicKey()
-        );
+    public static DigitalId readId(String json) {
+        return IdVerifier.readId(json);
+    }
 
-        boolean jwsOk = d.jwsCompact == null || Crypto.verifyCompactJws(d.jwsCompact, getIssuerPublicKey());
+    public VerifyResult verify(DigitalId d) throws IOException {
+        return verifier.verify(d);
+    }
 
-        return hashOk && sigOk && jwsOk && !(d.expiresAt != null && d.isExpired());
+    /**
+     * Revokes {@code d} in the revocation list. Only IDs this issuer signed, and issued while a
+     * list was set, can be revoked. Returns false if it already was.
+     */
+    public boolean revoke(DigitalId d) throws IOException {
+        RevocationList list = verifier.revocationList();
+        if (list == null) throw new IllegalStateException("No revocation list configured");
+        if (d.statusIndex == null || !CanonicalJson.JCS.equals(d.canonicalization)) {
+            throw new IllegalArgumentException("ID " + d.id + " has no status index and cannot be revoked");
+        }
+        VerifyResult r = verifier.checkSignatures(d);
+        if (!r.hashOk || !r.signatureOk) throw new IllegalArgumentException("ID " + d.id + " was not signed by this issuer");
+        boolean changed = list.revoke(d.statusIndex);
+        VerificationCache cache = verifier.verificationCache();
+        if (cache != null) cache.invalidateId(d.id);
+        return changed;
     }
 
     private static String emptyToNull(String s) {
@@ -142,119 +403,4 @@ public class IdIssuer {
         String t = s.trim();
         return t.isEmpty() ? null : t;
     }
-
-    private static void writeQrPng(String text, int size, Path path) throws IOException {
-        QRCodeWriter writer = new QRCodeWriter();
-        try {
-            var matrix = writer.encode(text, BarcodeFormat.QR_CODE, size, size);
-            MatrixToImageWriter.writeToPath(matrix, "PNG", path);
-        } catch (WriterException e) {
-            throw new IOException("Failed to write QR", e);
-        }
-    }
-
-    private void writeIdCardPng(DigitalId d, String qrPayload, int width, int height, Path out) throws IOException {
-        BufferedImage img = new BufferedImage(width, height, BufferedImage.TYPE_INT_ARGB);
-        java.awt.Graphics2D g = img.createGraphics();
-        try {
-            g.setRenderingHint(RenderingHints.KEY_ANTIALIASING, RenderingHints.VALUE_ANTIALIAS_ON);
-
-            // Background
-            g.setColor(new Color(0x0E, 0x11, 0x17));
-            g.fillRect(0, 0, width, height);
-
-            // Card plate
-            int pad = 30;
-            int cardW = width - pad * 2;
-            int cardH = height - pad * 2;
-            RoundRectangle2D.Float plate = new RoundRectangle2D.Float(pad, pad, cardW, cardH, 28, 28);
-            g.setColor(new Color(0x14, 0x18, 0x24));
-            g.fill(plate);
-
-            // Left column
-            int leftPad = pad + 30;
-            int top = pad + 40;
-
-            g.setColor(new Color(0xE6, 0xE7, 0xEA));
-            g.setFont(new Font("Segoe UI", Font.BOLD, 34));
-            g.drawString("Digital ID", leftPad, top);
-            g.setFont(new Font("Segoe UI", Font.PLAIN, 16));
-            g.setColor(new Color(0x9A, 0xA0, 0xAE));
-            g.drawString("Issuer: " + d.issuer, leftPad, top + 26);
-
-            g.setColor(new Color(0x28, 0x30, 0x44));
-            g.fillRect(leftPad, top + 40, cardW - 420, 1);
-
-            int y = top + 80;
-            int line = 34;
-            g.setColor(new Color(0xE6, 0xE7, 0xEA));
-            g.setFont(new Font("Segoe UI", Font.BOLD, 22));
-            g.drawString("Full Name", leftPad, y); y += 26;
-            g.setFont(new Font("Segoe UI", Font.PLAIN, 22));
-            g.drawString(nz(d.fullName), leftPad, y); y += line;
-
-            if (d.dateOfBirth != null) {
-                g.setFont(new Font("Segoe UI", Font.BOLD, 22));
-                g.drawString("Date of Birth", leftPad, y); y += 26;
-                g.setFont(new Font("Segoe UI", Font.PLAIN, 22));
-                g.drawString(d.dateOfBirth, leftPad, y); y += line;
-            }
-
-            if (d.email != null) {
-                g.setFont(new Font("Segoe UI", Font.BOLD, 22));
-                g.drawString("Email", leftPad, y); y += 26;
-                g.setFont(new Font("Segoe UI", Font.PLAIN, 22));
-                g.drawString(d.email, leftPad, y); y += line;
-            }
-
-            if (d.phone != null) {
-                g.setFont(new Font("Segoe UI", Font.BOLD, 22));
-                g.drawString("Phone", leftPad, y); y += 26;
-                g.setFont(new Font("Segoe UI", Font.PLAIN, 22));
-                g.drawString(d.phone, leftPad, y); y += line;
-            }
-
-            String issuedStr = java.time.ZonedDateTime.ofInstant(java.time.Instant.ofEpochSecond(d.issuedAt), java.time.ZoneOffset.UTC).toLocalDate().toString();
-            String expiresStr = (d.expiresAt == null) ? "—" :
-                    java.time.ZonedDateTime.ofInstant(java.time.Instant.ofEpochSecond(d.expiresAt), java.time.ZoneOffset.UTC).toLocalDate().toString();
-
-            y += 8;
-            g.setFont(new Font("Segoe UI", Font.PLAIN, 16));
-            g.setColor(new Color(0x9A, 0xA0, 0xAE));
-            g.drawString("Issued: " + issuedStr + "   Expires: " + expiresStr, leftPad, y);
-
-            // Right: QR
-            int qrSize = 340;
-            int qrX = pad + cardW - qrSize - 40;
-            int qrY = pad + (cardH - qrSize) / 2;
-
-            var matrix = new com.google.zxing.qrcode.QRCodeWriter()
-                    .encode(qrPayload, com.google.zxing.BarcodeFormat.QR_CODE, qrSize, qrSize);
-            BufferedImage qr = com.google.zxing.client.j2se.MatrixToImageWriter.toBufferedImage(matrix);
-
-            g.setColor(new Color(0x0F, 0x13, 0x20));
-            g.fill(new RoundRectangle2D.Float(qrX - 16, qrY - 16, qrSize + 32, qrSize + 32, 20, 20));
-            g.drawImage(qr, qrX, qrY, null);
-
-            g.setFont(new Font("Segoe UI", Font.PLAIN, 14));
-            g.setColor(new Color(0x9A, 0xA0, 0xAE));
-            String cap = (verifyBaseUrl != null && !verifyBaseUrl.isBlank())
-                    ? "Scan to verify online"
-                    : "Scan to import";
-            int capWidth = g.getFontMetrics().stringWidth(cap);
-            g.drawString(cap, qrX + (qrSize - capWidth) / 2, qrY + qrSize + 32);
-
-            g.setFont(new Font("Consolas", Font.PLAIN, 14));
-            g.setColor(new Color(0x6B, 0x72, 0x84));
-            String idLine = "ID: " + d.id.substring(0, Math.min(12, d.id.length())) + "…";
-            g.drawString(idLine, leftPad, pad + cardH - 16);
-        } catch (Exception ex) {
-            throw new IOException("Failed to render ID card", ex);
-        } finally {
-            g.dispose();
-        }
-        javax.imageio.ImageIO.write(img, "PNG", out.toFile());
-    }
-
-    private static String nz(String s) { return (s == null || s.isBlank()) ? "—" : s; }
 }
@@ -0,0 +1,325 @@
+package com.oogle.digitalid.service;
+
+import com.google.gson.Gson;
+import com.google.gson.JsonParseException;
+import com.oogle.digitalid.crypto.Crypto;
+import com.oogle.digitalid.model.DigitalId;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Locale;
+import java.util.UUID;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.function.Consumer;
+import java.util.zip.CRC32C;
+
+/**
+ * Append-only store of issued IDs: fixed-size memory-mapped segment files plus a
+ * {@link LedgerIndex} from id to record, replacing one loose {@code .did.json} per ID.
+ * <pre>
+ *   segment-000000.log:  int magic "DIDL", int version, int segment, int 0,
+ *                        then records: int length, int crc32c(key + json), long keyHi, long keyLo, json
+ * </pre>
+ * A record's length is written last and a zero length marks the end of a segment, so a torn
+ * append is cut off by the CRC check on open and the tail behind it is zeroed.
+ * {@link #append} only copies into the mapping; {@link #awaitDurable} is a group commit, so
+ * one msync covers every record appended before it, however many threads are waiting on it.
+ * Opening a ledger takes {@value #LOCK_FILE} in its directory, so a second process (or a second
+ * open in this one) fails instead of appending over the first.
+ */
+public final class IdLedger implements Closeable {
+    public static final int DEFAULT_SEGMENT_SIZE = 64 << 20;
+    static final String INDEX_FILE = "index.bin";
+    static final String LOCK_FILE = "ledger.lock";
+
+    private static final int MAGIC = 0x4449444C; // "DIDL"
+    private static final int VERSION = 1;
+    private static final int SEGMENT_HEADER = 16;
+    private static final int RECORD_HEADER = 24;
+    private static final Gson GSON = new Gson();
+
+    private final Path dir;
+    private final int segmentSize;
+    private final LedgerIndex index;
+    private final WriterLock lock;
+    // mapping per segment number; the last one is the active segment
+    private final List<MappedByteBuffer> segments = new CopyOnWriteArrayList<>();
+    private final Object syncLock = new Object();
+    private int writePos;           // guarded by this
+    private volatile long written;  // location just past the last appended record
+    private volatile long durable;  // location up to which records are forced to disk
+
+    private IdLedger(Path dir, int segmentSize, LedgerIndex index, WriterLock lock) {
+        this.dir = dir;
+        this.segmentSize = segmentSize;
+        this.index = index;
+        this.lock = lock;
+    }
+
+    public static IdLedger open(Path dir) throws IOException {
+        return open(dir, DEFAULT_SEGMENT_SIZE);
+    }
+
+    /** Opens or creates the ledger in {@code dir}, recovering from a crash mid-append if needed. */
+    public static IdLedger open(Path dir, int segmentSize) throws IOException {
+        if (segmentSize < 4096) throw new IllegalArgumentException("Segment size too small: " + segmentSize);
+        Files.createDirectories(dir);
+        // even a reader recovers and truncates the tail, so every open is a writer
+        WriterLock lock = WriterLock.acquire(dir.resolve(LOCK_FILE), "Ledger " + dir);
+        try {
+            return open(dir, segmentSize, lock);
+        } catch (IOException | RuntimeException e) {
+            lock.close();
+            throw e;
+        }
+    }
+
+    private static IdLedger open(Path dir, int segmentSize, WriterLock lock) throws IOException {
+        IdLedger l = new IdLedger(dir, segmentSize, LedgerIndex.open(dir.resolve(INDEX_FILE)), lock);
+
+        List<Path> files = new ArrayList<>();
+        try (DirectoryStream<Path> ds = Files.newDirectoryStream(dir, "segment-*.log")) {
+            for (Path p : ds) files.add(p);
+        }
+        files.sort(null);
+        for (int n = 0; n < files.size(); n++) {
+            if (!files.get(n).getFileName().toString().equals(segmentName(n))) {
+                throw new IOException("Ledger segment " + segmentName(n) + " is missing in " + dir);
+            }
+            l.segments.add(l.mapSegment(files.get(n), n));
+        }
+        if (l.segments.isEmpty()) l.segments.add(l.createSegment(0));
+        l.recover();
+        return l;
+    }
+
+    /** Appends {@code d} and indexes it. Returns a ticket for {@link #awaitDurable}; the record isn't durable yet. */
+    public long append(DigitalId d) throws IOException {
+        byte[] json = GSON.toJson(d).getBytes(StandardCharsets.UTF_8);
+        long[] key = keyOf(d.id);
+        int len = RECORD_HEADER + json.length;
+        if (len > segmentSize - SEGMENT_HEADER) throw new IllegalArgumentException("ID " + d.id + " is too large for a ledger segment");
+        int crc = crc(key[0], key[1], json);
+
+        synchronized (this) {
+            if (writePos + len > segmentSize) roll();
+            int seg = segments.size() - 1;
+            MappedByteBuffer m = segments.get(seg);
+            int off = writePos;
+            m.putInt(off + 4, crc).putLong(off + 8, key[0]).putLong(off + 16, key[1]).put(off + RECORD_HEADER, json);
+            m.putInt(off, json.length);
+            writePos = off + len;
+            index.put(key[0], key[1], location(seg, off));
+            written = location(seg, writePos);
+            return written;
+        }
+    }
+
+    /** Blocks until the record behind {@code ticket}, and everything appended before it, is on disk. */
+    public void awaitDurable(long ticket) {
+        if (durable >= ticket) return;
+        synchronized (syncLock) {
+            // whoever got here first may already have flushed our record along with theirs
+            if (durable >= ticket) return;
+            long upTo;
+            MappedByteBuffer m;
+            synchronized (this) {
+                upTo = written;
+                m = segments.get(segmentOf(upTo));
+            }
+            long from = durable;
+            int start = segmentOf(from) == segmentOf(upTo) ? offsetOf(from) : 0;
+            m.force(start, offsetOf(upTo) - start);
+            durable = upTo;
+        }
+    }
+
+    public void appendDurably(DigitalId d) throws IOException {
+        awaitDurable(append(d));
+    }
+
+    /** The stored ID, or null if the ledger holds none with that id. */
+    public DigitalId get(String id) {
+        long[] key = keyOf(id);
+        long loc = index.get(key[0], key[1]);
+        if (loc == 0) return null;
+        DigitalId d = read(segments.get(segmentOf(loc)), offsetOf(loc), key);
+        return d != null && id.equals(d.id) ? d : null;
+    }
+
+    public boolean contains(String id) {
+        return get(id) != null;
+    }
+
+    /** Visits every stored ID in append order, up to what had been appended when the call started. */
+    public void replay(Consumer<DigitalId> visitor) {
+        long end = written;
+        for (int seg = 0; seg <= segmentOf(end); seg++) {
+            MappedByteBuffer m = segments.get(seg);
+            int limit = seg == segmentOf(end) ? offsetOf(end) : segmentSize;
+            int off = SEGMENT_HEADER;
+            while (off + RECORD_HEADER <= limit) {
+                int len = m.getInt(off);
+                if (len <= 0) break;
+                DigitalId d = read(m, off, null);
+                if (d == null) break;
+                visitor.accept(d);
+                off += RECORD_HEADER + len;
+            }
+        }
+    }
+
+    public long size() {
+        synchronized (this) {
+            return index.size();
+        }
+    }
+
+    public Path dir() { return dir; }
+
+    @Override public void close() throws IOException {
+        awaitDurable(written);
+        synchronized (this) {
+            index.checkpoint(written);
+            index.close();
+        }
+        lock.close();
+    }
+
+    private void recover() throws IOException {
+        int last = segments.size() - 1;
+        long mark = index.watermark();
+        if (segmentOf(mark) > last || (mark != 0 && offsetOf(mark) < SEGMENT_HEADER)) {
+            // the index is from some other ledger state; rebuild it from the segments
+            index.reset();
+            mark = 0;
+        }
+        for (int seg = segmentOf(mark); seg <= last; seg++) {
+            MappedByteBuffer m = segments.get(seg);
+            int off = seg == segmentOf(mark) && mark != 0 ? offsetOf(mark) : SEGMENT_HEADER;
+            while (off + RECORD_HEADER <= segmentSize) {
+                int len = m.getInt(off);
+                if (len <= 0 || off + RECORD_HEADER + (long) len > segmentSize) break;
+                long hi = m.getLong(off + 8), lo = m.getLong(off + 16);
+                byte[] json = new byte[len];
+                m.get(off + RECORD_HEADER, json);
+                if (crc(hi, lo, json) != m.getInt(off + 4)) break;
+                index.put(hi, lo, location(seg, off));
+                off += RECORD_HEADER + len;
+            }
+            if (seg == last) {
+                writePos = off;
+                truncateTail(m, off);
+            }
+        }
+        written = durable = location(last, writePos);
+        index.checkpoint(written);
+    }
+
+    // Anything after the last good record is a torn append, possibly with later pages that
+    // made it to disk out of order; zero it so it can't be mistaken for records later
+    private void truncateTail(MappedByteBuffer m, int from) {
+        if (from + 4 > segmentSize || m.getInt(from) == 0) return;
+        byte[] zeros = new byte[64 * 1024];
+        for (int off = from; off < segmentSize; off += zeros.length) {
+            m.put(off, zeros, 0, Math.min(zeros.length, segmentSize - off));
+        }
+        m.force();
+    }
+
+    private void roll() throws IOException {
+        int seg = segments.size() - 1;
+        segments.get(seg).force();
+        segments.add(createSegment(seg + 1));
+        writePos = SEGMENT_HEADER;
+        // every record in sealed segments is now indexed and on disk
+        index.checkpoint(location(seg + 1, SEGMENT_HEADER));
+    }
+
+    private MappedByteBuffer createSegment(int n) throws IOException {
+        Path p = dir.resolve(segmentName(n));
+        try (FileChannel ch = FileChannel.open(p, StandardOpenOption.CREATE_NEW, StandardOpenOption.READ, StandardOpenOption.WRITE)) {
+            MappedByteBuffer m = ch.map(FileChannel.MapMode.READ_WRITE, 0, segmentSize);
+            m.order(ByteOrder.LITTLE_ENDIAN);
+            m.putInt(0, MAGIC).putInt(4, VERSION).putInt(8, n);
+            m.force(0, SEGMENT_HEADER);
+            return m;
+        }
+    }
+
+    private MappedByteBuffer mapSegment(Path p, int n) throws IOException {
+        try (FileChannel ch = FileChannel.open(p, StandardOpenOption.READ, StandardOpenOption.WRITE)) {
+            if (ch.size() != segmentSize) throw new IOException(p + " is not a " + segmentSize + "-byte ledger segment");
+            MappedByteBuffer m = ch.map(FileChannel.MapMode.READ_WRITE, 0, segmentSize);
+            m.order(ByteOrder.LITTLE_ENDIAN);
+            if (m.getInt(0) != MAGIC || m.getInt(4) != VERSION || m.getInt(8) != n) {
+                throw new IOException(p + " is not a ledger segment");
+            }
+            return m;
+        }
+    }
+
+    private static DigitalId read(MappedByteBuffer m, int off, long[] key) {
+        if (off < SEGMENT_HEADER || off + RECORD_HEADER > m.capacity()) return null;
+        int len = m.getInt(off);
+        if (len <= 0 || off + RECORD_HEADER + (long) len > m.capacity()) return null;
+        long hi = m.getLong(off + 8), lo = m.getLong(off + 16);
+        if (key != null && (hi != key[0] || lo != key[1])) return null;
+        byte[] json = new byte[len];
+        m.get(off + RECORD_HEADER, json);
+        if (crc(hi, lo, json) != m.getInt(off + 4)) return null;
+        try {
+            return GSON.fromJson(new String(json, StandardCharsets.UTF_8), DigitalId.class);
+        } catch (JsonParseException e) {
+            return null;
+        }
+    }
+
+    private static int crc(long hi, long lo, byte[] json) {
+        CRC32C crc = new CRC32C();
+        crc.update(ByteBuffer.allocate(16).putLong(hi).putLong(lo).flip());
+        crc.update(json);
+        return (int) crc.getValue();
+    }
+
+    // UUID ids use their own 128 bits; anything else is hashed down to 128 bits
+    static long[] keyOf(String id) {
+        if (id.length() == 36) {
+            try {
+                UUID u = UUID.fromString(id);
+                return new long[]{u.getMostSignificantBits(), u.getLeastSignificantBits()};
+            } catch (IllegalArgumentException e) {
+                // not a UUID after all
+            }
+        }
+        ByteBuffer h = ByteBuffer.wrap(Crypto.sha256(id.getBytes(StandardCharsets.UTF_8)));
+        return new long[]{h.getLong(), h.getLong()};
+    }
+
+    private static long location(int segment, int offset) {
+        return (long) segment << 32 | offset;
+    }
+
+    private static int segmentOf(long location) {
+        return (int) (location >>> 32);
+    }
+
+    private static int offsetOf(long location) {
+        return (int) location;
+    }
+
+    private static String segmentName(int n) {
+        return String.format(Locale.ROOT, "segment-%06d.log", n);
+    }
+}
@@ -0,0 +1,415 @@
+package com.oogle.digitalid.service;
+
+import com.google.gson.Gson;
+import com.google.gson.GsonBuilder;
+import com.oogle.digitalid.crypto.CanonicalJson;
+import com.oogle.digitalid.crypto.Crypto;
+import com.oogle.digitalid.crypto.IssuerKeys;
+import com.oogle.digitalid.crypto.SignatureSuite;
+import com.oogle.digitalid.crypto.TrustStore;
+import com.oogle.digitalid.metrics.Metrics;
+import com.oogle.digitalid.model.DigitalId;
+import com.oogle.digitalid.model.MerkleProof;
+import com.oogle.digitalid.model.VerifyResult;
+
+import java.io.IOException;
+import java.net.URLDecoder;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.security.PublicKey;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Verification of IDs and scanned tokens. Depends on nothing but the crypto, model and JSON
+ * code, so headless verifiers ({@code Verify}, {@code Serve}) start without loading the card
+ * renderer, AWT or ZXing. {@link IdIssuer} verifies through one of these as well.
+ */
+public class IdVerifier {
+    private static final Gson GSON = new GsonBuilder().disableHtmlEscaping().create();
+
+    private static final Metrics.Stage VERIFY = Metrics.stage("verify");
+    private static final Metrics.Stage VERIFY_TOKEN = Metrics.stage("verify.token");
+    private static final Metrics.Stage VERIFY_CANONICALIZE = Metrics.stage("verify.canonicalize");
+    private static final Metrics.Stage VERIFY_DECODE = Metrics.stage("verify.decode");
+    private static final Metrics.Stage VERIFY_HASH = Metrics.stage("verify.hash");
+    private static final Metrics.Stage VERIFY_SIGNATURE = Metrics.stage("verify.signature");
+    private static final Metrics.Stage VERIFY_JWS = Metrics.stage("verify.jws");
+    private static final Metrics.Stage VERIFY_REVOCATION = Metrics.stage("verify.revocation");
+    private static final Metrics.Stage VERIFY_MERKLE = Metrics.stage("verify.merkle");
+    private static final Metrics.Counter VALID = Metrics.counter("verify.valid");
+    private static final Metrics.Counter INVALID = Metrics.counter("verify.invalid");
+    private static final Metrics.Counter CACHE_HITS = Metrics.counter("verify.cacheHits");
+    private static final Metrics.Counter ROOT_HITS = Metrics.counter("verify.rootCacheHits");
+
+    private final Path keyDir;
+    private final String issuerName;
+    private final IssuerKeys keys;
+    private volatile VerificationCache verificationCache; // optional
+    private volatile RevocationList revocations; // optional
+    private volatile TrustStore trustStore; // optional, other issuers' keys
+    private volatile boolean ownKeys;
+    private volatile long ownKeysCheckNanos = Long.MIN_VALUE;
+    private final MerkleBatch.VerifiedRoots verifiedRoots = new MerkleBatch.VerifiedRoots(4096);
+
+    /** Verifies against the public key(s) in {@code keyDir}, trusted for {@code issuerName}. */
+    public IdVerifier(Path keyDir, String issuerName) {
+        this.keyDir = keyDir;
+        this.issuerName = issuerName;
+        this.keys = IssuerKeys.forDir(keyDir);
+    }
+
+    public IssuerKeys keys() {
+        return keys;
+    }
+
+    /** Remembers verdicts so re-presented credentials skip the signature checks; null turns caching off. */
+    public void setVerificationCache(VerificationCache cache) {
+        this.verificationCache = cache;
+    }
+
+    public VerificationCache verificationCache() {
+        return verificationCache;
+    }
+
+    /** Checks every ID that carries a {@code statusIndex} against {@code list}. */
+    public void setRevocationList(RevocationList list) {
+        this.revocations = list;
+    }
+
+    public RevocationList revocationList() {
+        return revocations;
+    }
+
+    /**
+     * Accepts IDs from every issuer in {@code store}, each only under the issuer name its key is
+     * trusted for. The own keys in {@code keyDir}, if any, stay trusted for the own name.
+     */
+    public void setTrustStore(TrustStore store) {
+        this.trustStore = store;
+    }
+
+    public TrustStore trustStore() {
+        return trustStore;
+    }
+
+    public static DigitalId readId(String json) {
+        return GSON.fromJson(json, DigitalId.class);
+    }
+
+    public boolean verify(Path jsonPath) throws IOException {
+        DigitalId d = readId(Files.readString(jsonPath));
+        return d != null && verify(d).isValid();
+    }
+
+    /**
+     * Verifies whatever a QR code contained: a compact credential, a bare JWS, or either one
+     * wrapped in a verify URL ({@code ?c=} / {@code ?jws=}). For a bare JWS the JWS signature is
+     * the only signature, so hash and detached-signature checks are reported as passed.
+     */
+    public VerifyResult verifyToken(String scanned) throws IOException {
+        long start = Metrics.start();
+        VerifyResult r = checkToken(scanned);
+        VERIFY_TOKEN.stop(start);
+        (r.isValid() ? VALID : INVALID).increment();
+        return r;
+    }
+
+    private VerifyResult checkToken(String scanned) throws IOException {
+        String token = unwrapVerifyUrl(scanned.trim());
+        VerificationCache cache = verificationCache;
+        ByteBuffer cacheKey = null;
+        long generation = 0;
+        if (cache != null) {
+            generation = keyGeneration();
+            cacheKey = VerificationCache.keyOf(token);
+            VerifyResult hit = cache.get(cacheKey, generation, revocations);
+            if (hit != null) {
+                CACHE_HITS.increment();
+                return hit;
+            }
+        }
+
+        DigitalId d;
+        Long statusIndex = null;
+        VerifyResult r;
+        if (CompactCredential.isCompact(token)) {
+            long t = Metrics.start();
+            try {
+                d = CompactCredential.decode(token);
+            } catch (IllegalArgumentException e) {
+                return failed();
+            }
+            VERIFY_DECODE.stop(t);
+            r = verify(d, d.canonicalBytes);
+            statusIndex = d.statusIndex;
+        } else {
+            r = new VerifyResult();
+            r.hashOk = true;
+            r.signatureOk = true;
+            long t = Metrics.start();
+            // the claims pick the issuer's keys; they count only once the signature checks out
+            d = claimsOfJws(token);
+            r.jwsOk = d != null && checkJws(token, verificationKeys(IssuerKeys.kidOfJws(token), d.issuer));
+            VERIFY_JWS.stop(t);
+            // e.g. a batch root JWS: signed by us, but not a credential
+            if (!r.jwsOk || d.id == null || d.fullName == null) {
+                d = null;
+                r.jwsOk = false;
+            } else {
+                r.expired = d.isExpired();
+                statusIndex = d.statusIndex;
+            }
+        }
+        r.revoked = isRevoked(statusIndex);
+        if (cache != null && d != null) cache.put(cacheKey, generation, d.id, d.expiresAt, statusIndex, r);
+        return r;
+    }
+
+    private static VerifyResult failed() {
+        VerifyResult r = new VerifyResult();
+        r.hashOk = r.signatureOk = r.jwsOk = false;
+        return r;
+    }
+
+    private static DigitalId claimsOfJws(String jws) {
+        String[] parts = jws.split("\\.");
+        if (parts.length != 3) return null;
+        try {
+            return GSON.fromJson(new String(Crypto.b64UrlDecode(parts[1]), StandardCharsets.UTF_8), DigitalId.class);
+        } catch (RuntimeException e) {
+            return null;
+        }
+    }
+
+    static String unwrapVerifyUrl(String text) {
+        int q = text.indexOf('?');
+        if (q < 0 || !(text.startsWith("http://") || text.startsWith("https://"))) return text;
+        for (String param : text.substring(q + 1).split("&")) {
+            if (param.startsWith("jws=") || param.startsWith("c=")) {
+                return URLDecoder.decode(param.substring(param.indexOf('=') + 1), StandardCharsets.UTF_8);
+            }
+        }
+        return text;
+    }
+
+    /**
+     * Verifies a record read from a {@link CredentialBundle}. A JWS record is the whole
+     * credential, so it is checked like a scanned JWS, without rebuilding the document.
+     */
+    public VerifyResult verify(CredentialBundle.Record r) throws IOException {
+        if (!r.intact()) throw new IOException("damaged bundle record " + r.id);
+        return r.kind == CredentialBundle.JWS ? verifyToken(r.text()) : verify(r.toId());
+    }
+
+    public VerifyResult verify(DigitalId d) throws IOException {
+        long start = Metrics.start();
+        VerifyResult r = checkDocument(d);
+        VERIFY.stop(start);
+        (r.isValid() ? VALID : INVALID).increment();
+        return r;
+    }
+
+    private VerifyResult checkDocument(DigitalId d) throws IOException {
+        long t = Metrics.start();
+        byte[] canonical = canonicalBytes(d);
+        VERIFY_CANONICALIZE.stop(t);
+        Long statusIndex = statusIndexOf(d);
+        VerificationCache cache = verificationCache;
+        if (cache == null) {
+            VerifyResult r = verify(d, canonical);
+            r.revoked = isRevoked(statusIndex);
+            return r;
+        }
+
+        long generation = keyGeneration();
+        ByteBuffer cacheKey = VerificationCache.keyOf(canonical, d);
+        VerifyResult r = cache.get(cacheKey, generation, revocations);
+        if (r != null) {
+            CACHE_HITS.increment();
+        } else {
+            r = verify(d, canonical);
+            r.revoked = isRevoked(statusIndex);
+            cache.put(cacheKey, generation, d.id, d.expiresAt, statusIndex, r);
+        }
+        return r;
+    }
+
+    /** Signature and payload checks only: no cache, no revocation lookup, no metrics counters. */
+    VerifyResult checkSignatures(DigitalId d) throws IOException {
+        return verify(d, canonicalBytes(d));
+    }
+
+    /** The {@code statusIndex} revocation is checked against, or null when {@code d} has none that is signed. */
+    public static Long statusIndexOf(DigitalId d) {
+        // Legacy canonicalization doesn't cover statusIndex, so only a JCS one is trusted
+        return CanonicalJson.JCS.equals(d.canonicalization) ? d.statusIndex : null;
+    }
+
+    /**
+     * Identifies the keys verification can pick, like {@link #keyGeneration} but the same after a
+     * restart, so verdicts stored on disk can tell whether they were reached with today's keys.
+     */
+    public String keyFingerprint() throws IOException {
+        TrustStore trust = trustStore;
+        StringBuilder sb = new StringBuilder();
+        if (trust == null || hasOwnKeys()) {
+            for (String kid : keys.kids()) sb.append(kid).append('\n');
+        }
+        if (trust != null) sb.append("trust\n").append(trust.keySet());
+        return Crypto.b64Url(Crypto.sha256(sb.toString().getBytes(StandardCharsets.UTF_8)));
+    }
+
+    private boolean isRevoked(Long statusIndex) throws IOException {
+        RevocationList list = revocations;
+        if (statusIndex == null || list == null) return false;
+        long t = Metrics.start();
+        boolean revoked = list.isRevoked(statusIndex);
+        VERIFY_REVOCATION.stop(t);
+        return revoked;
+    }
+
+    private VerifyResult verify(DigitalId d, byte[] canonical) throws IOException {
+        if (d.version != null) {
+            return d.version == DigitalId.FORMAT_BATCH ? verifyBatch(d, canonical) : verifyV2(d, canonical);
+        }
+        VerifyResult r = new VerifyResult();
+
+        long t = Metrics.start();
+        byte[] expectedHash = Crypto.sha256(canonical);
+        r.hashOk = Crypto.b64Url(expectedHash).equals(d.payloadHash);
+        t = VERIFY_HASH.stop(t);
+
+        // Files issued before key ids existed carry no kid and verify against any of the issuer's keys
+        SignatureSuite suite = SignatureSuite.fromSignatureAlg(d.signatureAlg);
+        r.signatureOk = suite != null && d.signature != null && checkSignature(
+                suite,
+                canonical,
+                d.signature,
+                verificationKeys(d.kid, d.issuer)
+        );
+        t = VERIFY_SIGNATURE.stop(t);
+
+        r.jwsOk = d.jwsCompact == null || checkJws(d.jwsCompact, verificationKeys(IssuerKeys.kidOfJws(d.jwsCompact), d.issuer));
+        VERIFY_JWS.stop(t);
+
+        r.expired = d.expiresAt != null && d.isExpired();
+        return r;
+    }
+
+    /**
+     * Format 2 has one signature, the JWS's, so {@code signatureOk} and {@code jwsOk} are the same
+     * check; {@code hashOk} means the readable fields are exactly the payload it signs.
+     */
+    private VerifyResult verifyV2(DigitalId d, byte[] canonical) throws IOException {
+        if (d.version != DigitalId.FORMAT_V2 || !CanonicalJson.JCS.equals(d.canonicalization) || d.jwsCompact == null) {
+            return failed();
+        }
+        VerifyResult r = new VerifyResult();
+        long t = Metrics.start();
+        r.jwsOk = checkJws(d.jwsCompact, verificationKeys(IssuerKeys.kidOfJws(d.jwsCompact), d.issuer));
+        r.signatureOk = r.jwsOk;
+        t = VERIFY_JWS.stop(t);
+
+        int p = d.jwsCompact.indexOf('.');
+        int s = d.jwsCompact.lastIndexOf('.');
+        r.hashOk = p > 0 && s > p && d.jwsCompact.substring(p + 1, s).equals(Crypto.b64Url(canonical));
+        VERIFY_HASH.stop(t);
+
+        r.expired = d.isExpired();
+        return r;
+    }
+
+    /**
+     * Format 3: {@code hashOk} means the payload hashes up to the root the batch JWS signs, and
+     * {@code signatureOk}/{@code jwsOk} that the root JWS is ours. A root that has checked out
+     * once for an issuer is remembered, so the rest of its batch verifies with hashing alone.
+     */
+    private VerifyResult verifyBatch(DigitalId d, byte[] canonical) throws IOException {
+        MerkleProof p = d.merkleProof;
+        if (!CanonicalJson.JCS.equals(d.canonicalization) || p == null || p.rootJws == null) return failed();
+        VerifyResult r = new VerifyResult();
+        long t = Metrics.start();
+        r.hashOk = MerkleBatch.includes(canonical, p);
+        t = VERIFY_MERKLE.stop(t);
+
+        long generation = keyGeneration();
+        if (verifiedRoots.contains(p.rootJws, d.issuer, generation)) {
+            ROOT_HITS.increment();
+            r.jwsOk = true;
+        } else {
+            r.jwsOk = checkJws(p.rootJws, verificationKeys(IssuerKeys.kidOfJws(p.rootJws), d.issuer));
+            if (r.jwsOk) verifiedRoots.add(p.rootJws, d.issuer, generation);
+            VERIFY_JWS.stop(t);
+        }
+        r.signatureOk = r.jwsOk;
+        r.expired = d.isExpired();
+        return r;
+    }
+
+    /** Candidate keys for a signature; a kid names at most one, a missing kid means any of the issuer's. */
+    private List<PublicKey> verificationKeys(String kid, String issuer) throws IOException {
+        TrustStore trust = trustStore;
+        if (trust == null) return keyList(keys.publicKey(kid));
+        List<PublicKey> k = trust.publicKeys(kid, issuer);
+        if ((kid != null && !k.isEmpty()) || !issuerName.equals(issuer) || !hasOwnKeys()) return k;
+        PublicKey own = keys.publicKey(kid);
+        if (own == null) return k;
+        List<PublicKey> all = new ArrayList<>(k);
+        all.add(own);
+        return all;
+    }
+
+    private static List<PublicKey> keyList(PublicKey key) {
+        return key == null ? List.of() : List.of(key);
+    }
+
+    /** Changes whenever a key that verification could pick is added, replaced or dropped. */
+    private long keyGeneration() throws IOException {
+        TrustStore trust = trustStore;
+        if (trust == null) return keys.generation();
+        return (trust.generation() << 32) + (hasOwnKeys() ? keys.generation() : 0);
+    }
+
+    // verify-only nodes with a trust store need no keys/ of their own; re-checked like IssuerKeys' files
+    private boolean hasOwnKeys() {
+        long now = System.nanoTime();
+        if (now >= ownKeysCheckNanos) {
+            ownKeys = Files.exists(keyDir.resolve(IssuerKeys.PUBLIC_FILE));
+            ownKeysCheckNanos = now + TimeUnit.SECONDS.toNanos(2);
+        }
+        return ownKeys;
+    }
+
+    static byte[] canonicalBytes(DigitalId d) {
+        if (CanonicalJson.JCS.equals(d.canonicalization)) return CanonicalJson.encode(d);
+        DigitalId copy = DigitalId.basic(d.id, d.fullName, d.dateOfBirth, d.email, d.phone, d.issuer, d.issuedAt, d.expiresAt);
+        return Crypto.canonicalize(copy).getBytes(StandardCharsets.UTF_8);
+    }
+
+    // A tampered signature (bad base64, wrong length) is a failed check, not an error
+    private static boolean checkSignature(SignatureSuite suite, byte[] data, String signature, List<PublicKey> keys) {
+        for (PublicKey key : keys) {
+            try {
+                if (suite.verify(data, Crypto.b64UrlDecode(signature), key)) return true;
+            } catch (RuntimeException e) {
+                // wrong key type for this suite; try the next
+            }
+        }
+        return false;
+    }
+
+    private static boolean checkJws(String jws, List<PublicKey> keys) {
+        for (PublicKey key : keys) {
+            try {
+                if (Crypto.verifyCompactJws(jws, key)) return true;
+            } catch (RuntimeException e) {
+                // malformed JWS or a key of another type; try the next
+            }
+        }
+        return false;
+    }
+}
@@ -0,0 +1,565 @@
+package com.oogle.digitalid.service;
+
+import com.google.gson.JsonParseException;
+import com.oogle.digitalid.model.DigitalId;
+import com.oogle.digitalid.model.IssueRequest;
+
+import java.io.BufferedReader;
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.net.IDN;
+import java.nio.ByteOrder;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.security.SecureRandom;
+import java.text.Normalizer;
+import java.util.ArrayList;
+import java.util.EnumSet;
+import java.util.List;
+import java.util.Locale;
+import java.util.Set;
+import java.util.UUID;
+
+/**
+ * Finds issued IDs by who they were issued to: email, phone number, and full name with date of
+ * birth. Each value is normalized and hashed to a 64-bit key in an open-addressing table in a
+ * memory-mapped file, like {@link LedgerIndex}, so tens of millions of IDs cost no Java heap
+ * and a duplicate check is a few adjacent slot reads.
+ * <pre>
+ *   0  int  magic "DIDP"   8 long slots   16 long size   24 long seed   32 int dirty   64 slots...
+ *   slot: long key (0 = empty), long idHi, long idLo
+ * </pre>
+ * One key can map to several IDs (a shared family phone, a re-issue); each is its own slot in
+ * the key's probe run. The values themselves aren't stored, so two different values with the
+ * same key would look alike; at 100 million keys that is about one lookup in 10^11. The hash
+ * is seeded per file so nobody can pick an email that collides with someone else's.
+ * Only UUID ids, which is all {@link IdIssuer} issues, are indexed.
+ * <p>
+ * Every method is synchronized, and {@link #claim} checks and inserts in one step so two
+ * concurrent issues for the same person can't both get through. A table written to after its
+ * last {@link #checkpoint} isn't {@link #clean}: after a machine crash it may be missing
+ * entries, so rebuild it from wherever the IDs are kept (see {@link #addFrom}).
+ * <p>
+ * That covers one process. {@link #open} also locks {@code <file>.lock}, since a second process
+ * would keep mapping the table a {@code grow} has replaced, and its claims would be lost.
+ */
+public final class IdentityIndex implements Closeable {
+    public enum Field {
+        EMAIL("email"), PHONE("phone"), NAME_DOB("name and date of birth");
+
+        public final String label;
+
+        Field(String label) {
+            this.label = label;
+        }
+
+        /** "email", "phone" or "name-dob". */
+        public static Field parse(String name) {
+            return switch (name.trim().toLowerCase(Locale.ROOT)) {
+                case "email" -> EMAIL;
+                case "phone" -> PHONE;
+                case "name-dob", "name+dob", "name_dob" -> NAME_DOB;
+                default -> throw new IllegalArgumentException("Unknown identity field: " + name);
+            };
+        }
+
+        /** A comma-separated list of fields, e.g. "email,name-dob", or "none". */
+        public static Set<Field> parseAll(String names) {
+            Set<Field> s = EnumSet.noneOf(Field.class);
+            if (names.trim().equalsIgnoreCase("none")) return s;
+            for (String n : names.split(",")) {
+                if (!n.isBlank()) s.add(parse(n));
+            }
+            return s;
+        }
+    }
+
+    /** An ID that already holds one of the values being checked. */
+    public static final class Match {
+        public final Field field;
+        public final String id; // null for an earlier request in the same batch, which has no id yet
+
+        Match(Field field, String id) {
+            this.field = field;
+            this.id = id;
+        }
+
+        @Override public String toString() {
+            return (id != null ? "ID " + id : "An earlier record in the batch") + " has the same " + field.label;
+        }
+    }
+
+    /** Thrown by {@link IdIssuer} instead of issuing a second ID to someone. */
+    public static final class DuplicateException extends IllegalArgumentException {
+        public final Match match;
+        public final IssueRequest request; // the offending request in a batch, else null
+
+        DuplicateException(Match match, IssueRequest request) {
+            super("Duplicate: " + match);
+            this.match = match;
+            this.request = request;
+        }
+    }
+
+    private static final int MAGIC = 0x44494450; // "DIDP"
+    private static final int VERSION = 1;
+    private static final int HEADER = 64;
+    private static final int SLOT = 24;
+    private static final int SLOTS_OFF = 8, SIZE_OFF = 16, SEED_OFF = 24, DIRTY_OFF = 32;
+    private static final int INITIAL_SLOTS = 1 << 16;
+    private static final int MAX_SLOTS = 1 << 30;
+    // each mapping stays under 2 GB; the table is split over as many as it needs
+    private static final int CHUNK_BITS = 25;
+    private static final int CHUNK_MASK = (1 << CHUNK_BITS) - 1;
+    private static final Field[] FIELDS = Field.values();
+
+    private static final class Table {
+        final MappedByteBuffer header;
+        final MappedByteBuffer[] chunks;
+        final int mask;
+
+        Table(MappedByteBuffer header, MappedByteBuffer[] chunks, int slots) {
+            this.header = header;
+            this.chunks = chunks;
+            this.mask = slots - 1;
+        }
+
+        long key(int i) {
+            return chunks[i >>> CHUNK_BITS].getLong((i & CHUNK_MASK) * SLOT);
+        }
+
+        long hi(int i) {
+            return chunks[i >>> CHUNK_BITS].getLong((i & CHUNK_MASK) * SLOT + 8);
+        }
+
+        long lo(int i) {
+            return chunks[i >>> CHUNK_BITS].getLong((i & CHUNK_MASK) * SLOT + 16);
+        }
+
+        void set(int i, long key, long hi, long lo) {
+            chunks[i >>> CHUNK_BITS].putLong((i & CHUNK_MASK) * SLOT, key)
+                    .putLong((i & CHUNK_MASK) * SLOT + 8, hi).putLong((i & CHUNK_MASK) * SLOT + 16, lo);
+        }
+
+        void force() {
+            for (MappedByteBuffer c : chunks) c.force();
+            header.force();
+        }
+    }
+
+    private final Path path;
+    private final long seed;
+    private final boolean clean;
+    private WriterLock lock;
+    private Table table;
+    private long size;
+    private boolean dirty;
+
+    private IdentityIndex(Path path, Table table, long seed, long size, boolean clean) {
+        this.path = path;
+        this.table = table;
+        this.seed = seed;
+        this.size = size;
+        this.clean = clean;
+    }
+
+    /** Opens the index at {@code path}, creating an empty one if there is none. */
+    public static IdentityIndex open(Path path) throws IOException {
+        Path parent = path.toAbsolutePath().getParent();
+        if (parent != null) Files.createDirectories(parent);
+        // lookups checkpoint on close too, so every open is a writer
+        WriterLock lock = WriterLock.acquire(path.resolveSibling(path.getFileName() + ".lock"), "Identity index " + path);
+        try {
+            IdentityIndex idx = openLocked(path);
+            idx.lock = lock;
+            return idx;
+        } catch (IOException | RuntimeException e) {
+            lock.close();
+            throw e;
+        }
+    }
+
+    private static IdentityIndex openLocked(Path path) throws IOException {
+        if (Files.exists(path)) {
+            try (FileChannel ch = FileChannel.open(path, StandardOpenOption.READ, StandardOpenOption.WRITE)) {
+                if (ch.size() < HEADER) throw new IOException(path + " is not an identity index");
+                MappedByteBuffer h = ch.map(FileChannel.MapMode.READ_WRITE, 0, HEADER);
+                h.order(ByteOrder.LITTLE_ENDIAN);
+                long slots = h.getLong(SLOTS_OFF);
+                if (h.getInt(0) != MAGIC || h.getInt(4) != VERSION || Long.bitCount(slots) != 1
+                        || slots > MAX_SLOTS || ch.size() != HEADER + slots * SLOT) {
+                    throw new IOException(path + " is not an identity index");
+                }
+                Table t = new Table(h, mapChunks(ch, (int) slots), (int) slots);
+                boolean clean = h.getInt(DIRTY_OFF) == 0;
+                return new IdentityIndex(path, t, h.getLong(SEED_OFF), clean ? h.getLong(SIZE_OFF) : count(t), clean);
+            }
+        }
+        long seed = new SecureRandom().nextLong();
+        return new IdentityIndex(path, create(path, INITIAL_SLOTS, seed), seed, 0, true);
+    }
+
+    /** False if the file was open for writing when its last user stopped; see the class comment. */
+    public boolean clean() {
+        return clean;
+    }
+
+    /** Number of keys, one per indexed value per ID. */
+    public synchronized long size() {
+        return size;
+    }
+
+    /**
+     * Indexes {@code d} unless another ID already holds one of its values in {@code unique};
+     * returns that ID if so and indexes nothing. Values outside {@code unique} are indexed
+     * either way, for lookups.
+     */
+    public synchronized Match claim(DigitalId d, Set<Field> unique) throws IOException {
+        long[] id = idOf(d);
+        if (id == null) return null;
+        long[] keys = keysOf(d.fullName, d.dateOfBirth, d.email, d.phone);
+        for (Field f : unique) {
+            long key = keys[f.ordinal()];
+            if (key == 0) continue;
+            Table t = table;
+            for (int i = slotOf(key, t.mask); t.key(i) != 0; i = (i + 1) & t.mask) {
+                if (t.key(i) == key && (t.hi(i) != id[0] || t.lo(i) != id[1])) {
+                    return new Match(f, new UUID(t.hi(i), t.lo(i)).toString());
+                }
+            }
+        }
+        insertAll(keys, id);
+        return null;
+    }
+
+    /** Indexes {@code d} whether or not its values are taken. Adding an ID twice is harmless. */
+    public synchronized void add(DigitalId d) throws IOException {
+        long[] id = idOf(d);
+        if (id != null) insertAll(keysOf(d.fullName, d.dateOfBirth, d.email, d.phone), id);
+    }
+
+    /** Drops {@code d}'s entries, e.g. when issuing it failed after {@link #claim}. */
+    public synchronized boolean remove(DigitalId d) {
+        long[] id = idOf(d);
+        if (id == null) return false;
+        boolean removed = false;
+        for (long key : keysOf(d.fullName, d.dateOfBirth, d.email, d.phone)) {
+            if (key != 0) removed |= delete(key, id[0], id[1]);
+        }
+        return removed;
+    }
+
+    public synchronized List<String> findByEmail(String email) {
+        return find(key(Field.EMAIL, normalizeEmail(email)));
+    }
+
+    public synchronized List<String> findByPhone(String phone) {
+        return find(key(Field.PHONE, normalizePhone(phone)));
+    }
+
+    public synchronized List<String> findByNameAndDob(String fullName, String dateOfBirth) {
+        return find(key(Field.NAME_DOB, normalizeNameDob(fullName, dateOfBirth)));
+    }
+
+    /** Indexes every ID in the ledger; what is already indexed stays as it is. */
+    public void addFrom(IdLedger ledger) throws IOException {
+        try {
+            ledger.replay(d -> {
+                try {
+                    add(d);
+                } catch (IOException e) {
+                    throw new UncheckedIOException(e);
+                }
+            });
+        } catch (UncheckedIOException e) {
+            throw e.getCause();
+        }
+    }
+
+    /** Indexes the IDs in a file, directory, glob, JSONL file or bundle. Returns how many were read. */
+    public int addAll(String input) throws IOException {
+        int[] n = {0};
+        BatchVerifier.expand(input, p -> {
+            String name = p.getFileName().toString();
+            if (CredentialBundle.isBundle(p)) {
+                CredentialBundle b = CredentialBundle.open(p);
+                b.forEach(r -> add(r.toId()));
+                n[0] += b.size();
+            } else if (name.endsWith(".jsonl") || name.endsWith(".ndjson")) {
+                try (BufferedReader in = Files.newBufferedReader(p, StandardCharsets.UTF_8)) {
+                    String line;
+                    while ((line = in.readLine()) != null) {
+                        if (line.isBlank()) continue;
+                        add(read(line, p));
+                        n[0]++;
+                    }
+                }
+            } else {
+                add(read(Files.readString(p), p));
+                n[0]++;
+            }
+        });
+        return n[0];
+    }
+
+    /** Flushes the table and marks it {@link #clean}. */
+    public synchronized void checkpoint() {
+        Table t = table;
+        t.header.putLong(SIZE_OFF, size);
+        t.force();
+        t.header.putInt(DIRTY_OFF, 0);
+        t.header.force();
+        dirty = false;
+    }
+
+    @Override public void close() throws IOException {
+        checkpoint();
+        lock.close();
+    }
+
+    // Normalized forms: equal for values a person would consider the same, "" when there is
+    // nothing to index. Plain loops rather than regexes, since they run on every issue
+
+    /** Case-folded, NFKC, with an IDNA domain shown as Unicode. */
+    static String normalizeEmail(String email) {
+        if (email == null) return "";
+        String s = nfkc(email).strip().toLowerCase(Locale.ROOT);
+        int at = s.lastIndexOf('@');
+        if (at <= 0 || at == s.length() - 1) return "";
+        if (s.contains("xn--")) {
+            try {
+                s = s.substring(0, at + 1) + IDN.toUnicode(s.substring(at + 1));
+            } catch (IllegalArgumentException e) {
+                // leave an unparseable domain as written
+            }
+        }
+        return s;
+    }
+
+    /**
+     * Digits only, with a leading + for an international number ("00" counts as one) and the
+     * "(0)" some countries write after the country code dropped. An extension ("ext. 12",
+     * "x12") is cut off. No country code is inferred, so "020 ..." and "+44 20 ..." differ.
+     */
+    static String normalizePhone(String phone) {
+        if (phone == null) return "";
+        String s = nfkc(phone).replace("(0)", "");
+        StringBuilder sb = new StringBuilder(16);
+        for (int i = 0; i < s.length(); ) {
+            int cp = s.codePointAt(i);
+            i += Character.charCount(cp);
+            int d = Character.digit(cp, 10);
+            if (d >= 0) {
+                sb.append((char) ('0' + d));
+            } else if (cp == '+' && sb.isEmpty()) {
+                sb.append('+');
+            } else if (Character.isLetter(cp)) {
+                break;
+            }
+        }
+        if (sb.length() > 2 && sb.charAt(0) == '0' && sb.charAt(1) == '0') sb.replace(0, 2, "+");
+        int digits = sb.length() - (sb.indexOf("+") == 0 ? 1 : 0);
+        return digits < 6 ? "" : sb.toString();
+    }
+
+    /**
+     * Case-folded NFKC name, letters, digits and marks only, runs of spaces collapsed, so
+     * "Zoë  O'Brien" and "ZOË OBRIEN" agree; then the date of birth. Both must be present.
+     */
+    static String normalizeNameDob(String fullName, String dateOfBirth) {
+        if (fullName == null || dateOfBirth == null || dateOfBirth.isBlank()) return "";
+        String s = nfkc(fullName);
+        StringBuilder sb = new StringBuilder(s.length() + 12);
+        boolean space = false;
+        for (int i = 0; i < s.length(); ) {
+            int cp = s.codePointAt(i);
+            i += Character.charCount(cp);
+            if (Character.isWhitespace(cp) || Character.isSpaceChar(cp)) {
+                space = !sb.isEmpty();
+            } else if (Character.isLetterOrDigit(cp) || isMark(cp)) {
+                if (space) sb.append(' ');
+                space = false;
+                sb.appendCodePoint(Character.toLowerCase(cp));
+            }
+        }
+        if (sb.isEmpty()) return "";
+        return sb.append('\n').append(dateOfBirth.strip()).toString();
+    }
+
+    private static boolean isMark(int cp) {
+        int t = Character.getType(cp);
+        return t == Character.NON_SPACING_MARK || t == Character.COMBINING_SPACING_MARK || t == Character.ENCLOSING_MARK;
+    }
+
+    private static String nfkc(String s) {
+        return Normalizer.isNormalized(s, Normalizer.Form.NFKC) ? s : Normalizer.normalize(s, Normalizer.Form.NFKC);
+    }
+
+    private long[] keysOf(String fullName, String dob, String email, String phone) {
+        long[] keys = new long[FIELDS.length];
+        keys[Field.EMAIL.ordinal()] = key(Field.EMAIL, normalizeEmail(email));
+        keys[Field.PHONE.ordinal()] = key(Field.PHONE, normalizePhone(phone));
+        keys[Field.NAME_DOB.ordinal()] = key(Field.NAME_DOB, normalizeNameDob(fullName, dob));
+        return keys;
+    }
+
+    // seeded multiply-xorshift over the UTF-16 chars, murmur3 finalizer; 0 means "no value"
+    private long key(Field field, String normalized) {
+        if (normalized.isEmpty()) return 0;
+        long h = seed ^ (field.ordinal() + 1) * 0x9E3779B97F4A7C15L;
+        for (int i = 0; i < normalized.length(); i++) {
+            h = (h ^ normalized.charAt(i)) * 0xbf58476d1ce4e5b9L;
+            h ^= h >>> 31;
+        }
+        h ^= normalized.length();
+        h ^= h >>> 33;
+        h *= 0xff51afd7ed558ccdL;
+        h ^= h >>> 33;
+        h *= 0xc4ceb9fe1a85ec53L;
+        h ^= h >>> 33;
+        return h == 0 ? 1 : h;
+    }
+
+    private static long[] idOf(DigitalId d) {
+        if (d.id == null || d.id.length() != 36) return null;
+        try {
+            UUID u = UUID.fromString(d.id);
+            return new long[]{u.getMostSignificantBits(), u.getLeastSignificantBits()};
+        } catch (IllegalArgumentException e) {
+            return null;
+        }
+    }
+
+    private List<String> find(long key) {
+        List<String> out = new ArrayList<>(1);
+        if (key == 0) return out;
+        Table t = table;
+        for (int i = slotOf(key, t.mask); t.key(i) != 0; i = (i + 1) & t.mask) {
+            if (t.key(i) == key) out.add(new UUID(t.hi(i), t.lo(i)).toString());
+        }
+        return out;
+    }
+
+    private void insertAll(long[] keys, long[] id) throws IOException {
+        if (!dirty) {
+            table.header.putInt(DIRTY_OFF, 1);
+            dirty = true;
+        }
+        for (long key : keys) {
+            if (key == 0) continue;
+            // linear probing degrades past about 3/4 full
+            if ((size + 1) * 4 > (table.mask + 1L) * 3) grow();
+            if (insert(table, key, id[0], id[1])) size++;
+        }
+    }
+
+    private static boolean insert(Table t, long key, long hi, long lo) {
+        int i = slotOf(key, t.mask);
+        while (true) {
+            long k = t.key(i);
+            if (k == 0) {
+                t.set(i, key, hi, lo);
+                return true;
+            }
+            if (k == key && t.hi(i) == hi && t.lo(i) == lo) return false;
+            i = (i + 1) & t.mask;
+        }
+    }
+
+    // Backward-shift deletion: later entries of the probe run move up so no tombstones are needed
+    private boolean delete(long key, long hi, long lo) {
+        Table t = table;
+        int i = slotOf(key, t.mask);
+        while (true) {
+            long k = t.key(i);
+            if (k == 0) return false;
+            if (k == key && t.hi(i) == hi && t.lo(i) == lo) break;
+            i = (i + 1) & t.mask;
+        }
+        if (!dirty) {
+            t.header.putInt(DIRTY_OFF, 1);
+            dirty = true;
+        }
+        int j = i;
+        while (true) {
+            j = (j + 1) & t.mask;
+            long k = t.key(j);
+            if (k == 0) break;
+            int home = slotOf(k, t.mask);
+            // leave it if its home slot lies cyclically in (i, j]
+            if (i <= j ? (i < home && home <= j) : (i < home || home <= j)) continue;
+            t.set(i, k, t.hi(j), t.lo(j));
+            i = j;
+        }
+        t.set(i, 0, 0, 0);
+        size--;
+        return true;
+    }
+
+    private void grow() throws IOException {
+        Table old = table;
+        long slots = (old.mask + 1L) * 2;
+        if (slots > MAX_SLOTS) throw new IllegalStateException("Identity index is full (" + size + " keys)");
+        Path tmp = path.resolveSibling(path.getFileName() + ".tmp");
+        Table t = create(tmp, (int) slots, seed);
+        for (int i = 0; i <= old.mask; i++) {
+            long k = old.key(i);
+            if (k != 0) insert(t, k, old.hi(i), old.lo(i));
+        }
+        t.header.putLong(SIZE_OFF, size).putInt(DIRTY_OFF, 1);
+        t.force();
+        Files.move(tmp, path, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        table = t;
+    }
+
+    private static long count(Table t) {
+        long n = 0;
+        for (int i = 0; i <= t.mask; i++) {
+            if (t.key(i) != 0) n++;
+        }
+        return n;
+    }
+
+    private static Table create(Path path, int slots, long seed) throws IOException {
+        Files.deleteIfExists(path);
+        try (FileChannel ch = FileChannel.open(path, StandardOpenOption.CREATE_NEW, StandardOpenOption.READ, StandardOpenOption.WRITE)) {
+            MappedByteBuffer h = ch.map(FileChannel.MapMode.READ_WRITE, 0, HEADER);
+            h.order(ByteOrder.LITTLE_ENDIAN);
+            h.putInt(0, MAGIC).putInt(4, VERSION).putLong(SLOTS_OFF, slots).putLong(SEED_OFF, seed);
+            return new Table(h, mapChunks(ch, slots), slots);
+        }
+    }
+
+    // mapping past the end of the file grows it, so this also sizes a new file
+    private static MappedByteBuffer[] mapChunks(FileChannel ch, int slots) throws IOException {
+        int n = Math.max(1, slots >>> CHUNK_BITS);
+        MappedByteBuffer[] chunks = new MappedByteBuffer[n];
+        long per = (long) Math.min(slots, 1 << CHUNK_BITS) * SLOT;
+        for (int c = 0; c < n; c++) {
+            chunks[c] = ch.map(FileChannel.MapMode.READ_WRITE, HEADER + c * per, per);
+            chunks[c].order(ByteOrder.LITTLE_ENDIAN);
+        }
+        return chunks;
+    }
+
+    private static DigitalId read(String json, Path source) throws IOException {
+        try {
+            DigitalId d = IdVerifier.readId(json);
+            if (d == null || d.id == null) throw new IOException(source + " is not an ID document");
+            return d;
+        } catch (JsonParseException e) {
+            throw new IOException(source + ": " + e.getMessage(), e);
+        }
+    }
+
+    private static int slotOf(long key, int mask) {
+        // keys are already well mixed
+        return (int) key & mask;
+    }
+}
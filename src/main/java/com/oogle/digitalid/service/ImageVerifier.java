@@ -0,0 +1,459 @@
+package com.oogle.digitalid.service;
+
+import com.google.gson.JsonObject;
+import com.google.zxing.Binarizer;
+import com.google.zxing.BinaryBitmap;
+import com.google.zxing.DecodeHintType;
+import com.google.zxing.LuminanceSource;
+import com.google.zxing.PlanarYUVLuminanceSource;
+import com.google.zxing.ReaderException;
+import com.google.zxing.common.GlobalHistogramBinarizer;
+import com.google.zxing.common.HybridBinarizer;
+import com.google.zxing.qrcode.QRCodeReader;
+import com.oogle.digitalid.metrics.Metrics;
+import com.oogle.digitalid.model.VerifyResult;
+
+import javax.imageio.ImageIO;
+import javax.imageio.ImageReadParam;
+import javax.imageio.ImageReader;
+import javax.imageio.ImageTypeSpecifier;
+import javax.imageio.stream.ImageInputStream;
+import javax.imageio.stream.MemoryCacheImageInputStream;
+import java.awt.image.BufferedImage;
+import java.awt.image.DataBufferByte;
+import java.awt.image.DataBufferInt;
+import java.io.BufferedReader;
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.EnumMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.BooleanSupplier;
+import java.util.function.LongConsumer;
+
+/**
+ * Verifies IDs from pictures of their QR codes: {@code .qr.png} and {@code .card.png} files
+ * from {@link BulkIssuer}, scans or camera photos. Each image is read, turned into an 8-bit
+ * luminance plane, searched for a QR code with ZXing and the text handed to
+ * {@link IdVerifier#verifyToken}, so every payload form (JWS, compact, either in a verify URL) works.
+ * <p>
+ * Decoding tries cheap first: the image subsampled while it is decoded to at most
+ * {@link #setMaxDimension maxDimension} pixels, with a global-threshold binarizer, which is
+ * enough for rendered cards, flat scans and most photos. Only when that finds nothing is the
+ * image decoded at full resolution, tried again, and finally searched with local thresholding
+ * and ZXing's {@code TRY_HARDER}, which photos with uneven light need. Images with more than
+ * {@link #setMaxPixels maxPixels} pixels, by their header, are refused before anything is
+ * decoded, so a decompression bomb can't take the heap down with it. Inputs are paths,
+ * directories, globs (as for {@link BatchVerifier}) or {@code -} for a list of paths on stdin.
+ */
+public class ImageVerifier {
+
+    /** Pipeline steps, timed per image for the summary and in {@link Metrics}. */
+    public enum Stage {
+        READ("scan.read"), IMAGE("scan.image"), LUMINANCE("scan.luminance"), DECODE("scan.decode"), VERIFY("scan.verify");
+
+        final Metrics.Stage metric;
+
+        Stage(String name) {
+            this.metric = Metrics.stage(name);
+        }
+    }
+
+    public static class Failure {
+        public final String source;
+        public final String reason;
+
+        Failure(String source, String reason) {
+            this.source = source;
+            this.reason = reason;
+        }
+
+        @Override public String toString() {
+            return source + ": " + reason;
+        }
+    }
+
+    public static class Summary {
+        public long images;
+        public long decoded;
+        public long decodedFast; // on the downscaled, global-threshold pass
+        public long decodedPure; // by the pure-barcode pass tried first on .qr.png files
+        public long notFound;
+        public long valid;
+        public long errors;
+        public long elapsedMillis;
+        public int threads;
+        public final long[] stageNanos = new long[Stage.values().length];
+        public final long[] stageCounts = new long[Stage.values().length];
+        public final List<Failure> failures = new ArrayList<>();
+
+        public long invalid() { return images - valid; }
+
+        public double perSecond() {
+            return elapsedMillis == 0 ? images : images * 1000.0 / elapsedMillis;
+        }
+
+        /**
+         * Adds, per stage, the share of worker time it took and how many images per second one
+         * thread gets through it; the stage with the largest share is the one to speed up.
+         */
+        public JsonObject toJson() {
+            JsonObject o = new JsonObject();
+            o.addProperty("images", images);
+            o.addProperty("decoded", decoded);
+            o.addProperty("decodedFast", decodedFast);
+            o.addProperty("decodedPure", decodedPure);
+            o.addProperty("notFound", notFound);
+            o.addProperty("valid", valid);
+            o.addProperty("invalid", invalid());
+            o.addProperty("errors", errors);
+            o.addProperty("threads", threads);
+            o.addProperty("elapsedMillis", elapsedMillis);
+            o.addProperty("imagesPerSec", Math.round(perSecond() * 10) / 10.0);
+            long busy = 0;
+            for (long n : stageNanos) busy += n;
+            JsonObject stages = new JsonObject();
+            for (Stage s : Stage.values()) {
+                long nanos = stageNanos[s.ordinal()];
+                long count = stageCounts[s.ordinal()];
+                JsonObject st = new JsonObject();
+                st.addProperty("count", count);
+                st.addProperty("meanMs", count == 0 ? 0 : Math.round(nanos / 1e4 / count) / 100.0);
+                st.addProperty("perThreadPerSec", nanos == 0 ? 0 : Math.round(count * 1e10 / nanos) / 10.0);
+                st.addProperty("share", busy == 0 ? 0 : Math.round(nanos * 1000.0 / busy) / 1000.0);
+                stages.add(s.name().toLowerCase(Locale.ROOT), st);
+            }
+            o.add("stages", stages);
+            return o;
+        }
+    }
+
+    /** A decoded QR and its verdict; {@code text} and {@code result} are null when no QR was found. */
+    public static final class Scan {
+        public final String text;
+        public final VerifyResult result;
+
+        Scan(String text, VerifyResult result) {
+            this.text = text;
+            this.result = result;
+        }
+    }
+
+    private static final Map<DecodeHintType, Object> FAST_HINTS = new EnumMap<>(DecodeHintType.class);
+    private static final Map<DecodeHintType, Object> HARD_HINTS = new EnumMap<>(DecodeHintType.class);
+    private static final Map<DecodeHintType, Object> PURE_HINTS = new EnumMap<>(DecodeHintType.class);
+
+    static {
+        HARD_HINTS.put(DecodeHintType.TRY_HARDER, Boolean.TRUE);
+        PURE_HINTS.put(DecodeHintType.PURE_BARCODE, Boolean.TRUE);
+    }
+
+    // QRCodeReader keeps decoder state between calls, so one per worker
+    private static final ThreadLocal<QRCodeReader> READER = ThreadLocal.withInitial(QRCodeReader::new);
+
+    private final IdVerifier verifier;
+    private final int threads;
+    private final int maxInFlight;
+    private int maxDimension = 1024;
+    private long maxPixels = 50_000_000;
+
+    private final AtomicLong images = new AtomicLong();
+    private final AtomicLong decoded = new AtomicLong();
+    private final AtomicLong decodedFast = new AtomicLong();
+    private final AtomicLong decodedPure = new AtomicLong();
+    private final AtomicLong notFound = new AtomicLong();
+    private final AtomicLong valid = new AtomicLong();
+    private final AtomicLong errors = new AtomicLong();
+    private final LongAdder[] stageNanos = adders();
+    private final LongAdder[] stageCounts = adders();
+    private final ConcurrentLinkedQueue<Failure> failures = new ConcurrentLinkedQueue<>();
+    private LongConsumer onRecord;
+    private BooleanSupplier cancelled;
+
+    public ImageVerifier(IdVerifier verifier, int threads) {
+        this.verifier = verifier;
+        this.threads = Math.max(1, threads);
+        // decoded images are large; keep only a few per worker around
+        this.maxInFlight = this.threads * 4;
+    }
+
+    /** Longest side, in pixels, of the image the fast pass searches; 0 disables downscaling. */
+    public void setMaxDimension(int maxDimension) {
+        this.maxDimension = maxDimension;
+    }
+
+    /** Largest image, in pixels, that is decoded at all; about four bytes each while it is. */
+    public void setMaxPixels(long maxPixels) {
+        this.maxPixels = maxPixels;
+    }
+
+    /** Called from workers with the number of images checked so far. */
+    public void setOnRecord(LongConsumer onRecord) {
+        this.onRecord = onRecord;
+    }
+
+    /** Polled before each image is queued; once it returns true, {@link #run} throws {@link CancellationException}. */
+    public void setCancelled(BooleanSupplier cancelled) {
+        this.cancelled = cancelled;
+    }
+
+    public Summary run(List<String> inputs) throws IOException {
+        ExecutorService pool = Executors.newFixedThreadPool(threads);
+        Semaphore inFlight = new Semaphore(maxInFlight);
+        for (AtomicLong c : new AtomicLong[]{images, decoded, decodedFast, decodedPure, notFound, valid, errors}) c.set(0);
+        for (LongAdder a : stageNanos) a.reset();
+        for (LongAdder a : stageCounts) a.reset();
+        failures.clear();
+        long start = System.nanoTime();
+        try {
+            for (String in : inputs) {
+                if (in.equals("-")) {
+                    submitList(System.in, pool, inFlight);
+                } else {
+                    BatchVerifier.expand(in, ImageVerifier::isImage, p -> submit(p, pool, inFlight));
+                }
+            }
+            inFlight.acquireUninterruptibly(maxInFlight);
+        } finally {
+            pool.shutdownNow();
+        }
+
+        Summary s = new Summary();
+        s.images = images.get();
+        s.decoded = decoded.get();
+        s.decodedFast = decodedFast.get();
+        s.decodedPure = decodedPure.get();
+        s.notFound = notFound.get();
+        s.valid = valid.get();
+        s.errors = errors.get();
+        s.threads = threads;
+        s.elapsedMillis = TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start);
+        for (Stage st : Stage.values()) {
+            s.stageNanos[st.ordinal()] = stageNanos[st.ordinal()].sum();
+            s.stageCounts[st.ordinal()] = stageCounts[st.ordinal()].sum();
+        }
+        s.failures.addAll(failures);
+        return s;
+    }
+
+    /** Decodes and verifies one encoded image (PNG, JPEG, ...), e.g. an upload, on the calling thread. */
+    public Scan scan(byte[] encoded, String name) throws IOException {
+        String text;
+        // ImageIO.read(InputStream) would spool the bytes through a temp file first
+        try (ImageInputStream in = new MemoryCacheImageInputStream(new ByteArrayInputStream(encoded))) {
+            Iterator<ImageReader> readers = ImageIO.getImageReaders(in);
+            if (!readers.hasNext()) throw new IOException("not a readable image");
+            ImageReader image = readers.next();
+            try {
+                image.setInput(in, false, true);
+                text = decode(image, name != null && name.endsWith(".qr.png"));
+            } catch (OutOfMemoryError e) {
+                // the pixel limit should prevent this; one image still mustn't stop the run
+                throw new IOException("image too large to decode in this heap");
+            } finally {
+                image.dispose();
+            }
+        }
+        if (text == null) return new Scan(null, null);
+        long t = System.nanoTime();
+        VerifyResult r = verifier.verifyToken(text);
+        timed(Stage.VERIFY, t);
+        return new Scan(text, r);
+    }
+
+    private void submitList(InputStream in, ExecutorService pool, Semaphore inFlight) throws IOException {
+        BufferedReader r = new BufferedReader(new InputStreamReader(in, StandardCharsets.UTF_8));
+        String line;
+        while ((line = r.readLine()) != null) {
+            if (!line.isBlank()) submit(Path.of(line.trim()), pool, inFlight);
+        }
+    }
+
+    private void submit(Path p, ExecutorService pool, Semaphore inFlight) {
+        if (cancelled != null && cancelled.getAsBoolean()) throw new CancellationException("Stopped at " + p);
+        inFlight.acquireUninterruptibly();
+        pool.execute(() -> {
+            try {
+                scanOne(p);
+            } catch (Exception ex) {
+                errors.incrementAndGet();
+                failures.add(new Failure(p.toString(), "error " + ex.getMessage()));
+            } finally {
+                long n = images.incrementAndGet();
+                if (onRecord != null) onRecord.accept(n);
+                inFlight.release();
+            }
+        });
+    }
+
+    private void scanOne(Path p) throws IOException {
+        long t = System.nanoTime();
+        byte[] bytes = Files.readAllBytes(p);
+        timed(Stage.READ, t);
+        Scan s = scan(bytes, p.getFileName().toString());
+        if (s.text == null) {
+            notFound.incrementAndGet();
+            failures.add(new Failure(p.toString(), "no QR code found"));
+            return;
+        }
+        decoded.incrementAndGet();
+        if (s.result.isValid()) {
+            valid.incrementAndGet();
+        } else {
+            failures.add(new Failure(p.toString(), s.result.toString()));
+        }
+    }
+
+    // Returns the QR text or null. The fast pass has the image decoder skip rows and columns
+    // (much cheaper than decoding everything and shrinking it); the fallbacks decode it all.
+    private String decode(ImageReader image, boolean pure) throws IOException {
+        int w = image.getWidth(0);
+        int h = image.getHeight(0);
+        if ((long) w * h > maxPixels) {
+            throw new IOException("image is " + w + "x" + h + ", more than " + maxPixels + " pixels");
+        }
+        int factor = maxDimension <= 0 ? 1 : Math.max(1, (Math.max(w, h) + maxDimension - 1) / maxDimension);
+        QRCodeReader reader = READER.get();
+
+        long t = System.nanoTime();
+        BufferedImage img = read(image, factor);
+        t = timed(Stage.IMAGE, t);
+        byte[] luma = luminance(img);
+        t = timed(Stage.LUMINANCE, t);
+        String text = pure ? read(reader, new HybridBinarizer(source(luma, img)), PURE_HINTS) : null;
+        if (text != null) {
+            timed(Stage.DECODE, t);
+            decodedPure.incrementAndGet();
+            return text;
+        }
+        text = read(reader, new GlobalHistogramBinarizer(source(luma, img)), FAST_HINTS);
+        t = timed(Stage.DECODE, t);
+        if (text != null) {
+            decodedFast.incrementAndGet();
+            return text;
+        }
+
+        if (factor > 1) {
+            img = read(image, 1);
+            t = timed(Stage.IMAGE, t);
+            luma = luminance(img);
+            t = timed(Stage.LUMINANCE, t);
+            text = read(reader, new GlobalHistogramBinarizer(source(luma, img)), FAST_HINTS);
+        }
+        if (text == null) text = read(reader, new HybridBinarizer(source(luma, img)), HARD_HINTS);
+        timed(Stage.DECODE, t);
+        return text;
+    }
+
+    private static BufferedImage read(ImageReader image, int subsampling) throws IOException {
+        ImageReadParam param = image.getDefaultReadParam();
+        if (subsampling > 1) param.setSourceSubsampling(subsampling, subsampling, 0, 0);
+        // JPEG can hand over its Y channel as is, skipping the colour conversion; other
+        // readers would convert to linear grey, which loses contrast
+        boolean jpeg = image.getFormatName().equalsIgnoreCase("jpeg");
+        for (Iterator<ImageTypeSpecifier> it = image.getImageTypes(0); jpeg && it.hasNext(); ) {
+            ImageTypeSpecifier type = it.next();
+            if (type.getBufferedImageType() == BufferedImage.TYPE_BYTE_GRAY) {
+                param.setDestinationType(type);
+                break;
+            }
+        }
+        return image.read(0, param);
+    }
+
+    private static String read(QRCodeReader reader, Binarizer binarizer, Map<DecodeHintType, Object> hints) {
+        try {
+            return reader.decode(new BinaryBitmap(binarizer), hints).getText();
+        } catch (ReaderException | RuntimeException e) {
+            return null;
+        } finally {
+            reader.reset();
+        }
+    }
+
+    private static LuminanceSource source(byte[] luma, BufferedImage img) {
+        int w = img.getWidth();
+        int h = img.getHeight();
+        // only the Y plane is read, so a bare luminance array is a valid "YUV" buffer
+        return new PlanarYUVLuminanceSource(luma, w, h, 0, 0, w, h, false);
+    }
+
+    // 8-bit luminance, (R + 2G + B) / 4 as in ZXing, read straight from the common raster layouts
+    static byte[] luminance(BufferedImage img) {
+        int w = img.getWidth();
+        int h = img.getHeight();
+        byte[] out = new byte[Math.multiplyExact(w, h)];
+        switch (img.getType()) {
+            case BufferedImage.TYPE_BYTE_GRAY -> {
+                if (img.getRaster().getDataBuffer() instanceof DataBufferByte db && db.getData().length == out.length) {
+                    return db.getData().clone();
+                }
+                genericLuminance(img, out);
+            }
+            case BufferedImage.TYPE_INT_RGB, BufferedImage.TYPE_INT_ARGB -> {
+                int[] px = ((DataBufferInt) img.getRaster().getDataBuffer()).getData();
+                boolean alpha = img.getType() == BufferedImage.TYPE_INT_ARGB;
+                for (int i = 0; i < out.length; i++) out[i] = (byte) luma(px[i], alpha);
+            }
+            case BufferedImage.TYPE_3BYTE_BGR -> {
+                byte[] px = ((DataBufferByte) img.getRaster().getDataBuffer()).getData();
+                for (int i = 0, j = 0; i < out.length; i++, j += 3) {
+                    out[i] = (byte) (((px[j + 2] & 0xFF) + 2 * (px[j + 1] & 0xFF) + (px[j] & 0xFF)) >> 2);
+                }
+            }
+            default -> genericLuminance(img, out);
+        }
+        return out;
+    }
+
+    private static void genericLuminance(BufferedImage img, byte[] out) {
+        int w = img.getWidth();
+        int[] row = new int[w];
+        for (int y = 0; y < img.getHeight(); y++) {
+            img.getRGB(0, y, w, 1, row, 0, w);
+            for (int x = 0; x < w; x++) out[y * w + x] = (byte) luma(row[x], true);
+        }
+    }
+
+    private static int luma(int argb, boolean alpha) {
+        // transparent pixels read as white, like paper behind the code
+        if (alpha && (argb >>> 24) == 0) return 0xFF;
+        return (((argb >> 16) & 0xFF) + 2 * ((argb >> 8) & 0xFF) + (argb & 0xFF)) >> 2;
+    }
+
+    // Always timed, for the summary, whether or not Metrics is enabled
+    private long timed(Stage s, long start) {
+        long now = System.nanoTime();
+        s.metric.record(now - start);
+        stageNanos[s.ordinal()].add(now - start);
+        stageCounts[s.ordinal()].increment();
+        return now;
+    }
+
+    private static LongAdder[] adders() {
+        LongAdder[] a = new LongAdder[Stage.values().length];
+        for (int i = 0; i < a.length; i++) a[i] = new LongAdder();
+        return a;
+    }
+
+    private static boolean isImage(Path p) {
+        String n = p.getFileName().toString().toLowerCase(Locale.ROOT);
+        return n.endsWith(".png") || n.endsWith(".jpg") || n.endsWith(".jpeg") || n.endsWith(".bmp") || n.endsWith(".gif");
+    }
+}
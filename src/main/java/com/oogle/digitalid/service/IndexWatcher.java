@@ -0,0 +1,405 @@
+package com.oogle.digitalid.service;
+
+import com.oogle.digitalid.crypto.Crypto;
+import com.oogle.digitalid.metrics.Metrics;
+import com.oogle.digitalid.model.DigitalId;
+import com.oogle.digitalid.model.VerifyResult;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.ClosedWatchServiceException;
+import java.nio.file.FileSystems;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.StandardWatchEventKinds;
+import java.nio.file.WatchEvent;
+import java.nio.file.WatchKey;
+import java.nio.file.WatchService;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.time.Instant;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.PriorityQueue;
+import java.util.Set;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Consumer;
+import java.util.stream.Stream;
+
+/**
+ * Keeps a {@link VerificationIndex} in step with a directory of {@code .did.json} files. On
+ * start it reconciles the index with what is on disk; after that a {@link WatchService} reports
+ * each created, modified or deleted file and only those are looked at again. A file whose mtime
+ * and size match its entry is skipped, and one whose bytes hash the same as before keeps its
+ * verdict. Valid IDs sit in a queue ordered by expiry, so each one flips to expired when its
+ * time comes without anything being rescanned.
+ * <p>
+ * Verdicts also depend on things outside the tree. Every {@link #TRUST_CHECK_MILLIS} the
+ * verifier's {@link IdVerifier#keyFingerprint key set} is compared with the one the index was
+ * built with, and every file is verified again when it differs; and when the revocation list's
+ * count moves, each entry's {@code statusIndex} is looked up again, which needs no file reads.
+ * {@link #reconcile} does both, so a restart with other keys or a newer list catches up too.
+ * <p>
+ * One thread owns the watch loop, the pending set and the expiry queue; files are verified on
+ * a pool of {@code threads}. A batch is verified once the tree has been quiet for
+ * {@link #QUIET_MILLIS}, so a file still being written is read once, after its last write; under
+ * a steady stream of writes no change waits longer than {@link #MAX_DELAY_MILLIS}.
+ */
+public final class IndexWatcher implements Closeable {
+    static final long QUIET_MILLIS = 200;
+    static final long MAX_DELAY_MILLIS = 2000;
+    static final long SAVE_INTERVAL_MILLIS = 5000;
+    static final long TRUST_CHECK_MILLIS = 2000;
+    private static final String SUFFIX = ".did.json";
+    private static final Metrics.Stage WATCH_VERIFY = Metrics.stage("watch.verify");
+    private static final Metrics.Counter UNCHANGED = Metrics.counter("watch.unchanged");
+
+    /** A verdict that changed: a new or edited file, a deletion (entry null), an expiry, a revocation or a key change. */
+    public static final class Change {
+        public final String path;
+        public final VerificationIndex.Entry entry;
+        public final String kind;
+
+        Change(String path, VerificationIndex.Entry entry, String kind) {
+            this.path = path;
+            this.entry = entry;
+            this.kind = kind;
+        }
+
+        @Override public String toString() {
+            long now = Instant.now().getEpochSecond();
+            return kind + " " + path + (entry == null ? "" : ": " + entry.status(now));
+        }
+    }
+
+    private record Expiry(long at, String path) { }
+
+    private final IdVerifier verifier;
+    private final Path root;
+    private final VerificationIndex index;
+    private final int threads;
+    private final WatchService watcher;
+    private final Map<WatchKey, Path> keys = new HashMap<>();
+    private final Set<Path> pending = new LinkedHashSet<>();
+    private final PriorityQueue<Expiry> expiries = new PriorityQueue<>((a, b) -> Long.compare(a.at, b.at));
+    private final ExecutorService pool;
+    private volatile Consumer<Change> onChange = c -> { };
+    private volatile boolean closed;
+    private long lastEventNanos;
+    private long firstPendingNanos;
+    private long lastSaveNanos;
+    private long nextTrustCheckNanos;
+    private RevocationList sweptList;
+    private long sweptRevoked;
+
+    public IndexWatcher(IdVerifier verifier, Path root, VerificationIndex index, int threads) throws IOException {
+        this.verifier = verifier;
+        this.root = root.toAbsolutePath().normalize();
+        this.index = index;
+        this.threads = Math.max(1, threads);
+        this.watcher = FileSystems.getDefault().newWatchService();
+        this.pool = Executors.newFixedThreadPool(this.threads);
+    }
+
+    /** Called on the watch thread for every verdict that changes. */
+    public void setOnChange(Consumer<Change> onChange) {
+        this.onChange = onChange;
+    }
+
+    /**
+     * Registers the tree and brings the index up to date with it, re-verifying only new and
+     * changed files. Returns the number of files verified.
+     */
+    public int reconcile() throws IOException {
+        registerTree(root);
+        Set<String> seen = new HashSet<>();
+        List<Path> files = new ArrayList<>();
+        try (Stream<Path> s = Files.walk(root)) {
+            s.filter(IndexWatcher::isIdFile).forEach(p -> {
+                files.add(p);
+                seen.add(relative(p));
+            });
+        }
+        for (VerificationIndex.Entry e : List.copyOf(index.entries())) {
+            if (!seen.contains(e.path)) {
+                index.remove(e.path);
+                emit(new Change(e.path, null, "DELETED"));
+            }
+        }
+        String keys = verifier.keyFingerprint();
+        int verified = process(files, !keys.equals(index.keyFingerprint()));
+        index.setKeyFingerprint(keys);
+        sweepRevocations();
+        nextTrustCheckNanos = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(TRUST_CHECK_MILLIS);
+        rescheduleAll();
+        index.save();
+        lastSaveNanos = System.nanoTime();
+        return verified;
+    }
+
+    /** Watches until {@link #close}; call {@link #reconcile} first. */
+    public void run() throws IOException {
+        try {
+            while (!closed) {
+                WatchKey key = watcher.poll(waitMillis(), TimeUnit.MILLISECONDS);
+                // drain whatever else is queued before deciding the tree has gone quiet
+                for (; key != null; key = watcher.poll()) handle(key);
+                long now = System.nanoTime();
+                if (!pending.isEmpty() && (now - lastEventNanos >= TimeUnit.MILLISECONDS.toNanos(QUIET_MILLIS)
+                        || now - firstPendingNanos >= TimeUnit.MILLISECONDS.toNanos(MAX_DELAY_MILLIS))) {
+                    List<Path> batch = new ArrayList<>(pending);
+                    pending.clear();
+                    process(batch, false);
+                    for (Path p : batch) {
+                        VerificationIndex.Entry e = index.get(relative(p));
+                        if (e != null) schedule(e);
+                    }
+                }
+                expireDue();
+                if (System.nanoTime() >= nextTrustCheckNanos) checkTrust();
+                if (index.isDirty() && System.nanoTime() - lastSaveNanos >= TimeUnit.MILLISECONDS.toNanos(SAVE_INTERVAL_MILLIS)) {
+                    index.save();
+                    lastSaveNanos = System.nanoTime();
+                }
+            }
+        } catch (ClosedWatchServiceException | RejectedExecutionException e) {
+            if (!closed) throw e;
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        } finally {
+            pool.shutdown();
+            index.save();
+        }
+    }
+
+    /** Stops {@link #run} once the files already being verified are done; it saves the index on the way out. */
+    @Override public void close() throws IOException {
+        closed = true;
+        pool.shutdown();
+        watcher.close();
+    }
+
+    // Wake for the end of a quiet period, the next expiry, or a key and revocation check, whichever comes first
+    private long waitMillis() {
+        long wait = Math.max(1, TimeUnit.NANOSECONDS.toMillis(nextTrustCheckNanos - System.nanoTime()));
+        if (!pending.isEmpty()) wait = Math.min(wait, QUIET_MILLIS);
+        Expiry next = expiries.peek();
+        if (next != null) {
+            long untilExpiry = (next.at + 1) * 1000 - System.currentTimeMillis();
+            wait = Math.min(wait, Math.max(1, untilExpiry));
+        }
+        return wait;
+    }
+
+    private void handle(WatchKey key) throws IOException {
+        boolean wasIdle = pending.isEmpty();
+        Path dir = keys.get(key);
+        for (WatchEvent<?> event : key.pollEvents()) {
+            if (event.kind() == StandardWatchEventKinds.OVERFLOW) {
+                // events were dropped; only a rescan can tell what changed
+                reconcile();
+                continue;
+            }
+            if (dir == null) continue;
+            Path p = dir.resolve((Path) event.context());
+            if (event.kind() == StandardWatchEventKinds.ENTRY_CREATE && Files.isDirectory(p)) {
+                // files can land in a new directory before it is registered, so sweep it now
+                registerTree(p);
+                try (Stream<Path> s = Files.walk(p)) {
+                    s.filter(IndexWatcher::isIdFile).forEach(pending::add);
+                }
+            } else if (event.kind() == StandardWatchEventKinds.ENTRY_DELETE) {
+                deleted(p);
+            } else if (isIdFile(p)) {
+                pending.add(p);
+            }
+        }
+        lastEventNanos = System.nanoTime();
+        if (wasIdle) firstPendingNanos = lastEventNanos;
+        if (!key.reset()) keys.remove(key);
+    }
+
+    private void deleted(Path p) {
+        String prefix = relative(p);
+        pending.removeIf(q -> q.startsWith(p));
+        VerificationIndex.Entry e = index.remove(prefix);
+        if (e != null) {
+            emit(new Change(prefix, null, "DELETED"));
+            return;
+        }
+        // a deleted directory takes its files with it
+        for (VerificationIndex.Entry child : List.copyOf(index.entries())) {
+            if (child.path.startsWith(prefix + "/")) {
+                index.remove(child.path);
+                emit(new Change(child.path, null, "DELETED"));
+            }
+        }
+    }
+
+    private void registerTree(Path dir) throws IOException {
+        try (Stream<Path> s = Files.walk(dir)) {
+            for (Path d : (Iterable<Path>) s.filter(Files::isDirectory)::iterator) {
+                WatchKey key = d.register(watcher, StandardWatchEventKinds.ENTRY_CREATE,
+                        StandardWatchEventKinds.ENTRY_MODIFY, StandardWatchEventKinds.ENTRY_DELETE);
+                keys.put(key, d);
+            }
+        }
+    }
+
+    /**
+     * Verifies whichever of {@code files} changed since their entries, or all of them when
+     * {@code reverify}, in parallel; returns how many were verified.
+     */
+    private int process(List<Path> files, boolean reverify) throws IOException {
+        int verified = 0;
+        // a window at a time, so a huge tree doesn't queue up every file at once
+        int window = threads * 64;
+        List<Future<Change>> jobs = new ArrayList<>(Math.min(window, files.size()));
+        for (int from = 0; from < files.size() && !closed; from += window) {
+            jobs.clear();
+            for (Path p : files.subList(from, Math.min(files.size(), from + window))) jobs.add(pool.submit(() -> check(p, reverify)));
+            for (Future<Change> f : jobs) {
+                Change c;
+                try {
+                    c = f.get();
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    throw new IOException("interrupted", e);
+                } catch (ExecutionException e) {
+                    throw e.getCause() instanceof IOException io ? io : new IOException(e.getCause());
+                }
+                if (c == null) continue;
+                if (c.entry != null) verified++;
+                if (c.kind != null) emit(c);
+            }
+        }
+        return verified;
+    }
+
+    // Runs on the pool. Returns the change to report, or null if the verdict stands without a
+    // verification; a re-verification that reached the same verdict comes back with a null kind.
+    private Change check(Path p, boolean reverify) throws IOException {
+        String rel = relative(p);
+        VerificationIndex.Entry old = index.get(rel);
+        BasicFileAttributes attrs;
+        byte[] bytes;
+        try {
+            attrs = Files.readAttributes(p, BasicFileAttributes.class);
+            if (!reverify && old != null && old.mtime == attrs.lastModifiedTime().toMillis() && old.size == attrs.size()) {
+                UNCHANGED.increment();
+                return null;
+            }
+            bytes = Files.readAllBytes(p);
+        } catch (NoSuchFileException e) {
+            // gone again before we got to it; the delete event (or reconcile) drops the entry
+            return index.remove(rel) != null ? new Change(rel, null, "DELETED") : null;
+        }
+        long mtime = attrs.lastModifiedTime().toMillis();
+        byte[] sha256 = Crypto.sha256(bytes);
+        boolean sameBytes = old != null && Arrays.equals(old.sha256, sha256);
+        if (!reverify && sameBytes) {
+            // touched or rewritten with the same bytes
+            index.put(old.touched(mtime, bytes.length));
+            UNCHANGED.increment();
+            return null;
+        }
+
+        long t = Metrics.start();
+        VerificationIndex.Entry e;
+        try {
+            DigitalId d = IdVerifier.readId(new String(bytes, StandardCharsets.UTF_8));
+            if (d == null || d.id == null) throw new IllegalArgumentException("not an ID document");
+            VerifyResult r = verifier.verify(d);
+            e = VerificationIndex.Entry.of(rel, mtime, bytes.length, sha256, d.id, d.expiresAt, IdVerifier.statusIndexOf(d), r);
+        } catch (RuntimeException ex) {
+            // malformed JSON, or fields JCS can't represent
+            e = VerificationIndex.Entry.error(rel, mtime, bytes.length, sha256, String.valueOf(ex.getMessage()));
+        }
+        WATCH_VERIFY.stop(t);
+        index.put(e);
+        if (old == null) return new Change(rel, e, "NEW");
+        if (!sameBytes) return new Change(rel, e, "CHANGED");
+        return new Change(rel, e, old.flags == e.flags ? null : "REVERIFIED");
+    }
+
+    // On the watch thread, between batches
+    private void checkTrust() throws IOException {
+        nextTrustCheckNanos = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(TRUST_CHECK_MILLIS);
+        String keys = verifier.keyFingerprint();
+        if (!keys.equals(index.keyFingerprint())) {
+            List<Path> files = new ArrayList<>(index.size());
+            for (VerificationIndex.Entry e : index.entries()) files.add(root.resolve(e.path));
+            process(files, true);
+            index.setKeyFingerprint(keys);
+            rescheduleAll();
+        }
+        RevocationList list = verifier.revocationList();
+        if (list != sweptList || (list != null && list.revokedCount() != sweptRevoked)) {
+            sweepRevocations();
+            expireDue();
+        }
+    }
+
+    // Applies the revocation list as it stands to every entry; a lookup per entry, no file reads
+    private void sweepRevocations() throws IOException {
+        RevocationList list = verifier.revocationList();
+        sweptList = list;
+        // taken before the sweep, so a revocation that lands during it triggers another
+        sweptRevoked = list == null ? 0 : list.revokedCount();
+        for (VerificationIndex.Entry e : List.copyOf(index.entries())) {
+            VerificationIndex.Entry swept = e.withRevocation(list);
+            if (swept == e || !index.replace(e, swept)) continue;
+            emit(new Change(e.path, swept, swept.has(VerificationIndex.REVOKED) ? "REVOKED" : "REINSTATED"));
+            schedule(swept);
+        }
+    }
+
+    private void rescheduleAll() {
+        expiries.clear();
+        for (VerificationIndex.Entry e : index.entries()) schedule(e);
+        expireDue();
+    }
+
+    // Only IDs that are otherwise valid get an expiry transition; one already due flips on the next expireDue
+    private void schedule(VerificationIndex.Entry e) {
+        if (e.expiresAt != null && !e.has(VerificationIndex.EXPIRED) && e.passedChecks()) {
+            expiries.add(new Expiry(e.expiresAt, e.path));
+        }
+    }
+
+    private void expireDue() {
+        long now = Instant.now().getEpochSecond();
+        Expiry next;
+        while ((next = expiries.peek()) != null && next.at < now) {
+            expiries.poll();
+            VerificationIndex.Entry e = index.get(next.path);
+            // stale when the file was replaced or removed since it was queued
+            if (e == null || e.expiresAt == null || e.expiresAt != next.at || e.has(VerificationIndex.EXPIRED) || !e.passedChecks()) continue;
+            VerificationIndex.Entry expired = e.expired();
+            if (index.replace(e, expired)) emit(new Change(e.path, expired, "EXPIRED"));
+        }
+    }
+
+    private void emit(Change c) {
+        onChange.accept(c);
+    }
+
+    private String relative(Path p) {
+        return root.relativize(p.toAbsolutePath().normalize()).toString().replace('\\', '/');
+    }
+
+    private static boolean isIdFile(Path p) {
+        return p.getFileName().toString().endsWith(SUFFIX) && Files.isRegularFile(p);
+    }
+}
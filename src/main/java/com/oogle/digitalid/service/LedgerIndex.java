@@ -0,0 +1,191 @@
+package com.oogle.digitalid.service;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.VarHandle;
+import java.nio.ByteOrder;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+
+/**
+ * Off-heap id → record location map for {@link IdLedger}: an open-addressing hash table in a
+ * memory-mapped file, so millions of ids cost no Java heap and survive restarts.
+ * <pre>
+ *   0  int  magic "DIDX"   8 long slots   16 long size   24 long watermark   32 int dirty   64 slots...
+ *   slot: long keyHi, long keyLo, long location (0 = empty)
+ * </pre>
+ * Everything the ledger appended before {@code watermark} is in the index and on disk; the
+ * ledger re-indexes records after it on open. {@code size} is only trusted when the table
+ * wasn't written to after the last checkpoint; otherwise it is recounted. Lookups are
+ * lock-free: a writer fills a slot's key before publishing its location, and a resize builds
+ * a new file and swaps it in. Writers must be serialized by the caller.
+ */
+final class LedgerIndex implements Closeable {
+    private static final int MAGIC = 0x44494458; // "DIDX"
+    private static final int VERSION = 1;
+    private static final int HEADER = 64;
+    private static final int SLOT = 24;
+    private static final int SLOTS_OFF = 8, SIZE_OFF = 16, WATERMARK_OFF = 24, DIRTY_OFF = 32;
+    private static final int INITIAL_SLOTS = 1 << 16;
+    private static final int MAX_SLOTS = 1 << 26; // keeps the table within one 2 GB mapping
+    private static final VarHandle LONGS = MethodHandles.byteBufferViewVarHandle(long[].class, ByteOrder.LITTLE_ENDIAN);
+
+    private static final class Table {
+        final MappedByteBuffer map;
+        final int mask;
+
+        Table(MappedByteBuffer map, int slots) {
+            this.map = map;
+            this.mask = slots - 1;
+        }
+    }
+
+    private final Path path;
+    private volatile Table table;
+    private long size;
+    private boolean dirty;
+
+    private LedgerIndex(Path path) {
+        this.path = path;
+    }
+
+    /** Opens the index at {@code path}, starting an empty one (watermark 0) if it is missing or unreadable. */
+    static LedgerIndex open(Path path) throws IOException {
+        LedgerIndex idx = new LedgerIndex(path);
+        if (Files.exists(path)) {
+            try (FileChannel ch = FileChannel.open(path, StandardOpenOption.READ, StandardOpenOption.WRITE)) {
+                if (ch.size() >= HEADER) {
+                    MappedByteBuffer m = ch.map(FileChannel.MapMode.READ_WRITE, 0, ch.size());
+                    m.order(ByteOrder.LITTLE_ENDIAN);
+                    long slots = m.getLong(SLOTS_OFF);
+                    if (m.getInt(0) == MAGIC && m.getInt(4) == VERSION && Long.bitCount(slots) == 1
+                            && slots <= MAX_SLOTS && ch.size() == HEADER + slots * SLOT) {
+                        idx.table = new Table(m, (int) slots);
+                        idx.size = m.getInt(DIRTY_OFF) == 0 ? m.getLong(SIZE_OFF) : count(idx.table);
+                        return idx;
+                    }
+                }
+            }
+        }
+        idx.table = create(path, INITIAL_SLOTS);
+        return idx;
+    }
+
+    /** Location for the key, or 0 if absent. */
+    long get(long hi, long lo) {
+        Table t = table;
+        int i = slotOf(hi, lo, t.mask);
+        while (true) {
+            int off = HEADER + i * SLOT;
+            long loc = (long) LONGS.getAcquire(t.map, off + 16);
+            if (loc == 0) return 0;
+            if (t.map.getLong(off) == hi && t.map.getLong(off + 8) == lo) return loc;
+            i = (i + 1) & t.mask;
+        }
+    }
+
+    void put(long hi, long lo, long location) throws IOException {
+        if (!dirty) {
+            table.map.putInt(DIRTY_OFF, 1);
+            dirty = true;
+        }
+        if ((size + 1) * 2 > table.mask + 1) grow();
+        if (insert(table, hi, lo, location)) size++;
+    }
+
+    long size() { return size; }
+
+    long watermark() {
+        return table.map.getLong(WATERMARK_OFF);
+    }
+
+    /** Flushes the table, then records that everything before {@code watermark} is indexed. */
+    void checkpoint(long watermark) {
+        MappedByteBuffer m = table.map;
+        m.putLong(SIZE_OFF, size);
+        m.force();
+        m.putLong(WATERMARK_OFF, watermark).putInt(DIRTY_OFF, 0);
+        m.force(0, HEADER);
+        dirty = false;
+    }
+
+    /** Drops every entry, e.g. when the ledger no longer matches the index. */
+    void reset() throws IOException {
+        table = create(path, INITIAL_SLOTS);
+        size = 0;
+        dirty = false;
+    }
+
+    @Override public void close() {
+        table.map.force();
+    }
+
+    private static boolean insert(Table t, long hi, long lo, long location) {
+        int i = slotOf(hi, lo, t.mask);
+        while (true) {
+            int off = HEADER + i * SLOT;
+            long loc = t.map.getLong(off + 16);
+            if (loc == 0) {
+                t.map.putLong(off, hi).putLong(off + 8, lo);
+                LONGS.setRelease(t.map, off + 16, location);
+                return true;
+            }
+            if (t.map.getLong(off) == hi && t.map.getLong(off + 8) == lo) {
+                LONGS.setRelease(t.map, off + 16, location);
+                return false;
+            }
+            i = (i + 1) & t.mask;
+        }
+    }
+
+    // Rehash into a fresh file and rename it over the old one; readers keep using the old
+    // mapping, which stays valid after the rename, until they next load the table
+    private void grow() throws IOException {
+        Table old = table;
+        int slots = (old.mask + 1) * 2;
+        if (slots > MAX_SLOTS) throw new IllegalStateException("Ledger index is full (" + size + " ids)");
+        Path tmp = path.resolveSibling(path.getFileName() + ".tmp");
+        Table t = create(tmp, slots);
+        for (int i = 0; i <= old.mask; i++) {
+            int off = HEADER + i * SLOT;
+            long loc = old.map.getLong(off + 16);
+            if (loc != 0) insert(t, old.map.getLong(off), old.map.getLong(off + 8), loc);
+        }
+        t.map.putLong(SIZE_OFF, size).putLong(WATERMARK_OFF, old.map.getLong(WATERMARK_OFF)).putInt(DIRTY_OFF, 1);
+        t.map.force();
+        Files.move(tmp, path, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        table = t;
+    }
+
+    private static long count(Table t) {
+        long n = 0;
+        for (int i = 0; i <= t.mask; i++) {
+            if (t.map.getLong(HEADER + i * SLOT + 16) != 0) n++;
+        }
+        return n;
+    }
+
+    private static Table create(Path path, int slots) throws IOException {
+        Files.deleteIfExists(path);
+        try (FileChannel ch = FileChannel.open(path, StandardOpenOption.CREATE_NEW, StandardOpenOption.READ, StandardOpenOption.WRITE)) {
+            MappedByteBuffer m = ch.map(FileChannel.MapMode.READ_WRITE, 0, HEADER + (long) slots * SLOT);
+            m.order(ByteOrder.LITTLE_ENDIAN);
+            m.putInt(0, MAGIC).putInt(4, VERSION).putLong(SLOTS_OFF, slots);
+            return new Table(m, slots);
+        }
+    }
+
+    static int slotOf(long hi, long lo, int mask) {
+        // murmur3 finalizer; UUID bits are mostly random but version/variant bits are fixed
+        long h = hi ^ Long.rotateLeft(lo, 31);
+        h ^= h >>> 33;
+        h *= 0xff51afd7ed558ccdL;
+        h ^= h >>> 33;
+        return (int) h & mask;
+    }
+}
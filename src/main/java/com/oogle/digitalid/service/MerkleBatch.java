@@ -0,0 +1,167 @@
+package com.oogle.digitalid.service;
+
+import com.google.gson.JsonElement;
+import com.google.gson.JsonObject;
+import com.google.gson.JsonParser;
+import com.oogle.digitalid.crypto.Crypto;
+import com.oogle.digitalid.model.MerkleProof;
+
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Merkle trees for batch issuance. Leaves are SHA-256 over {@code 0x00 || payload} and inner
+ * nodes SHA-256 over {@code 0x01 || left || right} (RFC 6962 domain separation, so a node can't
+ * pose as a leaf); an odd node at the end of a level moves up unchanged. The issuer signs only
+ * the root, as a JWS with {@code typ} {@value #JWS_TYPE} over
+ * <pre>
+ *   {"merkleRoot":"&lt;base64url&gt;","size":n}
+ * </pre>
+ * and each ID carries its leaf index and sibling hashes. Since the batch size is signed, the
+ * tree shape is fixed and a proof can't be replayed at another position.
+ */
+public final class MerkleBatch {
+    public static final String JWS_TYPE = "DID-BATCH";
+    static final int HASH = 32;
+
+    private MerkleBatch() { }
+
+    /** A built tree: every level, leaves first. */
+    public static final class Tree {
+        private final byte[][][] levels;
+
+        private Tree(byte[][][] levels) {
+            this.levels = levels;
+        }
+
+        public int size() { return levels[0].length; }
+
+        public byte[] root() { return levels[levels.length - 1][0]; }
+
+        /** Sibling hashes from leaf {@code index} up to the root, concatenated. */
+        public byte[] proof(int index) {
+            byte[] out = new byte[HASH * (levels.length - 1)];
+            int n = 0;
+            for (int l = 0; l < levels.length - 1; l++) {
+                byte[][] level = levels[l];
+                int sibling = index ^ 1;
+                if (sibling < level.length) {
+                    System.arraycopy(level[sibling], 0, out, n, HASH);
+                    n += HASH;
+                }
+                index >>= 1;
+            }
+            return n == out.length ? out : Arrays.copyOf(out, n);
+        }
+    }
+
+    public static byte[] leaf(byte[] payload) {
+        byte[] in = new byte[payload.length + 1];
+        System.arraycopy(payload, 0, in, 1, payload.length);
+        return Crypto.sha256(in);
+    }
+
+    static byte[] node(byte[] left, byte[] right) {
+        byte[] in = new byte[1 + HASH * 2];
+        in[0] = 1;
+        System.arraycopy(left, 0, in, 1, HASH);
+        System.arraycopy(right, 0, in, 1 + HASH, HASH);
+        return Crypto.sha256(in);
+    }
+
+    public static Tree build(byte[][] leaves) {
+        if (leaves.length == 0) throw new IllegalArgumentException("Empty batch");
+        int depth = 1;
+        for (int n = leaves.length; n > 1; n = (n + 1) / 2) depth++;
+        byte[][][] levels = new byte[depth][][];
+        levels[0] = leaves;
+        for (int l = 1; l < depth; l++) {
+            byte[][] below = levels[l - 1];
+            byte[][] level = new byte[(below.length + 1) / 2][];
+            for (int i = 0; i < level.length; i++) {
+                int left = i * 2;
+                level[i] = left + 1 < below.length ? node(below[left], below[left + 1]) : below[left];
+            }
+            levels[l] = level;
+        }
+        return new Tree(levels);
+    }
+
+    /** Root reached from {@code leaf} at {@code index} of {@code size}, or null if the path doesn't fit that shape. */
+    public static byte[] root(byte[] leaf, long index, long size, byte[] path) {
+        if (index < 0 || index >= size || path.length % HASH != 0) return null;
+        byte[] h = leaf;
+        int used = 0;
+        for (long n = size; n > 1; n = (n + 1) / 2) {
+            if ((index & 1) == 0 && index == n - 1) {
+                // last node of an odd level: carried up without a sibling
+            } else {
+                if (used + HASH > path.length) return null;
+                byte[] sibling = Arrays.copyOfRange(path, used, used + HASH);
+                used += HASH;
+                h = (index & 1) == 0 ? node(h, sibling) : node(sibling, h);
+            }
+            index >>= 1;
+        }
+        return used == path.length ? h : null;
+    }
+
+    /** Exact bytes the root JWS signs; decoders rebuild the JWS from these. */
+    public static byte[] rootPayload(byte[] root, long size) {
+        return ("{\"merkleRoot\":\"" + Crypto.b64Url(root) + "\",\"size\":" + size + "}").getBytes(StandardCharsets.UTF_8);
+    }
+
+    /**
+     * Whether {@code payload} is in the batch {@code proof} points at. Only the hashes are
+     * checked; the caller still has to verify the root JWS's signature.
+     */
+    public static boolean includes(byte[] payload, MerkleProof proof) {
+        if (proof == null || proof.rootJws == null || proof.path == null) return false;
+        try {
+            JsonObject header = Crypto.jwsHeader(proof.rootJws);
+            JsonElement typ = header == null ? null : header.get("typ");
+            if (typ == null || !JWS_TYPE.equals(typ.getAsString())) return false;
+            String[] parts = proof.rootJws.split("\\.");
+            if (parts.length != 3) return false;
+            JsonObject claims = JsonParser.parseString(new String(Crypto.b64UrlDecode(parts[1]), StandardCharsets.UTF_8)).getAsJsonObject();
+            byte[] signedRoot = Crypto.b64UrlDecode(claims.get("merkleRoot").getAsString());
+            long size = claims.get("size").getAsLong();
+            byte[] root = root(leaf(payload), proof.index, size, Crypto.b64UrlDecode(proof.path));
+            return root != null && MessageDigest.isEqual(root, signedRoot);
+        } catch (RuntimeException e) {
+            // malformed base64, JSON or claims: not a proof
+            return false;
+        }
+    }
+
+    /**
+     * Root JWSs whose signature already checked out, valid while the issuer key generation holds.
+     * Keyed by the issuer the root was checked for too: a trusted key may be bound to one issuer
+     * only, so the same root presented under another issuer name has to be checked again.
+     */
+    static final class VerifiedRoots {
+        private record Root(String rootJws, String issuer) { }
+
+        private final Map<Root, Long> roots;
+
+        VerifiedRoots(int capacity) {
+            this.roots = new LinkedHashMap<>(64, 0.75f, true) {
+                @Override protected boolean removeEldestEntry(Map.Entry<Root, Long> eldest) {
+                    return size() > capacity;
+                }
+            };
+        }
+
+        synchronized boolean contains(String rootJws, String issuer, long keyGeneration) {
+            Long g = roots.get(new Root(rootJws, issuer));
+            return g != null && g == keyGeneration;
+        }
+
+        synchronized void add(String rootJws, String issuer, long keyGeneration) {
+            roots.put(new Root(rootJws, issuer), keyGeneration);
+        }
+    }
+}
@@ -0,0 +1,226 @@
+package com.oogle.digitalid.service;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.VarHandle;
+import java.nio.ByteOrder;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.Objects;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Revocation status list: one bit per issued ID in a memory-mapped file, so a million IDs take
+ * 128 KB and both {@link #revoke} and {@link #isRevoked} are a single word operation.
+ * <pre>
+ *   0  int  magic "DIDS"     16 long allocated (indices handed out)
+ *   4  int  version           24 long revoked count
+ *   8  long capacity (bits)   64 bitset, little-endian 64-bit words; bit i = byte i/8, bit i%8
+ * </pre>
+ * The issuer opens the list read-write and stamps each new ID with {@link #allocate()}. Indices
+ * are reserved on disk in blocks, so a crash skips some indices but never reuses one. Verifiers
+ * open the published file read-only; writes to the same file show up through the shared mapping
+ * without re-reading it, and the file is re-stat'ed at most every {@link #CHECK_INTERVAL_MS} to
+ * pick up growth or a replaced copy. {@link #open} locks {@code <file>.lock}, so a second
+ * read-write open, in this process or another, fails instead of handing out the same indices.
+ */
+public final class RevocationList implements Closeable {
+    static final long CHECK_INTERVAL_MS = 2000;
+
+    private static final int MAGIC = 0x44494453; // "DIDS"
+    private static final int VERSION = 1;
+    private static final int HEADER = 64;
+    private static final int CAPACITY_OFF = 8, ALLOCATED_OFF = 16, REVOKED_OFF = 24;
+    private static final long INITIAL_CAPACITY = 1L << 20;
+    private static final long MAX_CAPACITY = (Integer.MAX_VALUE - HEADER) / 64 * 512L;
+    private static final int RESERVE_BLOCK = 4096;
+    private static final VarHandle WORDS = MethodHandles.byteBufferViewVarHandle(long[].class, ByteOrder.LITTLE_ENDIAN);
+
+    private final Path path;
+    private final boolean writable;
+    private FileChannel channel;
+    private WriterLock lock; // read-write only
+    private Object fileKey;
+    private volatile MappedByteBuffer map;
+    private volatile long capacity; // bits
+    private volatile long nextCheckNanos;
+    private long nextIndex;     // guarded by this
+    private long reservedUpTo;  // guarded by this
+
+    private RevocationList(Path path, boolean writable) {
+        this.path = path;
+        this.writable = writable;
+    }
+
+    /** Opens the issuer's list, creating an empty one if {@code path} doesn't exist. */
+    public static RevocationList open(Path path) throws IOException {
+        RevocationList l = new RevocationList(path, true);
+        if (path.getParent() != null) Files.createDirectories(path.getParent());
+        l.lock = WriterLock.acquire(path.resolveSibling(path.getFileName() + ".lock"), "Revocation list " + path);
+        try {
+            l.channel = FileChannel.open(path, StandardOpenOption.CREATE, StandardOpenOption.READ, StandardOpenOption.WRITE);
+            if (l.channel.size() == 0) {
+                l.map(INITIAL_CAPACITY);
+                l.map.putInt(0, MAGIC).putInt(4, VERSION).putLong(CAPACITY_OFF, INITIAL_CAPACITY);
+                l.map.force();
+            } else {
+                l.map(readHeader(l.channel));
+            }
+        } catch (IOException | RuntimeException e) {
+            if (l.channel != null) l.channel.close();
+            l.lock.close();
+            throw e;
+        }
+        l.nextIndex = l.reservedUpTo = l.map.getLong(ALLOCATED_OFF);
+        return l;
+    }
+
+    /** Opens a published list for lookups only. */
+    public static RevocationList openReadOnly(Path path) throws IOException {
+        RevocationList l = new RevocationList(path, false);
+        l.reopen();
+        return l;
+    }
+
+    /** Next unused index, for a new ID's {@code statusIndex}. */
+    public synchronized long allocate() throws IOException {
+        requireWritable();
+        if (nextIndex == reservedUpTo) {
+            long upTo = reservedUpTo + RESERVE_BLOCK;
+            if (upTo > capacity) grow(upTo);
+            map.putLong(ALLOCATED_OFF, upTo);
+            map.force();
+            reservedUpTo = upTo;
+        }
+        return nextIndex++;
+    }
+
+    /**
+     * Hands {@code index} back if it is still the last one {@link #allocate} returned, for an ID
+     * that was never signed; otherwise it stays an unused gap. Returns whether it was taken back.
+     */
+    public synchronized boolean release(long index) {
+        requireWritable();
+        if (index != nextIndex - 1) return false;
+        nextIndex--;
+        return true;
+    }
+
+    /** Marks {@code index} revoked; returns false if it already was. */
+    public boolean revoke(long index) throws IOException {
+        requireWritable();
+        // capacity is published after map, so reading it first guarantees a buffer that covers it
+        long cap = capacity;
+        MappedByteBuffer m = map;
+        if (index < 0 || index >= cap || index >= m.getLong(ALLOCATED_OFF)) {
+            throw new IllegalArgumentException("Status index " + index + " was never allocated");
+        }
+        long bit = 1L << (index & 63);
+        long prev = (long) WORDS.getAndBitwiseOr(m, wordOffset(index), bit);
+        if ((prev & bit) != 0) return false;
+        synchronized (this) {
+            map.putLong(REVOKED_OFF, map.getLong(REVOKED_OFF) + 1);
+            // revocations are rare and must survive a crash
+            map.force();
+        }
+        return true;
+    }
+
+    public boolean isRevoked(long index) throws IOException {
+        if (index < 0) return false;
+        if (!writable && System.nanoTime() >= nextCheckNanos) refresh();
+        long cap = capacity;
+        MappedByteBuffer m = map;
+        if (index >= cap) return false;
+        long word = (long) WORDS.getAcquire(m, wordOffset(index));
+        return (word & (1L << (index & 63))) != 0;
+    }
+
+    public long allocated() {
+        return map.getLong(ALLOCATED_OFF);
+    }
+
+    /** Number of revoked IDs; like {@link #isRevoked}, the read-only side picks up a replaced file. */
+    public long revokedCount() throws IOException {
+        if (!writable && System.nanoTime() >= nextCheckNanos) refresh();
+        return map.getLong(REVOKED_OFF);
+    }
+
+    public Path path() { return path; }
+
+    @Override public synchronized void close() throws IOException {
+        if (writable) map.force();
+        channel.close();
+        if (lock != null) lock.close();
+    }
+
+    private static int wordOffset(long index) {
+        return HEADER + (int) (index >>> 6) * 8;
+    }
+
+    private void requireWritable() {
+        if (!writable) throw new IllegalStateException("Revocation list " + path + " is open read-only");
+    }
+
+    private void grow(long minBits) throws IOException {
+        long bits = capacity;
+        while (bits < minBits) bits *= 2;
+        if (bits > MAX_CAPACITY) throw new IOException("Revocation list " + path + " is full");
+        map(bits);
+        map.putLong(CAPACITY_OFF, bits);
+    }
+
+    // Mappings of one file share pages, so callers still holding the old buffer see the same bits
+    private void map(long bits) throws IOException {
+        FileChannel.MapMode mode = writable ? FileChannel.MapMode.READ_WRITE : FileChannel.MapMode.READ_ONLY;
+        MappedByteBuffer m = channel.map(mode, 0, HEADER + bits / 8);
+        m.order(ByteOrder.LITTLE_ENDIAN);
+        map = m;
+        capacity = bits;
+    }
+
+    private static long readHeader(FileChannel ch) throws IOException {
+        MappedByteBuffer h = ch.map(FileChannel.MapMode.READ_ONLY, 0, HEADER);
+        h.order(ByteOrder.LITTLE_ENDIAN);
+        if (h.getInt(0) != MAGIC) throw new IOException("Not a revocation list");
+        if (h.getInt(4) != VERSION) throw new IOException("Unsupported revocation list version " + h.getInt(4));
+        long bits = h.getLong(CAPACITY_OFF);
+        if (bits <= 0 || bits > MAX_CAPACITY || bits % 64 != 0 || ch.size() < HEADER + bits / 8) {
+            throw new IOException("Corrupt revocation list header");
+        }
+        return bits;
+    }
+
+    // Only the read-only side refreshes: growth remaps in place, a replaced file is reopened
+    private synchronized void refresh() throws IOException {
+        if (System.nanoTime() < nextCheckNanos) return;
+        BasicFileAttributes attrs = Files.readAttributes(path, BasicFileAttributes.class);
+        if (!Objects.equals(attrs.fileKey(), fileKey)) {
+            reopen();
+        } else if (attrs.size() > HEADER + capacity / 8) {
+            map(readHeader(channel));
+        }
+        nextCheckNanos = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(CHECK_INTERVAL_MS);
+    }
+
+    private synchronized void reopen() throws IOException {
+        FileChannel ch = FileChannel.open(path, StandardOpenOption.READ);
+        try {
+            long bits = readHeader(ch);
+            FileChannel old = channel;
+            channel = ch;
+            fileKey = Files.readAttributes(path, BasicFileAttributes.class).fileKey();
+            map(bits);
+            if (old != null) old.close();
+        } catch (IOException | RuntimeException e) {
+            ch.close();
+            throw e;
+        }
+        nextCheckNanos = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(CHECK_INTERVAL_MS);
+    }
+}
@@ -0,0 +1,196 @@
+package com.oogle.digitalid.service;
+
+import com.google.gson.JsonObject;
+import com.oogle.digitalid.crypto.Crypto;
+import com.oogle.digitalid.model.DigitalId;
+import com.oogle.digitalid.model.VerifyResult;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.time.Instant;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Bounded LRU of verification verdicts, so a credential presented again costs one SHA-256
+ * and a map lookup instead of public-key operations.
+ * <p>
+ * The key is a digest of everything the verdict depends on (canonical payload, signature,
+ * kid, algorithm, claimed hash, JWS and any Merkle proof), never the credential's own {@code payloadHash},
+ * which is attacker-controlled. Entries are tagged with the issuer key generation and
+ * ignored once keys change, are dropped when the credential expires, and can be dropped
+ * by id on revocation. Revocation status itself is never cached: a hit re-reads the
+ * credential's bit in the {@link RevocationList}. The map is split into independently
+ * locked LRU segments.
+ */
+public class VerificationCache {
+    private static final int SEGMENTS = 16;
+
+    private static final class Entry {
+        final long keyGeneration;
+        final String id;
+        final Long expiresAt;
+        final Long statusIndex;
+        final boolean hashOk, signatureOk, jwsOk;
+
+        Entry(long keyGeneration, String id, Long expiresAt, Long statusIndex, VerifyResult r) {
+            this.keyGeneration = keyGeneration;
+            this.id = id;
+            this.expiresAt = expiresAt;
+            this.statusIndex = statusIndex;
+            this.hashOk = r.hashOk;
+            this.signatureOk = r.signatureOk;
+            this.jwsOk = r.jwsOk;
+        }
+    }
+
+    private static final class Segment extends LinkedHashMap<ByteBuffer, Entry> {
+        private final int capacity;
+        long evictions;
+
+        Segment(int capacity) {
+            super(Math.min(capacity, 1024), 0.75f, true);
+            this.capacity = capacity;
+        }
+
+        @Override protected boolean removeEldestEntry(Map.Entry<ByteBuffer, Entry> eldest) {
+            if (size() <= capacity) return false;
+            evictions++;
+            return true;
+        }
+    }
+
+    private final Segment[] segments = new Segment[SEGMENTS];
+    private final LongAdder hits = new LongAdder();
+    private final LongAdder misses = new LongAdder();
+    private final LongAdder expirations = new LongAdder();
+    private final LongAdder invalidations = new LongAdder();
+
+    public VerificationCache(int maxEntries) {
+        int per = Math.max(1, maxEntries / SEGMENTS);
+        for (int i = 0; i < SEGMENTS; i++) segments[i] = new Segment(per);
+    }
+
+    /** Cache key for a parsed ID whose canonical bytes are {@code canonical}. */
+    public static ByteBuffer keyOf(byte[] canonical, DigitalId d) {
+        StringBuilder sb = new StringBuilder(128);
+        sb.append(d.signature).append('\n').append(d.kid).append('\n').append(d.signatureAlg).append('\n')
+                .append(d.payloadHash).append('\n').append(d.jwsCompact).append('\n');
+        if (d.merkleProof != null) {
+            sb.append(d.merkleProof.index).append('\n').append(d.merkleProof.path).append('\n')
+                    .append(d.merkleProof.rootJws).append('\n');
+        }
+        byte[] tail = sb.toString().getBytes(StandardCharsets.UTF_8);
+        byte[] all = new byte[canonical.length + tail.length];
+        System.arraycopy(canonical, 0, all, 0, canonical.length);
+        System.arraycopy(tail, 0, all, canonical.length, tail.length);
+        return ByteBuffer.wrap(Crypto.sha256(all));
+    }
+
+    /** Cache key for a scanned token (JWS, compact credential or verify URL). */
+    public static ByteBuffer keyOf(String token) {
+        return ByteBuffer.wrap(Crypto.sha256(token.getBytes(StandardCharsets.UTF_8)));
+    }
+
+    /** Cached verdict with expiry and revocation re-evaluated now, or null on a miss. */
+    public VerifyResult get(ByteBuffer key, long keyGeneration, RevocationList revocations) throws IOException {
+        Segment s = segment(key);
+        Entry e;
+        synchronized (s) {
+            e = s.get(key);
+            if (e == null) {
+                misses.increment();
+                return null;
+            }
+            if (e.keyGeneration != keyGeneration) {
+                s.remove(key);
+                invalidations.increment();
+                misses.increment();
+                return null;
+            }
+            if (e.expiresAt != null && Instant.now().getEpochSecond() > e.expiresAt) {
+                // Once expired the verdict can't change back, but let a fresh verify report it
+                s.remove(key);
+                expirations.increment();
+                misses.increment();
+                return null;
+            }
+        }
+        hits.increment();
+        VerifyResult r = new VerifyResult();
+        r.hashOk = e.hashOk;
+        r.signatureOk = e.signatureOk;
+        r.jwsOk = e.jwsOk;
+        r.revoked = e.statusIndex != null && revocations != null && revocations.isRevoked(e.statusIndex);
+        return r;
+    }
+
+    /** {@code statusIndex} must come from the signed payload, or be null. */
+    public void put(ByteBuffer key, long keyGeneration, String id, Long expiresAt, Long statusIndex, VerifyResult r) {
+        if (r.expired) return;
+        Segment s = segment(key);
+        synchronized (s) {
+            s.put(key, new Entry(keyGeneration, id, expiresAt, statusIndex, r));
+        }
+    }
+
+    /** Drops every cached verdict for credential {@code id}, e.g. after it is revoked. */
+    public void invalidateId(String id) {
+        for (Segment s : segments) {
+            synchronized (s) {
+                int before = s.size();
+                s.values().removeIf(e -> id.equals(e.id));
+                invalidations.add(before - s.size());
+            }
+        }
+    }
+
+    public void clear() {
+        for (Segment s : segments) {
+            synchronized (s) {
+                invalidations.add(s.size());
+                s.clear();
+            }
+        }
+    }
+
+    public long hits() { return hits.sum(); }
+    public long misses() { return misses.sum(); }
+
+    public int size() {
+        int n = 0;
+        for (Segment s : segments) {
+            synchronized (s) {
+                n += s.size();
+            }
+        }
+        return n;
+    }
+
+    public JsonObject stats() {
+        long h = hits.sum();
+        long m = misses.sum();
+        long evictions = 0;
+        for (Segment s : segments) {
+            synchronized (s) {
+                evictions += s.evictions;
+            }
+        }
+        JsonObject o = new JsonObject();
+        o.addProperty("size", size());
+        o.addProperty("hits", h);
+        o.addProperty("misses", m);
+        o.addProperty("hitRatio", h + m == 0 ? 0.0 : Math.round(h * 1000.0 / (h + m)) / 1000.0);
+        o.addProperty("evictions", evictions);
+        o.addProperty("expirations", expirations.sum());
+        o.addProperty("invalidations", invalidations.sum());
+        return o;
+    }
+
+    private Segment segment(ByteBuffer key) {
+        // The key is a SHA-256 digest, so any byte is uniformly distributed
+        return segments[key.get(0) & (SEGMENTS - 1)];
+    }
+}
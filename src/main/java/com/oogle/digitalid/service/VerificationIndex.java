@@ -0,0 +1,330 @@
+package com.oogle.digitalid.service;
+
+import com.google.gson.JsonArray;
+import com.google.gson.JsonObject;
+import com.oogle.digitalid.metrics.Metrics;
+import com.oogle.digitalid.model.VerifyResult;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.time.Instant;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.zip.CRC32C;
+import java.util.zip.CheckedInputStream;
+import java.util.zip.CheckedOutputStream;
+
+/**
+ * Last known verdict for every {@code .did.json} under a directory, keyed by relative path, so
+ * an audit is a scan of this map rather than a re-verification of every file. Kept current by
+ * an {@link IndexWatcher}. Persisted as a snapshot that {@link #save} rewrites whole:
+ * <pre>
+ *   int magic "DIDW", int version, long count, long savedAt, utf keys,
+ *   count x { utf path, long mtime, long size, byte[32] sha256(file), utf id, long expiresAt,
+ *             long statusIndex, byte flags, long verifiedAt, utf reason },
+ *   int crc32c(everything before)
+ * </pre>
+ * {@code keys} is the {@link IdVerifier#keyFingerprint} the verdicts were reached with, and each
+ * entry keeps its {@code statusIndex}, so a key change or a revocation can be applied without
+ * the files having changed.
+ * The snapshot goes to a temp file that is moved over the old one, so readers (an audit run
+ * next to a live watcher) always see a complete index.
+ */
+public final class VerificationIndex {
+    public static final int HASH_OK = 1, SIGNATURE_OK = 2, JWS_OK = 4, EXPIRED = 8, REVOKED = 16, ERROR = 32;
+    private static final int CHECKS = HASH_OK | SIGNATURE_OK | JWS_OK;
+    private static final int MAGIC = 0x44494457; // "DIDW"
+    private static final int VERSION = 2;
+    private static final long NO_EXPIRY = Long.MIN_VALUE;
+    private static final long NO_STATUS = -1;
+    private static final Metrics.Stage INDEX_SAVE = Metrics.stage("index.save");
+
+    /** One file's verdict; replaced, never mutated. */
+    public static final class Entry {
+        public final String path;
+        public final long mtime;
+        public final long size;
+        public final byte[] sha256;
+        public final String id;         // null when the file couldn't be read as an ID
+        public final Long expiresAt;
+        public final Long statusIndex;  // null when revocation doesn't apply
+        public final int flags;
+        public final long verifiedAt;   // epoch seconds
+        public final String reason;     // why an ERROR entry failed, else null
+
+        Entry(String path, long mtime, long size, byte[] sha256, String id, Long expiresAt, Long statusIndex,
+              int flags, long verifiedAt, String reason) {
+            this.path = path;
+            this.mtime = mtime;
+            this.size = size;
+            this.sha256 = sha256;
+            this.id = id;
+            this.expiresAt = expiresAt;
+            this.statusIndex = statusIndex;
+            this.flags = flags;
+            this.verifiedAt = verifiedAt;
+            this.reason = reason;
+        }
+
+        static Entry of(String path, long mtime, long size, byte[] sha256, String id, Long expiresAt, Long statusIndex, VerifyResult r) {
+            int flags = (r.hashOk ? HASH_OK : 0) | (r.signatureOk ? SIGNATURE_OK : 0) | (r.jwsOk ? JWS_OK : 0)
+                    | (r.expired ? EXPIRED : 0) | (r.revoked ? REVOKED : 0);
+            return new Entry(path, mtime, size, sha256, id, expiresAt, statusIndex, flags, Instant.now().getEpochSecond(), null);
+        }
+
+        static Entry error(String path, long mtime, long size, byte[] sha256, String reason) {
+            int eol = reason.indexOf('\n');
+            if (eol >= 0) reason = reason.substring(0, eol);
+            if (reason.length() > 200) reason = reason.substring(0, 200);
+            return new Entry(path, mtime, size, sha256, null, null, null, ERROR, Instant.now().getEpochSecond(), reason);
+        }
+
+        /** Same content, new file times: the verdict carries over. */
+        Entry touched(long mtime, long size) {
+            return new Entry(path, mtime, size, sha256, id, expiresAt, statusIndex, flags, verifiedAt, reason);
+        }
+
+        Entry expired() {
+            return new Entry(path, mtime, size, sha256, id, expiresAt, statusIndex, flags | EXPIRED, verifiedAt, reason);
+        }
+
+        /** Revoked or not as of now by {@code list}, which may be null; the entry itself if nothing changes. */
+        Entry withRevocation(RevocationList list) throws IOException {
+            boolean revoked = list != null && statusIndex != null && list.isRevoked(statusIndex);
+            if (revoked == has(REVOKED)) return this;
+            int f = revoked ? flags | REVOKED : flags & ~REVOKED;
+            return new Entry(path, mtime, size, sha256, id, expiresAt, statusIndex, f, Instant.now().getEpochSecond(), reason);
+        }
+
+        public boolean has(int flag) {
+            return (flags & flag) != 0;
+        }
+
+        /** Expired as of {@code nowSeconds}, whether or not a watcher has flagged it yet. */
+        public boolean isExpired(long nowSeconds) {
+            return has(EXPIRED) || (expiresAt != null && nowSeconds > expiresAt);
+        }
+
+        /** Every signature and payload check passed and the ID isn't revoked; expiry aside, it is valid. */
+        public boolean passedChecks() {
+            return (flags & CHECKS) == CHECKS && !has(REVOKED) && !has(ERROR);
+        }
+
+        public boolean isValid(long nowSeconds) {
+            return passedChecks() && !isExpired(nowSeconds);
+        }
+
+        public String status(long nowSeconds) {
+            if (has(ERROR)) return "ERROR " + reason;
+            if (isValid(nowSeconds)) return "VALID";
+            StringBuilder sb = new StringBuilder("INVALID");
+            if (!has(HASH_OK)) sb.append(" bad-hash");
+            if (!has(SIGNATURE_OK)) sb.append(" bad-signature");
+            if (!has(JWS_OK)) sb.append(" bad-jws");
+            if (isExpired(nowSeconds)) sb.append(" expired");
+            if (has(REVOKED)) sb.append(" revoked");
+            return sb.toString();
+        }
+    }
+
+    private final Path file;
+    private final Map<String, Entry> entries = new ConcurrentHashMap<>();
+    private volatile String keys = "";
+    private volatile boolean dirty;
+
+    private VerificationIndex(Path file) {
+        this.file = file;
+    }
+
+    /** Loads the index at {@code file}; a missing or damaged one starts empty, so everything is verified afresh. */
+    public static VerificationIndex open(Path file) throws IOException {
+        VerificationIndex idx = new VerificationIndex(file);
+        if (!Files.exists(file)) return idx;
+        try {
+            idx.load();
+        } catch (IOException | RuntimeException e) {
+            idx.entries.clear();
+            idx.dirty = true;
+            System.err.println("Verification index " + file + " unreadable, rebuilding: " + e.getMessage());
+        }
+        return idx;
+    }
+
+    public Path file() { return file; }
+
+    /** The {@link IdVerifier#keyFingerprint} the verdicts were reached with; empty for a new index. */
+    public String keyFingerprint() {
+        return keys;
+    }
+
+    void setKeyFingerprint(String keys) {
+        if (keys.equals(this.keys)) return;
+        this.keys = keys;
+        dirty = true;
+    }
+
+    public Entry get(String path) {
+        return entries.get(path);
+    }
+
+    public Collection<Entry> entries() {
+        return entries.values();
+    }
+
+    public int size() {
+        return entries.size();
+    }
+
+    void put(Entry e) {
+        entries.put(e.path, e);
+        dirty = true;
+    }
+
+    /** Replaces {@code old} with {@code e} unless the entry changed in between. */
+    boolean replace(Entry old, Entry e) {
+        boolean replaced = entries.replace(old.path, old, e);
+        if (replaced) dirty = true;
+        return replaced;
+    }
+
+    Entry remove(String path) {
+        Entry e = entries.remove(path);
+        if (e != null) dirty = true;
+        return e;
+    }
+
+    public boolean isDirty() {
+        return dirty;
+    }
+
+    /** Writes a snapshot if anything changed since the last one. */
+    public synchronized void save() throws IOException {
+        if (!dirty) return;
+        long t = Metrics.start();
+        dirty = false;
+        List<Entry> snapshot = new ArrayList<>(entries.values());
+        Path tmp = file.resolveSibling(file.getFileName() + ".tmp");
+        Path parent = file.toAbsolutePath().getParent();
+        if (parent != null) Files.createDirectories(parent);
+        try (OutputStream os = Files.newOutputStream(tmp)) {
+            CheckedOutputStream checked = new CheckedOutputStream(new BufferedOutputStream(os, 1 << 16), new CRC32C());
+            DataOutputStream out = new DataOutputStream(checked);
+            out.writeInt(MAGIC);
+            out.writeInt(VERSION);
+            out.writeLong(snapshot.size());
+            out.writeLong(Instant.now().getEpochSecond());
+            out.writeUTF(keys);
+            for (Entry e : snapshot) {
+                out.writeUTF(e.path);
+                out.writeLong(e.mtime);
+                out.writeLong(e.size);
+                out.write(e.sha256);
+                out.writeUTF(e.id == null ? "" : e.id);
+                out.writeLong(e.expiresAt == null ? NO_EXPIRY : e.expiresAt);
+                out.writeLong(e.statusIndex == null ? NO_STATUS : e.statusIndex);
+                out.writeByte(e.flags);
+                out.writeLong(e.verifiedAt);
+                out.writeUTF(e.reason == null ? "" : e.reason);
+            }
+            out.flush();
+            out.writeInt((int) checked.getChecksum().getValue());
+            out.flush();
+        } catch (IOException | RuntimeException e) {
+            dirty = true;
+            throw e;
+        }
+        Files.move(tmp, file, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        INDEX_SAVE.stop(t);
+    }
+
+    private void load() throws IOException {
+        try (InputStream is = Files.newInputStream(file)) {
+            CheckedInputStream checked = new CheckedInputStream(new BufferedInputStream(is, 1 << 16), new CRC32C());
+            DataInputStream in = new DataInputStream(checked);
+            if (in.readInt() != MAGIC) throw new IOException("not a verification index");
+            if (in.readInt() != VERSION) throw new IOException("unsupported version");
+            long count = in.readLong();
+            in.readLong(); // savedAt
+            keys = in.readUTF();
+            for (long i = 0; i < count; i++) {
+                String path = in.readUTF();
+                long mtime = in.readLong();
+                long size = in.readLong();
+                byte[] sha256 = in.readNBytes(32);
+                String id = in.readUTF();
+                long expiresAt = in.readLong();
+                long statusIndex = in.readLong();
+                int flags = in.readUnsignedByte();
+                long verifiedAt = in.readLong();
+                String reason = in.readUTF();
+                entries.put(path, new Entry(path, mtime, size, sha256, id.isEmpty() ? null : id,
+                        expiresAt == NO_EXPIRY ? null : expiresAt, statusIndex == NO_STATUS ? null : statusIndex,
+                        flags, verifiedAt, reason.isEmpty() ? null : reason));
+            }
+            int expected = (int) checked.getChecksum().getValue();
+            if (in.readInt() != expected) throw new IOException("checksum mismatch");
+        }
+    }
+
+    /**
+     * Audit of the index as of {@code nowSeconds}: counts per outcome, and every file that isn't
+     * valid. With {@code revocations}, revocation is taken from the list as it stands now rather
+     * than as it stood when the watcher last swept it; null keeps the stored verdicts.
+     */
+    public JsonObject audit(long nowSeconds, RevocationList revocations) throws IOException {
+        long files = 0, valid = 0, badHash = 0, badSignature = 0, badJws = 0, expired = 0, revoked = 0, errors = 0;
+        List<Entry> failing = new ArrayList<>();
+        for (Entry e : entries.values()) {
+            if (revocations != null) e = e.withRevocation(revocations);
+            files++;
+            if (e.isValid(nowSeconds)) {
+                valid++;
+                continue;
+            }
+            failing.add(e);
+            if (e.has(ERROR)) {
+                errors++;
+                continue;
+            }
+            if (!e.has(HASH_OK)) badHash++;
+            if (!e.has(SIGNATURE_OK)) badSignature++;
+            if (!e.has(JWS_OK)) badJws++;
+            if (e.isExpired(nowSeconds)) expired++;
+            if (e.has(REVOKED)) revoked++;
+        }
+        failing.sort(Comparator.comparing(e -> e.path));
+        JsonObject o = new JsonObject();
+        o.addProperty("files", files);
+        o.addProperty("valid", valid);
+        o.addProperty("invalid", files - valid);
+        o.addProperty("badHash", badHash);
+        o.addProperty("badSignature", badSignature);
+        o.addProperty("badJws", badJws);
+        o.addProperty("expired", expired);
+        o.addProperty("revoked", revoked);
+        o.addProperty("errors", errors);
+        JsonArray list = new JsonArray();
+        for (Entry e : failing) {
+            JsonObject f = new JsonObject();
+            f.addProperty("path", e.path);
+            if (e.id != null) f.addProperty("id", e.id);
+            f.addProperty("status", e.status(nowSeconds));
+            f.addProperty("verifiedAt", e.verifiedAt);
+            list.add(f);
+        }
+        o.add("failures", list);
+        return o;
+    }
+}
@@ -0,0 +1,287 @@
+package com.oogle.digitalid.service;
+
+import com.google.gson.JsonArray;
+import com.google.gson.JsonElement;
+import com.google.gson.JsonObject;
+import com.google.gson.JsonParseException;
+import com.google.gson.JsonParser;
+import com.oogle.digitalid.crypto.TrustStore;
+import com.oogle.digitalid.metrics.Metrics;
+import com.oogle.digitalid.model.DigitalId;
+import com.oogle.digitalid.model.VerifyResult;
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpServer;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.net.URLDecoder;
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * HTTP front end for {@link IdVerifier}, so the {@code verifyBaseUrl} printed in QR
+ * codes has something to answer it. Each request runs on its own virtual thread.
+ * <pre>
+ *   GET  /verify?jws=...  or ?c=...     token from a QR code (JWS, compact credential or verify URL)
+ *   POST /verify                         a .did.json document, or {"token": "..."}
+ *   POST /verify/batch                   a JSON array of either, at most {@link #MAX_BATCH}
+ *   GET  /health, GET /stats, GET /metrics   (per-stage latencies, see {@link Metrics})
+ * </pre>
+ * {@code /stats} and {@code /metrics} answer loopback clients only, unless {@link #setPublicStats}
+ * opens them up: the verify endpoints are meant for anyone, the server's load and timings aren't.
+ * Responses are JSON with an explicit length, so HTTP/1.1 connections stay open between requests.
+ */
+public final class VerificationServer implements Closeable {
+    public static final int MAX_BODY = 1 << 20;
+    public static final int MAX_BATCH = 1000;
+
+    private final IdVerifier verifier;
+    private final HttpServer server;
+    private final ExecutorService executor;
+    private final LongAdder requests = new LongAdder();
+    private final LongAdder verified = new LongAdder();
+    private final LongAdder valid = new LongAdder();
+    private final LongAdder errors = new LongAdder();
+    private volatile boolean publicStats;
+
+    static {
+        // The JDK server writes headers and body separately; with Nagle on, each kept-alive
+        // response stalls ~40 ms on the client's delayed ACK. Read once, before the first server.
+        if (System.getProperty("sun.net.httpserver.nodelay") == null) {
+            System.setProperty("sun.net.httpserver.nodelay", "true");
+        }
+    }
+
+    public VerificationServer(IdVerifier verifier, InetSocketAddress address) throws IOException {
+        this.verifier = verifier;
+        this.server = HttpServer.create(address, 1024);
+        this.executor = Executors.newVirtualThreadPerTaskExecutor();
+        server.setExecutor(executor);
+        server.createContext("/verify", ex -> handle(ex, this::verify));
+        server.createContext("/verify/batch", ex -> handle(ex, this::verifyBatch));
+        server.createContext("/health", ex -> handle(ex, this::health));
+        server.createContext("/stats", ex -> handle(ex, this::stats));
+        server.createContext("/metrics", ex -> handle(ex, this::metrics));
+    }
+
+    /** Serves {@code /stats} and {@code /metrics} to every client, not just this host. */
+    public void setPublicStats(boolean publicStats) {
+        this.publicStats = publicStats;
+    }
+
+    public VerificationServer start() {
+        server.start();
+        return this;
+    }
+
+    public int port() {
+        return server.getAddress().getPort();
+    }
+
+    @Override public void close() {
+        server.stop(0);
+        executor.shutdown();
+    }
+
+    private interface Handler {
+        JsonElement handle(HttpExchange ex) throws IOException;
+    }
+
+    /** A request we can't serve, reported to the client with {@code status}. */
+    private static final class HttpError extends RuntimeException {
+        final int status;
+
+        HttpError(int status, String message) {
+            super(message);
+            this.status = status;
+        }
+    }
+
+    private void handle(HttpExchange ex, Handler h) throws IOException {
+        requests.increment();
+        int status = 200;
+        JsonElement body;
+        try {
+            body = h.handle(ex);
+        } catch (HttpError e) {
+            status = e.status;
+            body = error(e.getMessage());
+        } catch (RuntimeException | IOException e) {
+            errors.increment();
+            System.err.println("verify " + ex.getRequestURI().getPath() + " failed: " + e);
+            status = 500;
+            body = error("internal error");
+        }
+        byte[] out = body.toString().getBytes(StandardCharsets.UTF_8);
+        // closing the exchange drains any unread request body, keeping the connection usable
+        try (ex) {
+            ex.getResponseHeaders().set("Content-Type", "application/json; charset=utf-8");
+            ex.getResponseHeaders().set("Cache-Control", "no-store");
+            ex.sendResponseHeaders(status, out.length);
+            try (OutputStream os = ex.getResponseBody()) {
+                os.write(out);
+            }
+        }
+    }
+
+    private JsonElement verify(HttpExchange ex) throws IOException {
+        requirePath(ex, "/verify");
+        switch (ex.getRequestMethod()) {
+            case "GET" -> {
+                String token = queryToken(ex.getRequestURI().getRawQuery());
+                if (token == null) throw new HttpError(400, "expected ?jws= or ?c=");
+                return result(verifier.verifyToken(token), null);
+            }
+            case "POST" -> {
+                return verifyItem(readJson(ex));
+            }
+            default -> throw new HttpError(405, "use GET or POST");
+        }
+    }
+
+    private JsonElement verifyBatch(HttpExchange ex) throws IOException {
+        requirePath(ex, "/verify/batch");
+        if (!ex.getRequestMethod().equals("POST")) throw new HttpError(405, "use POST");
+        JsonElement in = readJson(ex);
+        if (!in.isJsonArray()) throw new HttpError(400, "expected a JSON array");
+        JsonArray items = in.getAsJsonArray();
+        if (items.size() > MAX_BATCH) throw new HttpError(413, "at most " + MAX_BATCH + " items per batch");
+
+        JsonArray results = new JsonArray(items.size());
+        int ok = 0;
+        for (JsonElement item : items) {
+            JsonObject r;
+            try {
+                r = verifyItem(item);
+            } catch (HttpError e) {
+                r = error(e.getMessage());
+                r.addProperty("valid", false);
+            } catch (RuntimeException e) {
+                // one malformed token mustn't cost the other items their verdicts
+                r = error("malformed item: " + e.getMessage());
+                r.addProperty("valid", false);
+            }
+            if (r.get("valid").getAsBoolean()) ok++;
+            results.add(r);
+        }
+        JsonObject o = new JsonObject();
+        o.addProperty("count", items.size());
+        o.addProperty("valid", ok);
+        o.addProperty("invalid", items.size() - ok);
+        o.add("results", results);
+        return o;
+    }
+
+    private JsonObject verifyItem(JsonElement item) throws IOException {
+        if (item.isJsonPrimitive() && item.getAsJsonPrimitive().isString()) {
+            return result(verifier.verifyToken(item.getAsString()), null);
+        }
+        if (!item.isJsonObject()) throw new HttpError(400, "expected an ID document or a token");
+        JsonObject o = item.getAsJsonObject();
+        for (String field : new String[]{"token", "jws", "c"}) {
+            if (o.has(field) && !o.has("id")) return result(verifier.verifyToken(string(o, field)), null);
+        }
+        DigitalId d;
+        try {
+            d = IdVerifier.readId(o.toString());
+        } catch (JsonParseException e) {
+            throw new HttpError(400, "malformed ID document");
+        }
+        if (d == null || d.id == null) throw new HttpError(400, "ID document has no id");
+        try {
+            return result(verifier.verify(d), d.id);
+        } catch (IllegalArgumentException e) {
+            // e.g. a lone surrogate or an out-of-range number that JCS can't represent
+            throw new HttpError(400, e.getMessage());
+        }
+    }
+
+    private JsonElement health(HttpExchange ex) {
+        requirePath(ex, "/health");
+        JsonObject o = new JsonObject();
+        o.addProperty("status", "ok");
+        return o;
+    }
+
+    private JsonElement stats(HttpExchange ex) {
+        requirePath(ex, "/stats");
+        requireLocal(ex);
+        JsonObject o = new JsonObject();
+        o.addProperty("requests", requests.sum());
+        o.addProperty("verified", verified.sum());
+        o.addProperty("valid", valid.sum());
+        o.addProperty("errors", errors.sum());
+        VerificationCache cache = verifier.verificationCache();
+        if (cache != null) o.add("cache", cache.stats());
+        TrustStore trust = verifier.trustStore();
+        if (trust != null) o.addProperty("trustedKeys", trust.size());
+        return o;
+    }
+
+    private JsonElement metrics(HttpExchange ex) {
+        requirePath(ex, "/metrics");
+        requireLocal(ex);
+        return Metrics.toJson();
+    }
+
+    private JsonObject result(VerifyResult r, String id) {
+        verified.increment();
+        if (r.isValid()) valid.increment();
+        JsonObject o = new JsonObject();
+        if (id != null) o.addProperty("id", id);
+        o.addProperty("valid", r.isValid());
+        o.addProperty("status", r.toString());
+        o.addProperty("hashOk", r.hashOk);
+        o.addProperty("signatureOk", r.signatureOk);
+        o.addProperty("jwsOk", r.jwsOk);
+        o.addProperty("expired", r.expired);
+        o.addProperty("revoked", r.revoked);
+        return o;
+    }
+
+    private static JsonObject error(String message) {
+        JsonObject o = new JsonObject();
+        o.addProperty("error", message);
+        return o;
+    }
+
+    private static void requirePath(HttpExchange ex, String path) {
+        if (!ex.getRequestURI().getPath().equals(path)) throw new HttpError(404, "not found");
+    }
+
+    private void requireLocal(HttpExchange ex) {
+        if (!publicStats && !ex.getRemoteAddress().getAddress().isLoopbackAddress()) {
+            throw new HttpError(403, "only served to localhost; start the server with --public-stats");
+        }
+    }
+
+    private static JsonElement readJson(HttpExchange ex) throws IOException {
+        byte[] body = ex.getRequestBody().readNBytes(MAX_BODY + 1);
+        if (body.length > MAX_BODY) throw new HttpError(413, "request body over " + MAX_BODY + " bytes");
+        try {
+            return JsonParser.parseString(new String(body, StandardCharsets.UTF_8));
+        } catch (JsonParseException e) {
+            throw new HttpError(400, "malformed JSON");
+        }
+    }
+
+    private static String string(JsonObject o, String field) {
+        JsonElement e = o.get(field);
+        if (e == null || !e.isJsonPrimitive()) throw new HttpError(400, field + " must be a string");
+        return e.getAsString();
+    }
+
+    static String queryToken(String rawQuery) {
+        if (rawQuery == null) return null;
+        for (String param : rawQuery.split("&")) {
+            if (param.startsWith("jws=") || param.startsWith("c=")) {
+                return URLDecoder.decode(param.substring(param.indexOf('=') + 1), StandardCharsets.UTF_8);
+            }
+        }
+        return null;
+    }
+}
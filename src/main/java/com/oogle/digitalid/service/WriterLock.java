@@ -0,0 +1,46 @@
+package com.oogle.digitalid.service;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileLock;
+import java.nio.channels.OverlappingFileLockException;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+
+/**
+ * Exclusive lock for a store only one writer may have open, held on a separate lock file: on
+ * Linux, closing any channel to a locked file drops the lock, and readers open the store itself.
+ * Also refuses a second writer in the same JVM.
+ */
+final class WriterLock implements Closeable {
+    private final FileChannel channel;
+
+    private WriterLock(FileChannel channel) {
+        this.channel = channel;
+    }
+
+    /** Takes the lock on {@code lockFile} or fails at once, naming {@code what} is already open. */
+    static WriterLock acquire(Path lockFile, String what) throws IOException {
+        FileChannel ch = FileChannel.open(lockFile, StandardOpenOption.CREATE, StandardOpenOption.WRITE);
+        FileLock lock;
+        try {
+            lock = ch.tryLock();
+        } catch (OverlappingFileLockException e) {
+            lock = null;
+        } catch (IOException | RuntimeException e) {
+            ch.close();
+            throw e;
+        }
+        if (lock == null) {
+            ch.close();
+            throw new IOException(what + " is already open for writing (" + lockFile + " is locked)");
+        }
+        return new WriterLock(ch);
+    }
+
+    // closing the channel releases the lock; safe to call twice
+    @Override public void close() throws IOException {
+        channel.close();
+    }
+}
@@ -0,0 +1,75 @@
+package com.oogle.digitalid.ui;
+
+import com.oogle.digitalid.crypto.TrustStore;
+import com.oogle.digitalid.service.IdIssuer;
+import javafx.concurrent.Task;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Worker threads for the UI. Key loading, signing, rendering, file I/O and verification run
+ * here so the JavaFX application thread only ever updates controls. Bulk jobs get their own
+ * single-thread queue: they run one after another, each one parallel inside.
+ */
+final class Background {
+    private static final ExecutorService TASKS = Executors.newFixedThreadPool(2, daemon("ui-task"));
+    private static final ExecutorService JOBS = Executors.newSingleThreadExecutor(daemon("ui-bulk"));
+
+    // Shared by every view, so keys and caches survive switching screens.
+    private static final IdIssuer ISSUER = newIssuer();
+
+    private Background() { }
+
+    private static IdIssuer newIssuer() {
+        // Optional: put a URL here to make QR clickable.
+        IdIssuer issuer = new IdIssuer(
+                Path.of("keys"),
+                "Oogle ID Authority",
+                null // "https://yourdomain.tld/verify"
+        );
+        // other issuing offices' public keys, for verifying their IDs too
+        Path trust = Path.of("trust");
+        if (Files.isDirectory(trust)) {
+            try {
+                issuer.setTrustStore(TrustStore.open(trust));
+            } catch (IOException e) {
+                System.err.println("Ignoring trust/: " + e.getMessage());
+            }
+        }
+        return issuer;
+    }
+
+    static IdIssuer issuer() {
+        return ISSUER;
+    }
+
+    /** Runs a short task (one issue or verify) right away. */
+    static void run(Task<?> task) {
+        TASKS.execute(task);
+    }
+
+    /** Queues a bulk job behind any already waiting. */
+    static void queue(Task<?> job) {
+        JOBS.execute(job);
+    }
+
+    static void shutdown() {
+        TASKS.shutdownNow();
+        JOBS.shutdownNow();
+    }
+
+    private static ThreadFactory daemon(String name) {
+        AtomicInteger n = new AtomicInteger();
+        return r -> {
+            Thread t = new Thread(r, name + "-" + n.incrementAndGet());
+            t.setDaemon(true);
+            return t;
+        };
+    }
+}
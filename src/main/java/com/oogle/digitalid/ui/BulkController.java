@@ -0,0 +1,180 @@
+package com.oogle.digitalid.ui;
+
+import com.oogle.digitalid.service.BatchVerifier;
+import com.oogle.digitalid.service.BulkIssuer;
+import com.oogle.digitalid.service.IdIssuer;
+import javafx.collections.FXCollections;
+import javafx.collections.ObservableList;
+import javafx.event.ActionEvent;
+import javafx.fxml.FXML;
+import javafx.fxml.FXMLLoader;
+import javafx.scene.Node;
+import javafx.scene.Parent;
+import javafx.scene.Scene;
+import javafx.scene.control.*;
+import javafx.scene.control.cell.ProgressBarTableCell;
+import javafx.stage.DirectoryChooser;
+import javafx.stage.FileChooser;
+import javafx.stage.Stage;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.List;
+import java.util.Locale;
+import java.util.stream.Stream;
+
+public class BulkController {
+
+    @FXML private TextField tfInput;
+    @FXML private TextField tfOutput;
+    @FXML private Spinner<Integer> spThreads;
+    @FXML private CheckBox cbJsonOnly;
+    @FXML private TableView<BulkJob> tvJobs;
+    @FXML private TableColumn<BulkJob, String> colJob;
+    @FXML private TableColumn<BulkJob, String> colState;
+    @FXML private TableColumn<BulkJob, Double> colProgress;
+    @FXML private TableColumn<BulkJob, String> colDetail;
+    @FXML private Label lbStatus;
+
+    // Jobs outlive the view, so coming back to it shows the queue as it was left
+    private static final ObservableList<BulkJob> JOBS = FXCollections.observableArrayList();
+
+    private final IdIssuer issuer = Background.issuer();
+
+    @FXML
+    public void initialize() {
+        int cpus = Runtime.getRuntime().availableProcessors();
+        spThreads.setValueFactory(new SpinnerValueFactory.IntegerSpinnerValueFactory(1, 64, cpus));
+        colJob.setCellValueFactory(c -> c.getValue().titleProperty());
+        colState.setCellValueFactory(c -> c.getValue().stateProperty().asString());
+        colProgress.setCellValueFactory(c -> c.getValue().progressProperty().asObject());
+        colProgress.setCellFactory(ProgressBarTableCell.forTableColumn());
+        colDetail.setCellValueFactory(c -> c.getValue().messageProperty());
+        tvJobs.setItems(JOBS);
+        updateStatus("Issue from a CSV/JSONL file, or verify files, folders and globs.");
+    }
+
+    @FXML
+    void onBrowseInput(ActionEvent e) {
+        FileChooser fc = new FileChooser();
+        fc.getExtensionFilters().addAll(
+                new FileChooser.ExtensionFilter("Records or IDs (*.csv, *.jsonl, *.did.json)", "*.csv", "*.jsonl", "*.ndjson", "*.did.json"),
+                new FileChooser.ExtensionFilter("All files", "*.*"));
+        File f = fc.showOpenDialog(getWindow(e));
+        if (f != null) tfInput.setText(f.getAbsolutePath());
+    }
+
+    @FXML
+    void onBrowseInputFolder(ActionEvent e) {
+        DirectoryChooser dc = new DirectoryChooser();
+        dc.setTitle("Choose Folder of IDs");
+        File f = dc.showDialog(getWindow(e));
+        if (f != null) tfInput.setText(f.getAbsolutePath());
+    }
+
+    @FXML
+    void onBrowseOutput(ActionEvent e) {
+        DirectoryChooser dc = new DirectoryChooser();
+        dc.setTitle("Choose Output Folder");
+        File f = dc.showDialog(getWindow(e));
+        if (f != null) tfOutput.setText(f.getAbsolutePath());
+    }
+
+    @FXML
+    void onQueueIssue(ActionEvent e) {
+        String input = tfInput.getText().trim();
+        if (input.isEmpty()) {
+            alert("Choose a .csv or .jsonl file to issue from.");
+            return;
+        }
+        Path in = Path.of(input);
+        Path out = Path.of(tfOutput.getText().trim().isEmpty() ? "output" : tfOutput.getText().trim());
+        BulkIssuer.Options options = new BulkIssuer.Options();
+        options.threads = spThreads.getValue();
+        options.writeImages = !cbJsonOnly.isSelected();
+
+        enqueue(new BulkJob("Issue " + in.getFileName()) {
+            @Override protected String work() throws Exception {
+                setTotal(countRecords(in));
+                options.onRecord = this::record;
+                options.cancelled = this::isCancelled;
+                return new BulkIssuer(issuer, out, options).run(in).toString();
+            }
+        });
+    }
+
+    @FXML
+    void onQueueVerify(ActionEvent e) {
+        String input = tfInput.getText().trim();
+        if (input.isEmpty()) {
+            alert("Choose ID files, a folder or a glob to verify.");
+            return;
+        }
+        int threads = spThreads.getValue();
+
+        enqueue(new BulkJob("Verify " + input) {
+            @Override protected String work() throws Exception {
+                BatchVerifier verifier = new BatchVerifier(issuer.verifier(), threads);
+                verifier.setOnRecord(this::record);
+                verifier.setCancelled(this::isCancelled);
+                BatchVerifier.Summary s = verifier.run(List.of(input));
+                return String.format(Locale.ROOT, "records=%d valid=%d invalid=%d elapsed=%dms throughput=%.1f/s",
+                        s.records, s.valid, s.invalid(), s.elapsedMillis, s.perSecond());
+            }
+        });
+    }
+
+    @FXML
+    void onCancel(ActionEvent e) {
+        BulkJob job = tvJobs.getSelectionModel().getSelectedItem();
+        if (job == null) {
+            updateStatus("Select a job to cancel.");
+            return;
+        }
+        // no interrupt: the job stops at its next record and leaves finished files intact
+        if (job.cancel(false)) updateStatus("Cancelled: " + job.getTitle());
+    }
+
+    @FXML
+    void onClearFinished(ActionEvent e) {
+        JOBS.removeIf(BulkJob::isDone);
+    }
+
+    @FXML
+    void onBack(ActionEvent e) {
+        try {
+            Parent issue = FXMLLoader.load(getClass().getResource("/ui/issue_view.fxml"));
+            Stage stage = (Stage) ((Node) e.getSource()).getScene().getWindow();
+            stage.setScene(new Scene(issue, 960, 640));
+            stage.getScene().getStylesheets().add(getClass().getResource("/ui/styles.css").toExternalForm());
+        } catch (Exception ex) {
+            alert("Failed to go back: " + ex.getMessage());
+        }
+    }
+
+    private void enqueue(BulkJob job) {
+        JOBS.add(job);
+        Background.queue(job);
+        updateStatus("Queued: " + job.getTitle());
+    }
+
+    // Rough total for the progress bar: non-blank lines, less the CSV header
+    private static long countRecords(Path in) throws IOException {
+        try (Stream<String> lines = Files.lines(in)) {
+            long n = lines.filter(l -> !l.isBlank()).count();
+            return in.getFileName().toString().toLowerCase(Locale.ROOT).endsWith(".csv") ? Math.max(0, n - 1) : n;
+        }
+    }
+
+    private void updateStatus(String s) { lbStatus.setText(s); }
+    private Stage getWindow(ActionEvent e) { return (Stage) ((Node) e.getSource()).getScene().getWindow(); }
+
+    private void alert(String msg) {
+        Alert a = new Alert(Alert.AlertType.INFORMATION);
+        a.setHeaderText(null);
+        a.setContentText(msg);
+        a.showAndWait();
+    }
+}
@@ -0,0 +1,59 @@
+package com.oogle.digitalid.ui;
+
+import javafx.concurrent.Task;
+
+import java.util.Locale;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * A queued bulk run for the jobs table. Subclasses do the work in {@link #work} and call
+ * {@link #record} from any worker thread as records finish; progress and the live rate are
+ * pushed to the UI at most every 200 ms, so a fast run can't flood the application thread.
+ */
+abstract class BulkJob extends Task<String> {
+    private static final long UPDATE_NANOS = 200_000_000L;
+
+    private final AtomicLong lastUpdate = new AtomicLong();
+    private volatile long total = -1;
+    private volatile long started;
+
+    BulkJob(String title) {
+        updateTitle(title);
+        updateMessage("Queued");
+    }
+
+    /** Does the work and returns the summary shown once the job succeeds. */
+    protected abstract String work() throws Exception;
+
+    @Override protected final String call() throws Exception {
+        started = System.nanoTime();
+        updateMessage("Starting...");
+        String summary = work();
+        updateProgress(1, 1);
+        updateMessage(summary);
+        return summary;
+    }
+
+    @Override protected void failed() {
+        updateMessage("Failed: " + getException().getMessage());
+    }
+
+    /** Number of records the job will see, if known up front; otherwise progress stays indeterminate. */
+    void setTotal(long total) {
+        this.total = total;
+    }
+
+    void record(long done) {
+        long now = System.nanoTime();
+        long last = lastUpdate.get();
+        if (now - last < UPDATE_NANOS || !lastUpdate.compareAndSet(last, now)) return;
+        long t = total;
+        if (t > 0) {
+            updateProgress(done, t);
+        } else {
+            updateProgress(-1, 1);
+        }
+        double seconds = (now - started) / 1e9;
+        updateMessage(String.format(Locale.ROOT, "%,d done, %.0f/s", done, seconds <= 0 ? 0 : done / seconds));
+    }
+}
@@ -1,7 +1,9 @@
 package com.oogle.digitalid.ui;
 
 import com.oogle.digitalid.service.IdIssuer;
+import com.google.gson.Gson;
 import com.google.gson.GsonBuilder;
+import javafx.concurrent.Task;
 import javafx.event.ActionEvent;
 import javafx.fxml.FXML;
 import javafx.fxml.FXMLLoader;
@@ -32,15 +34,19 @@ public class IssueController {
     @FXML private Label    lbStatus;
     @FXML private ImageView qrPreview;
     @FXML private TextArea taJson;
+    @FXML private Button btnIssue;
+    @FXML private Button btnCancel;
+    @FXML private ProgressIndicator piBusy;
+
+    private static final Gson PRETTY = new GsonBuilder().setPrettyPrinting().disableHtmlEscaping().create();
 
     private Path outDir = Path.of("output");
+    private Task<?> running;
+
+    // Optional: set a verify URL in Background to make the QR clickable
+    private final IdIssuer issuer = Background.issuer();
 
-    // Optional: put a URL here to make QR clickable
-    private final IdIssuer issuer = new IdIssuer(
-            Path.of("keys"),
-            "Oogle ID Authority",
-            null // "https://yourdomain.tld/verify"
-    );
+    private record Issued(Path saved, Image card, String json) { }
 
     @FXML
     public void initialize() {
@@ -62,38 +68,71 @@ public class IssueController {
 
     @FXML
     void onIssue(ActionEvent e) {
-        try {
-            if (tfFullName.getText().trim().isEmpty()) {
-                alert("Full name is required.");
-                return;
+        if (tfFullName.getText().trim().isEmpty()) {
+            alert("Full name is required.");
+            return;
+        }
+        int years = (int) slYears.getValue();
+        long exp = ZonedDateTime.now(ZoneOffset.UTC)
+                .plusYears(years)
+                .toInstant()
+                .getEpochSecond();
+        // read the form here; the task must not touch controls
+        String name = tfFullName.getText().trim();
+        String dob = emptyToNull(tfDob.getText());
+        String email = emptyToNull(tfEmail.getText());
+        String phone = emptyToNull(tfPhone.getText());
+        Path dir = outDir;
+
+        Task<Issued> task = new Task<>() {
+            @Override protected Issued call() throws Exception {
+                updateMessage("Signing...");
+                updateProgress(0, 3);
+                var d = issuer.issue(name, dob, email, phone, exp);
+                if (isCancelled()) return null;
+
+                updateMessage("Rendering card...");
+                updateProgress(1, 3);
+                var saved = issuer.saveIdFiles(d, dir);
+
+                // Decode the preview here too; the view only swaps it in
+                updateMessage("Loading preview...");
+                updateProgress(2, 3);
+                Image card = new Image(dir.resolve(d.id + ".card.png").toUri().toString());
+                return new Issued(saved, card, PRETTY.toJson(d));
             }
-            int years = (int) slYears.getValue();
-            long exp = ZonedDateTime.now(ZoneOffset.UTC)
-                    .plusYears(years)
-                    .toInstant()
-                    .getEpochSecond();
-
-            var d = issuer.issue(
-                    tfFullName.getText().trim(),
-                    emptyToNull(tfDob.getText()),
-                    emptyToNull(tfEmail.getText()),
-                    emptyToNull(tfPhone.getText()),
-                    exp
-            );
-            var saved = issuer.saveIdFiles(d, outDir);
-            updateStatus("Issued: " + saved.getFileName());
-
-            // Show the generated ID card preview
-            var card = outDir.resolve(d.id + ".card.png").toFile();
-            Image img = new Image(card.toURI().toString());
-            qrPreview.setImage(img);
-
-            // Show JSON
-            taJson.setText(new GsonBuilder().setPrettyPrinting().disableHtmlEscaping().create().toJson(d));
-
-        } catch (Exception ex) {
+        };
+        task.setOnSucceeded(ev -> {
+            Issued r = task.getValue();
+            updateStatus("Issued: " + r.saved().getFileName());
+            qrPreview.setImage(r.card());
+            taJson.setText(r.json());
+        });
+        task.setOnCancelled(ev -> updateStatus("Cancelled."));
+        task.setOnFailed(ev -> {
+            Throwable ex = task.getException();
             ex.printStackTrace();
+            updateStatus("Failed.");
             alert("Failed to issue ID: " + ex.getMessage());
+        });
+        start(task);
+    }
+
+    @FXML
+    void onCancel(ActionEvent e) {
+        // no interrupt: a half-written card is worse than one we discard
+        if (running != null) running.cancel(false);
+    }
+
+    @FXML
+    void onGoBulk(ActionEvent e) {
+        try {
+            Parent bulk = FXMLLoader.load(getClass().getResource("/ui/bulk_view.fxml"));
+            Stage stage = (Stage) ((Node) e.getSource()).getScene().getWindow();
+            stage.setScene(new Scene(bulk, 960, 640));
+            stage.getScene().getStylesheets().add(getClass().getResource("/ui/styles.css").toExternalForm());
+        } catch (Exception ex) {
+            alert("Failed to open Bulk view: " + ex.getMessage());
         }
     }
 
@@ -119,6 +158,16 @@ public class IssueController {
         }
     }
 
+    private void start(Task<?> task) {
+        running = task;
+        task.messageProperty().addListener((obs, ov, nv) -> updateStatus(nv));
+        piBusy.progressProperty().bind(task.progressProperty());
+        piBusy.visibleProperty().bind(task.runningProperty());
+        btnIssue.disableProperty().bind(task.runningProperty());
+        btnCancel.disableProperty().bind(task.runningProperty().not());
+        Background.run(task);
+    }
+
     private void updateStatus(String s) { lbStatus.setText(s); }
     private static String emptyToNull(String s) { if (s == null) return null; String t = s.trim(); return t.isEmpty() ? null : t; }
     private Stage getWindow(ActionEvent e) { return (Stage) ((Node)e.getSource()).getScene().getWindow(); }
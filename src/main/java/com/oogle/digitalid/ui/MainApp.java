@@ -1,5 +1,6 @@
 package com.oogle.digitalid.ui;
 
+import com.oogle.digitalid.metrics.Metrics;
 import javafx.application.Application;
 import javafx.fxml.FXMLLoader;
 import javafx.scene.Parent;
@@ -10,6 +11,7 @@ import javafx.stage.Stage;
 public class MainApp extends Application {
     @Override
     public void start(Stage stage) throws Exception {
+        Metrics.registerMBeans();
         Parent root = FXMLLoader.load(getClass().getResource("/ui/issue_view.fxml"));
         Scene scene = new Scene(root, 960, 640);
         scene.getStylesheets().add(getClass().getResource("/ui/styles.css").toExternalForm());
@@ -19,6 +21,11 @@ public class MainApp extends Application {
         stage.show();
     }
 
+    @Override
+    public void stop() {
+        Background.shutdown();
+    }
+
     public static void main(String[] args) {
         launch(args);
     }
@@ -1,6 +1,7 @@
 package com.oogle.digitalid.ui;
 
 import com.oogle.digitalid.service.IdIssuer;
+import javafx.concurrent.Task;
 import javafx.event.ActionEvent;
 import javafx.fxml.FXML;
 import javafx.fxml.FXMLLoader;
@@ -8,7 +9,9 @@ import javafx.scene.Node;
 import javafx.scene.Parent;
 import javafx.scene.Scene;
 import javafx.scene.control.Alert;
+import javafx.scene.control.Button;
 import javafx.scene.control.Label;
+import javafx.scene.control.ProgressIndicator;
 import javafx.scene.control.TextField;
 import javafx.stage.FileChooser;
 import javafx.stage.Stage;
@@ -20,8 +23,10 @@ public class VerifyController {
 
     @FXML private TextField tfPath;
     @FXML private Label lbResult;
+    @FXML private Button btnVerify;
+    @FXML private ProgressIndicator piBusy;
 
-    private final IdIssuer issuer = new IdIssuer(Path.of("keys"), "Oogle ID Authority");
+    private final IdIssuer issuer = Background.issuer();
 
     @FXML
     public void initialize() {
@@ -38,17 +43,27 @@ public class VerifyController {
 
     @FXML
     void onVerify(ActionEvent e) {
-        try {
-            if (tfPath.getText().trim().isEmpty()) {
-                alert("Select a .did.json file.");
-                return;
+        if (tfPath.getText().trim().isEmpty()) {
+            alert("Select a .did.json file.");
+            return;
+        }
+        Path path = Path.of(tfPath.getText().trim());
+        Task<Boolean> task = new Task<>() {
+            @Override protected Boolean call() throws Exception {
+                return issuer.verify(path);
             }
-            boolean ok = issuer.verify(Path.of(tfPath.getText().trim()));
-            lbResult.setText(ok ? "VALID ✅" : "INVALID ❌");
-        } catch (Exception ex) {
+        };
+        task.setOnSucceeded(ev -> lbResult.setText(task.getValue() ? "VALID ✅" : "INVALID ❌"));
+        task.setOnFailed(ev -> {
+            Throwable ex = task.getException();
             ex.printStackTrace();
+            lbResult.setText("");
             alert("Failed to verify: " + ex.getMessage());
-        }
+        });
+        lbResult.setText("Verifying...");
+        piBusy.visibleProperty().bind(task.runningProperty());
+        btnVerify.disableProperty().bind(task.runningProperty());
+        Background.run(task);
     }
 
     @FXML
@@ -0,0 +1,59 @@
+package com.oogle.digitalid.util;
+
+import java.io.ByteArrayOutputStream;
+
+/**
+ * RFC 9285 Base45. The alphabet is exactly the QR alphanumeric character set, so a Base45
+ * string is encoded at 5.5 bits per character instead of 8 in byte mode.
+ */
+public final class Base45 {
+    private static final char[] ALPHABET = "0123456789ABCDEFGHIJKLMNOPQRSTUVWXYZ $%*+-./:".toCharArray();
+    private static final int[] INDEX = new int[128];
+
+    static {
+        java.util.Arrays.fill(INDEX, -1);
+        for (int i = 0; i < ALPHABET.length; i++) INDEX[ALPHABET[i]] = i;
+    }
+
+    private Base45() { }
+
+    public static String encode(byte[] data) {
+        StringBuilder sb = new StringBuilder(data.length / 2 * 3 + 2);
+        int i = 0;
+        for (; i + 1 < data.length; i += 2) {
+            int n = ((data[i] & 0xFF) << 8) | (data[i + 1] & 0xFF);
+            sb.append(ALPHABET[n % 45]).append(ALPHABET[(n / 45) % 45]).append(ALPHABET[n / 2025]);
+        }
+        if (i < data.length) {
+            int n = data[i] & 0xFF;
+            sb.append(ALPHABET[n % 45]).append(ALPHABET[n / 45]);
+        }
+        return sb.toString();
+    }
+
+    public static byte[] decode(String s) {
+        int len = s.length();
+        if (len % 3 == 1) throw new IllegalArgumentException("Invalid Base45 length");
+        ByteArrayOutputStream out = new ByteArrayOutputStream(len / 3 * 2 + 1);
+        int i = 0;
+        for (; i + 2 < len; i += 3) {
+            int n = digit(s, i) + digit(s, i + 1) * 45 + digit(s, i + 2) * 2025;
+            if (n > 0xFFFF) throw new IllegalArgumentException("Invalid Base45 triplet at " + i);
+            out.write(n >> 8);
+            out.write(n & 0xFF);
+        }
+        if (i < len) {
+            int n = digit(s, i) + digit(s, i + 1) * 45;
+            if (n > 0xFF) throw new IllegalArgumentException("Invalid Base45 pair at " + i);
+            out.write(n);
+        }
+        return out.toByteArray();
+    }
+
+    private static int digit(String s, int i) {
+        char c = s.charAt(i);
+        int d = c < 128 ? INDEX[c] : -1;
+        if (d < 0) throw new IllegalArgumentException("Invalid Base45 character '" + c + "' at " + i);
+        return d;
+    }
+}
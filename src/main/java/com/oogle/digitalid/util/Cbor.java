@@ -0,0 +1,134 @@
+package com.oogle.digitalid.util;
+
+import java.io.ByteArrayOutputStream;
+import java.nio.charset.StandardCharsets;
+
+/**
+ * The small subset of RFC 8949 CBOR needed for compact credentials: integers, byte and text
+ * strings, arrays and maps, all with definite lengths.
+ */
+public final class Cbor {
+    public static final int UINT = 0, NINT = 1, BYTES = 2, TEXT = 3, ARRAY = 4, MAP = 5;
+
+    private Cbor() { }
+
+    public static final class Writer {
+        private final ByteArrayOutputStream out = new ByteArrayOutputStream(256);
+
+        public Writer arrayHeader(int size) { head(ARRAY, size); return this; }
+        public Writer mapHeader(int size) { head(MAP, size); return this; }
+
+        public Writer integer(long v) {
+            if (v >= 0) head(UINT, v);
+            else head(NINT, -1 - v);
+            return this;
+        }
+
+        public Writer bytes(byte[] b) {
+            head(BYTES, b.length);
+            out.writeBytes(b);
+            return this;
+        }
+
+        public Writer text(String s) {
+            byte[] b = s.getBytes(StandardCharsets.UTF_8);
+            head(TEXT, b.length);
+            out.writeBytes(b);
+            return this;
+        }
+
+        public byte[] toByteArray() { return out.toByteArray(); }
+
+        private void head(int major, long v) {
+            int mt = major << 5;
+            if (v < 24) {
+                out.write(mt | (int) v);
+            } else if (v < 0x100) {
+                out.write(mt | 24);
+                out.write((int) v);
+            } else if (v < 0x10000) {
+                out.write(mt | 25);
+                out.write((int) (v >> 8));
+                out.write((int) v & 0xFF);
+            } else if (v < 0x100000000L) {
+                out.write(mt | 26);
+                for (int s = 24; s >= 0; s -= 8) out.write((int) (v >> s) & 0xFF);
+            } else {
+                out.write(mt | 27);
+                for (int s = 56; s >= 0; s -= 8) out.write((int) (v >> s) & 0xFF);
+            }
+        }
+    }
+
+    public static final class Reader {
+        private final byte[] in;
+        private int pos;
+
+        public Reader(byte[] in) { this.in = in; }
+
+        public boolean hasMore() { return pos < in.length; }
+
+        /** Major type of the next item without consuming it. */
+        public int peekType() {
+            need(1);
+            return (in[pos] & 0xFF) >> 5;
+        }
+
+        // every element takes at least a byte, so a count past the end of the input is a lie
+        public int arrayHeader() { return length(ARRAY); }
+        public int mapHeader() { return length(MAP); }
+
+        public long integer() {
+            int major = peekType();
+            if (major == UINT) return argument(UINT);
+            if (major == NINT) return -1 - argument(NINT);
+            throw new IllegalArgumentException("Expected CBOR integer, got major type " + major);
+        }
+
+        public byte[] bytes() {
+            int n = length(BYTES);
+            byte[] b = java.util.Arrays.copyOfRange(in, pos, pos + n);
+            pos += n;
+            return b;
+        }
+
+        public String text() {
+            int n = length(TEXT);
+            String s = new String(in, pos, n, StandardCharsets.UTF_8);
+            pos += n;
+            return s;
+        }
+
+        // Checked against what is left while still a long, so no length can wrap on the way to an int
+        private int length(int major) {
+            long n = argument(major);
+            if (n > in.length - pos) throw new IllegalArgumentException("Truncated CBOR");
+            return (int) n;
+        }
+
+        private long argument(int major) {
+            need(1);
+            int b = in[pos] & 0xFF;
+            if (b >> 5 != major) throw new IllegalArgumentException("Expected CBOR major type " + major + ", got " + (b >> 5));
+            pos++;
+            int info = b & 0x1F;
+            if (info < 24) return info;
+            int size = switch (info) {
+                case 24 -> 1;
+                case 25 -> 2;
+                case 26 -> 4;
+                case 27 -> 8;
+                default -> throw new IllegalArgumentException("Unsupported CBOR additional info " + info);
+            };
+            need(size);
+            long v = 0;
+            for (int i = 0; i < size; i++) v = (v << 8) | (in[pos++] & 0xFF);
+            if (v < 0) throw new IllegalArgumentException("CBOR integer out of range");
+            return v;
+        }
+
+        private void need(int n) {
+            if (n < 0 || n > in.length - pos) throw new IllegalArgumentException("Truncated CBOR");
+        }
+    }
+}
@@ -1,13 +1,22 @@
 package com.oogle.digitalid.util;
 
 import java.io.IOException;
+import java.nio.file.AtomicMoveNotSupportedException;
 import java.nio.file.Files;
 import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
 
 public final class Pem {
+    /** Writes to a temp file and moves it into place, so readers never see half a key. */
     public static void write(Path path, String pem) throws IOException {
         Files.createDirectories(path.getParent());
-        Files.writeString(path, pem);
+        Path tmp = path.resolveSibling(path.getFileName() + ".tmp");
+        Files.writeString(tmp, pem);
+        try {
+            Files.move(tmp, path, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        } catch (AtomicMoveNotSupportedException e) {
+            Files.move(tmp, path, StandardCopyOption.REPLACE_EXISTING);
+        }
     }
     public static String read(Path path) throws IOException {
         return Files.readString(path);
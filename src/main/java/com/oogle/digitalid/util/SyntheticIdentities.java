@@ -0,0 +1,109 @@
+package com.oogle.digitalid.util;
+
+import com.oogle.digitalid.model.IssueRequest;
+
+import java.time.LocalDate;
+import java.util.Locale;
+import java.util.SplittableRandom;
+
+/**
+ * Reproducible fake identities for load tests. Most are ordinary; about one in five is an edge
+ * case that has broken ID systems before: combining marks (NFD) next to precomposed letters,
+ * right-to-left and CJK scripts, emoji outside the BMP and ZWJ sequences, apostrophes, quotes,
+ * backslashes and control characters that JSON and JCS must escape, names of one character and
+ * of 200, leap-day and century-boundary dates of birth, missing optional fields. Not thread-safe;
+ * give each thread its own, seeded from a common seed with {@link #split}.
+ */
+public final class SyntheticIdentities {
+    private static final String[] GIVEN = {
+            "Olivia", "Liam", "Amelia", "Noah", "Isla", "Oliver", "Ava", "Elijah", "Mia", "James",
+            "Sofia", "Lucas", "Chloé", "Mateo", "Zoë", "Hiroshi", "Priya", "Mohammed", "Aisha", "Wei",
+    };
+    private static final String[] FAMILY = {
+            "Smith", "Jones", "Williams", "Taylor", "Brown", "Davies", "Evans", "Wilson", "Thomas", "Roberts",
+            "García", "Müller", "Nguyễn", "Kowalski", "Okafor", "Singh", "Rossi", "Dubois", "Novák", "Papadopoulos",
+    };
+    private static final String[] EDGE_NAMES = {
+            "Zoe\u0308 Bjo\u0308rk",                 // combining diaeresis (NFD)
+            "Zo\u00eb Bj\u00f6rk",                   // same name, precomposed (NFC)
+            "محمد عبد الله",                         // Arabic, right-to-left
+            "李小龍",                                 // CJK, no spaces
+            "Đặng Thị Ngọc Thịnh",                  // stacked Vietnamese diacritics
+            "श्रीनिवास रामानुजन",                       // Devanagari with virama
+            "Ægir Þórsson",
+            "Seán O'Brien-Ní Mhaoláin",              // apostrophe and hyphen
+            "Jo \"Jojo\" Back\\slash",               // JSON escapes
+            "Tab\tand\nNewline",                     // control characters
+            "Null\u0000Byte",
+            "Line\u2028Separator",                   // valid JSON, not valid JavaScript
+            "</script><b>Bold</b> & Co",            // markup
+            "\uD83D\uDC69\u200D\uD83D\uDC67 Family",  // ZWJ emoji sequence
+            "\uD835\uDD09\uD835\uDD2F Fraktur",        // astral plane letters
+            "\u202EevilOverride",                    // bidi override
+            "X",                                    // one character
+            "  Padded  Name  ",
+    };
+    private static final String[] EDGE_DOBS = {
+            "2000-02-29", "1904-02-29", "1900-01-01", "1970-01-01", "1969-12-31", "2038-01-19", "1899-12-31", "",
+    };
+
+    private final SplittableRandom rnd;
+
+    public SyntheticIdentities(long seed) {
+        this.rnd = new SplittableRandom(seed);
+    }
+
+    private SyntheticIdentities(SplittableRandom rnd) {
+        this.rnd = rnd;
+    }
+
+    /** An independent generator for another thread. */
+    public SyntheticIdentities split() {
+        return new SyntheticIdentities(rnd.split());
+    }
+
+    public IssueRequest next() {
+        boolean edge = rnd.nextInt(5) == 0;
+        String name = edge ? edgeName() : pick(GIVEN) + " " + pick(FAMILY);
+        String dob = edge && rnd.nextBoolean() ? pick(EDGE_DOBS)
+                : LocalDate.of(1930, 1, 1).plusDays(rnd.nextInt(365 * 80)).toString();
+        String email = edge && rnd.nextInt(3) == 0 ? null : email(name);
+        String phone = rnd.nextInt(4) == 0 ? null : phone(edge);
+        return IssueRequest.of(name, dob, email, phone, null);
+    }
+
+    private String edgeName() {
+        int k = rnd.nextInt(EDGE_NAMES.length + 2);
+        if (k == EDGE_NAMES.length) return longName();
+        if (k == EDGE_NAMES.length + 1) return pick(GIVEN) + " " + pick(EDGE_NAMES).strip();
+        return EDGE_NAMES[k];
+    }
+
+    // a 200-character name made of whole family names
+    private String longName() {
+        StringBuilder sb = new StringBuilder(pick(GIVEN));
+        while (sb.length() < 200) sb.append(rnd.nextBoolean() ? ' ' : '-').append(pick(FAMILY));
+        return sb.substring(0, 200);
+    }
+
+    private String email(String name) {
+        String local = name.strip().toLowerCase(Locale.ROOT).replaceAll("[^a-z]+", ".").replaceAll("^\\.|\\.$", "");
+        if (local.isEmpty()) local = "user";
+        // random, not a counter: generators on other threads must not repeat it
+        String tag = Long.toString(rnd.nextLong() >>> 16, 36);
+        return switch (rnd.nextInt(8)) {
+            case 0 -> local + "+soak" + tag + "@example.com";
+            case 1 -> "δοκιμή" + tag + "@παράδειγμα.δοκιμή"; // internationalised address
+            default -> local + "." + tag + "@example.com";
+        };
+    }
+
+    private String phone(boolean edge) {
+        if (edge && rnd.nextBoolean()) return "+44 (0)20 7946-" + String.format(Locale.ROOT, "%04d", rnd.nextInt(10000)) + " ext. 12";
+        return "+1" + (200 + rnd.nextInt(800)) + String.format(Locale.ROOT, "%07d", rnd.nextInt(10_000_000));
+    }
+
+    private String pick(String[] a) {
+        return a[rnd.nextInt(a.length)];
+    }
+}
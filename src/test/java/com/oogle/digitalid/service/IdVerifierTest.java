@@ -0,0 +1,68 @@
+package com.oogle.digitalid.service;
+
+import com.oogle.digitalid.crypto.Crypto;
+import com.oogle.digitalid.crypto.TrustStore;
+import com.oogle.digitalid.model.DigitalId;
+import com.oogle.digitalid.model.IssueRequest;
+import com.oogle.digitalid.model.VerifyResult;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.time.Instant;
+import java.util.List;
+
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+class IdVerifierTest {
+    @TempDir Path dir;
+
+    @Test
+    void cachedBatchRootIsNotAcceptedUnderAnotherIssuer() throws Exception {
+        IdIssuer issuer = new IdIssuer(dir.resolve("keys"), "Issuer A");
+        long expiresAt = Instant.now().getEpochSecond() + 86_400;
+        List<DigitalId> ids = issuer.issueBatch(List.of(
+                IssueRequest.of("Ada Lovelace", "1815-12-10", "ada@example.com", null, expiresAt),
+                IssueRequest.of("Alan Turing", "1912-06-23", "alan@example.com", null, expiresAt)));
+
+        // the key is trusted for Issuer A only
+        Path trusted = dir.resolve("trust").resolve("Issuer A");
+        Files.createDirectories(trusted);
+        Files.writeString(trusted.resolve("a.pem"), Crypto.toPemPublic(issuer.getIssuerPublicKey()));
+        IdVerifier verifier = new IdVerifier(dir.resolve("no-keys"), "Verifier");
+        verifier.setTrustStore(TrustStore.open(dir.resolve("trust")));
+
+        assertTrue(verifier.verify(ids.get(0)).isValid());
+
+        DigitalId forged = ids.get(1);
+        forged.issuer = "Issuer B";
+        VerifyResult r = verifier.verify(forged);
+        assertFalse(r.jwsOk, "root JWS reused from Issuer A's batch");
+        assertFalse(r.isValid());
+    }
+
+    @Test
+    void idWithoutKidIsCheckedAgainstEveryKeyOfItsIssuer() throws Exception {
+        IdIssuer first = new IdIssuer(dir.resolve("keys1"), "Issuer A");
+        IdIssuer second = new IdIssuer(dir.resolve("keys2"), "Issuer A");
+        second.setFormatVersion(1);
+        DigitalId d = second.issue("Ada Lovelace", "1815-12-10", "ada@example.com", null,
+                Instant.now().getEpochSecond() + 86_400);
+        // as written before key ids existed: no kid, no JWS
+        d.kid = null;
+        d.jwsCompact = null;
+
+        Path trusted = dir.resolve("trust").resolve("Issuer A");
+        Files.createDirectories(trusted);
+        Files.writeString(trusted.resolve("a.pem"), Crypto.toPemPublic(first.getIssuerPublicKey()));
+        Files.writeString(trusted.resolve("b.pem"), Crypto.toPemPublic(second.getIssuerPublicKey()));
+        IdVerifier verifier = new IdVerifier(dir.resolve("no-keys"), "Verifier");
+        verifier.setTrustStore(TrustStore.open(dir.resolve("trust")));
+
+        VerifyResult r = verifier.verify(d);
+        assertTrue(r.signatureOk, "signed by the issuer's second trusted key");
+        assertTrue(r.isValid());
+    }
+}
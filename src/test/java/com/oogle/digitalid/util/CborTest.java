@@ -0,0 +1,45 @@
+package com.oogle.digitalid.util;
+
+import org.junit.jupiter.api.Test;
+
+import java.util.Arrays;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+
+class CborTest {
+    @Test
+    void roundTrips() {
+        byte[] raw = new Cbor.Writer().arrayHeader(3).integer(-7).text("Zoë").bytes(new byte[300]).toByteArray();
+        Cbor.Reader r = new Cbor.Reader(raw);
+        assertEquals(3, r.arrayHeader());
+        assertEquals(-7, r.integer());
+        assertEquals("Zoë", r.text());
+        assertArrayEquals(new byte[300], r.bytes());
+    }
+
+    @Test
+    void rejectsTruncatedItems() {
+        byte[] raw = new Cbor.Writer().text("truncated").toByteArray();
+        byte[] cut = Arrays.copyOf(raw, raw.length - 1);
+        assertThrows(IllegalArgumentException.class, () -> new Cbor.Reader(cut).text());
+        // a header promising an 8-byte length, with only 3 of them there
+        assertThrows(IllegalArgumentException.class, () -> new Cbor.Reader(new byte[]{0x5B, 0, 0, 1}).bytes());
+        assertThrows(IllegalArgumentException.class, () -> new Cbor.Reader(new byte[0]).integer());
+    }
+
+    @Test
+    void rejectsLengthsPastTheEndOfTheInput() {
+        // 2^32 + 5: must not be read as 5
+        byte[] wrap = {0x7B, 0, 0, 0, 1, 0, 0, 0, 5, 'h', 'e', 'l', 'l', 'o'};
+        assertThrows(IllegalArgumentException.class, () -> new Cbor.Reader(wrap).text());
+        // Integer.MAX_VALUE: pos + n would overflow
+        byte[] huge = {0x7A, 0x7F, (byte) 0xFF, (byte) 0xFF, (byte) 0xFF, 1, 2, 3};
+        assertThrows(IllegalArgumentException.class, () -> new Cbor.Reader(huge).text());
+        byte[] array = {(byte) 0x9A, 0x7F, (byte) 0xFF, (byte) 0xFF, (byte) 0xFF, 1};
+        assertThrows(IllegalArgumentException.class, () -> new Cbor.Reader(array).arrayHeader());
+        byte[] map = {(byte) 0xBB, 0, 0, 0, 1, 0, 0, 0, 0};
+        assertThrows(IllegalArgumentException.class, () -> new Cbor.Reader(map).mapHeader());
+    }
+}